@@ -17,18 +17,28 @@
 package xcmailrstarter;
 
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.h2.tools.RunScript;
 import org.mortbay.log.Log;
 
 /**
- * Prepares the Database and checks whether all necessary tables exist
+ * Prepares the Database and checks whether all necessary tables exist.<br/>
+ * A script may contain conditional sections: the statements between a line <code>-- @if &lt;query&gt;</code> and a
+ * line <code>-- @end</code> are only executed if the query returns true when the section is reached, e.g. to run a
+ * conversion only while a column still has its old type or to apply a schema version only once. A line
+ * <code>-- @require &lt;query&gt;</code> is a precondition of the whole script: all of them are checked before the
+ * first statement is executed, and nothing is executed if one of the queries doesn't return true.
  * 
  * @author Patrick Thum, Xceptance Software Technologies GmbH, Germany
  */
@@ -40,6 +50,12 @@ public class ScriptRunner
 
     private static final String UPGRADE_DB_SQL_FILE = "upgrade_db.sql";
 
+    private static final String IF_DIRECTIVE = "-- @if ";
+
+    private static final String END_DIRECTIVE = "-- @end";
+
+    private static final String REQUIRE_DIRECTIVE = "-- @require ";
+
     public ScriptRunner(StarterConf config)
     {
         try
@@ -88,7 +104,7 @@ public class ScriptRunner
         }
     }
 
-    private void runScript(StarterConf config, String... filenames) throws FileNotFoundException, SQLException
+    private void runScript(StarterConf config, String... filenames) throws IOException, SQLException
     {
         if (filenames == null)
         {
@@ -102,9 +118,132 @@ public class ScriptRunner
         for (String filename : filenames)
         {
             Log.info("Execute sql script from file: " + filename);
-            RunScript.execute(connection, new BufferedReader(new FileReader(filename)));
+            BufferedReader reader = new BufferedReader(new FileReader(filename));
+            try
+            {
+                executeScript(connection, reader);
+            }
+            finally
+            {
+                reader.close();
+            }
         }
+        logSchemaVersion(connection);
         Log.info("Execution finished. Close database");
         connection.close();
     }
+
+    /**
+     * Executes the given script if its preconditions are met, skipping the conditional sections whose condition isn't
+     * met
+     * 
+     * @param connection
+     *            the open database connection
+     * @param reader
+     *            the script
+     * @throws IOException
+     *             if the script couldn't be read
+     * @throws SQLException
+     *             if a precondition isn't met or a statement or condition failed
+     */
+    static void executeScript(Connection connection, BufferedReader reader) throws IOException, SQLException
+    {
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            lines.add(line);
+        }
+
+        for (String scriptLine : lines)
+        {
+            String trimmed = scriptLine.trim();
+            if (trimmed.startsWith(REQUIRE_DIRECTIVE))
+            {
+                String query = trimmed.substring(REQUIRE_DIRECTIVE.length());
+                if (!isTrue(connection, query))
+                {
+                    throw new SQLException("Precondition not met, nothing has been executed: " + query);
+                }
+            }
+        }
+
+        StringBuilder statements = new StringBuilder();
+        boolean skip = false;
+        for (String scriptLine : lines)
+        {
+            String trimmed = scriptLine.trim();
+            if (trimmed.startsWith(REQUIRE_DIRECTIVE))
+            {
+                continue;
+            }
+            if (trimmed.startsWith(IF_DIRECTIVE))
+            {
+                // run everything before the section, its condition may depend on it
+                execute(connection, statements);
+                skip = !isTrue(connection, trimmed.substring(IF_DIRECTIVE.length()));
+                if (skip)
+                {
+                    Log.info("Skip section, condition not met: " + trimmed.substring(IF_DIRECTIVE.length()));
+                }
+            }
+            else if (trimmed.startsWith(END_DIRECTIVE))
+            {
+                execute(connection, statements);
+                skip = false;
+            }
+            else if (!skip)
+            {
+                statements.append(scriptLine).append('\n');
+            }
+        }
+        execute(connection, statements);
+    }
+
+    private static void execute(Connection connection, StringBuilder statements) throws SQLException
+    {
+        if (statements.toString().trim().length() > 0)
+        {
+            RunScript.execute(connection, new StringReader(statements.toString()));
+        }
+        statements.setLength(0);
+    }
+
+    private static boolean isTrue(Connection connection, String query) throws SQLException
+    {
+        Statement statement = connection.createStatement();
+        try
+        {
+            ResultSet resultSet = statement.executeQuery(query);
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    /**
+     * Logs the highest schema version recorded in the SCHEMA_VERSION table, if the table exists
+     * 
+     * @param connection
+     *            the open database connection
+     */
+    private void logSchemaVersion(Connection connection)
+    {
+        try
+        {
+            Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery("SELECT MAX(VERSION) FROM SCHEMA_VERSION");
+            if (resultSet.next())
+            {
+                Log.info("Database schema version: " + resultSet.getInt(1));
+            }
+            statement.close();
+        }
+        catch (SQLException e)
+        {
+            Log.info("Database schema version: unknown (" + e.getMessage() + ")");
+        }
+    }
 }
@@ -0,0 +1,162 @@
+package xcmailrstarter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the upgrade script against a database with the schema of an older release.
+ */
+public class ScriptRunnerTest
+{
+    private static final String MESSAGE = "Gr\u00fc\u00dfe";
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection("jdbc:h2:mem:", "sa", "");
+        runFile("../xcmailr-resources/default-create.sql");
+
+        // the mail table as it was before the raw bytes and the parsed content were stored
+        run("alter table mail drop column message;\n" //
+            + "alter table mail add column message clob;\n" //
+            + "alter table mail drop column text_content;\n" //
+            + "alter table mail drop column html_content;\n" //
+            + "alter table mail drop column attachments;\n" //
+            + "insert into mail (id, sender, subject, receive_time, message) values (1, 'a@b.c', 'hi', 0, '" + MESSAGE
+            + "');\n");
+
+        // the schema before the indexes of version 1
+        run("drop index ux_users_mail;\n" //
+            + "drop index ux_users_apitoken;\n" //
+            + "drop index ux_mailboxes_address_domain;\n" //
+            + "drop index ix_mail_uuid;\n" //
+            + "drop index ix_mailtransactions_ts;\n" //
+            + "drop table SCHEMA_VERSION;\n");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        connection.close();
+    }
+
+    @Test
+    public void testUpgradeTwiceKeepsMessages() throws Exception
+    {
+        runFile("../xcmailr-resources/upgrade_db.sql");
+        assertMessageConverted();
+
+        // a second run must neither fail nor convert the converted messages again
+        runFile("../xcmailr-resources/upgrade_db.sql");
+        assertMessageConverted();
+
+        assertEquals(1, queryInt("select count(*) from SCHEMA_VERSION where VERSION = 1"));
+        assertEquals(1, queryInt("select count(*) from information_schema.indexes "
+                                 + "where index_name = 'UX_USERS_MAIL' and non_unique = false"));
+    }
+
+    @Test
+    public void testUpgradeStopsOnDuplicates() throws Exception
+    {
+        run("insert into users (id, mail) values (1, 'same@xcmailr.test');\n" //
+            + "insert into users (id, mail) values (2, 'same@xcmailr.test');\n");
+        try
+        {
+            runFile("../xcmailr-resources/upgrade_db.sql");
+            fail("the upgrade must not run with duplicate user mail addresses");
+        }
+        catch (SQLException e)
+        {
+            assertTrue(e.getMessage().startsWith("Precondition not met"));
+        }
+
+        // nothing has been changed
+        assertEquals(1, queryInt("select count(*) from information_schema.columns "
+                                 + "where table_name = 'MAIL' and column_name = 'MESSAGE' and type_name = 'CLOB'"));
+        assertEquals(0, queryInt("select count(*) from information_schema.tables where table_name = 'SCHEMA_VERSION'"));
+    }
+
+    @Test
+    public void testConditionalSection() throws Exception
+    {
+        run("create table t (v integer);\n" //
+            + "-- @if select count(*) > 0 from t\n" //
+            + "insert into t values (1);\n" //
+            + "-- @end\n" //
+            + "insert into t values (2);\n" //
+            + "-- @if select count(*) > 0 from t\n" //
+            + "insert into t values (3);\n" //
+            + "-- @end\n");
+
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("select sum(v) from t");
+        assertTrue(resultSet.next());
+        assertEquals(5, resultSet.getInt(1));
+        statement.close();
+    }
+
+    private void assertMessageConverted() throws Exception
+    {
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("select type_name from information_schema.columns "
+                                                     + "where table_name = 'MAIL' and column_name = 'MESSAGE'");
+        assertTrue(resultSet.next());
+        assertEquals("BLOB", resultSet.getString(1));
+
+        resultSet = statement.executeQuery("select message from mail where id = 1");
+        assertTrue(resultSet.next());
+        assertArrayEquals(MESSAGE.getBytes("UTF-8"), resultSet.getBytes(1));
+        statement.close();
+    }
+
+    private int queryInt(String query) throws Exception
+    {
+        Statement statement = connection.createStatement();
+        try
+        {
+            ResultSet resultSet = statement.executeQuery(query);
+            assertTrue(resultSet.next());
+            return resultSet.getInt(1);
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private void run(String script) throws Exception
+    {
+        ScriptRunner.executeScript(connection, new BufferedReader(new StringReader(script)));
+    }
+
+    private void runFile(String filename) throws Exception
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try
+        {
+            ScriptRunner.executeScript(connection, reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
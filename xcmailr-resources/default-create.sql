@@ -23,7 +23,10 @@ create table mail (
   sender                    varchar(255),
   subject                   varchar(255) not null,
   receive_time              bigint not null,
-  message                   clob,
+  message                   blob,
+  text_content              clob,
+  html_content              clob,
+  attachments               clob,
   mailbox_id                bigint,
   uuid                      varchar(36),
   constraint pk_mail primary key (id))
@@ -39,6 +42,22 @@ create table MAIL_STATISTICS (
   constraint pk_MAIL_STATISTICS primary key (date, QUARTER_HOUR, FROM_DOMAIN, TARGET_DOMAIN))
 ;
 
+create table MAIL_STATISTICS_DAILY (
+  date                      date not null,
+  FROM_DOMAIN               varchar(255) not null,
+  DROP_COUNT                integer,
+  FORWARD_COUNT             integer,
+  constraint pk_MAIL_STATISTICS_DAILY primary key (date, FROM_DOMAIN))
+;
+
+create table MAIL_STATISTICS_HOURLY (
+  date                      date not null,
+  HOUR_OF_DAY               integer not null,
+  DROP_COUNT                integer,
+  FORWARD_COUNT             integer,
+  constraint pk_MAIL_STATISTICS_HOURLY primary key (date, HOUR_OF_DAY))
+;
+
 create table mailtransactions (
   id                        bigint not null,
   ts                        bigint,
@@ -49,6 +68,13 @@ create table mailtransactions (
   constraint pk_mailtransactions primary key (id))
 ;
 
+create table SCHEMA_VERSION (
+  VERSION                   integer not null,
+  DESCRIPTION               varchar(255),
+  INSTALLED_ON              timestamp default current_timestamp,
+  constraint pk_SCHEMA_VERSION primary key (VERSION))
+;
+
 create table users (
   id                        bigint not null,
   forename                  varchar(255),
@@ -74,6 +100,10 @@ create sequence mail_seq;
 
 create sequence MAIL_STATISTICS_seq;
 
+create sequence MAIL_STATISTICS_DAILY_seq;
+
+create sequence MAIL_STATISTICS_HOURLY_seq;
+
 create sequence mailtransactions_seq;
 
 create sequence users_seq;
@@ -82,5 +112,14 @@ alter table mailboxes add constraint fk_mailboxes_usr_1 foreign key (usr_id) ref
 create index ix_mailboxes_usr_1 on mailboxes (usr_id);
 alter table mail add constraint fk_mail_mailbox_2 foreign key (mailbox_id) references mailboxes (id) on delete restrict on update restrict;
 create index ix_mail_mailbox_2 on mail (mailbox_id);
+create index ix_mail_receive_time on mail (receive_time);
+create index ix_mail_uuid on mail (uuid);
+create unique index ux_mailboxes_address_domain on mailboxes (address, domain);
+create unique index ux_users_mail on users (mail);
+create unique index ux_users_apitoken on users (apitoken);
+create index ix_mailtransactions_ts on mailtransactions (ts);
+
+insert into SCHEMA_VERSION (VERSION, DESCRIPTION)
+  values (1, 'indexes for user, API token, mailbox, mail and mail transaction lookups');
 
 
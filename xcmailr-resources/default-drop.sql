@@ -8,8 +8,14 @@ drop table if exists mail;
 
 drop table if exists MAIL_STATISTICS;
 
+drop table if exists MAIL_STATISTICS_DAILY;
+
+drop table if exists MAIL_STATISTICS_HOURLY;
+
 drop table if exists mailtransactions;
 
+drop table if exists SCHEMA_VERSION;
+
 drop table if exists users;
 
 SET REFERENTIAL_INTEGRITY TRUE;
@@ -22,6 +28,10 @@ drop sequence if exists mail_seq;
 
 drop sequence if exists MAIL_STATISTICS_seq;
 
+drop sequence if exists MAIL_STATISTICS_DAILY_seq;
+
+drop sequence if exists MAIL_STATISTICS_HOURLY_seq;
+
 drop sequence if exists mailtransactions_seq;
 
 drop sequence if exists users_seq;
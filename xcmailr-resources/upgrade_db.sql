@@ -1,2 +1,63 @@
 -- add field to hold some kind of download token
-alter table mail add column uuid varchar(36)
\ No newline at end of file
+alter table mail add column if not exists uuid varchar(36);
+
+-- store the raw bytes of the emails instead of the ASCII-decoded string (only once, while the column is a CLOB)
+-- @if select count(*) > 0 from information_schema.columns where table_schema = schema() and table_name = 'MAIL' and column_name = 'MESSAGE' and type_name = 'CLOB'
+alter table mail add column message_bytes blob;
+update mail set message_bytes = stringtoutf8(message);
+alter table mail drop column message;
+alter table mail alter column message_bytes rename to message;
+-- @end
+
+-- store the parsed content of the emails (the existing emails are parsed when they are queried the first time)
+alter table mail add column if not exists text_content clob;
+alter table mail add column if not exists html_content clob;
+alter table mail add column if not exists attachments clob;
+
+-- the retention cleanup deletes the emails by their receive time
+create index if not exists ix_mail_receive_time on mail (receive_time);
+
+-- the statistics dashboard reads the statistics rolled up per hour and per day and sender domain
+create table if not exists MAIL_STATISTICS_HOURLY (
+  date                      date not null,
+  HOUR_OF_DAY               integer not null,
+  DROP_COUNT                integer,
+  FORWARD_COUNT             integer,
+  constraint pk_MAIL_STATISTICS_HOURLY primary key (date, HOUR_OF_DAY));
+create table if not exists MAIL_STATISTICS_DAILY (
+  date                      date not null,
+  FROM_DOMAIN               varchar(255) not null,
+  DROP_COUNT                integer,
+  FORWARD_COUNT             integer,
+  constraint pk_MAIL_STATISTICS_DAILY primary key (date, FROM_DOMAIN));
+create sequence if not exists MAIL_STATISTICS_HOURLY_seq;
+create sequence if not exists MAIL_STATISTICS_DAILY_seq;
+merge into MAIL_STATISTICS_HOURLY (date, HOUR_OF_DAY, DROP_COUNT, FORWARD_COUNT) key (date, HOUR_OF_DAY)
+  select date, QUARTER_HOUR / 4, sum(DROP_COUNT), sum(FORWARD_COUNT) from MAIL_STATISTICS group by date, QUARTER_HOUR / 4;
+merge into MAIL_STATISTICS_DAILY (date, FROM_DOMAIN, DROP_COUNT, FORWARD_COUNT) key (date, FROM_DOMAIN)
+  select date, FROM_DOMAIN, sum(DROP_COUNT), sum(FORWARD_COUNT) from MAIL_STATISTICS group by date, FROM_DOMAIN;
+
+-- the applied schema versions are recorded in SCHEMA_VERSION, the section of a version is executed only once
+create table if not exists SCHEMA_VERSION (
+  VERSION                   integer not null,
+  DESCRIPTION               varchar(255),
+  INSTALLED_ON              timestamp default current_timestamp,
+  constraint pk_SCHEMA_VERSION primary key (VERSION));
+
+-- version 1: indexes for the lookups of users by mail address and API token, of mailboxes by address and domain,
+-- of mails by download token and of mail transactions by timestamp
+-- the unique indexes require that there are no duplicates, the preconditions are checked before the script changes
+-- anything (remove or rename the duplicates and run the upgrade again if the script stops here)
+-- @require select count(*) = 0 from (select mail from users where mail is not null group by mail having count(*) > 1) d
+-- @require select count(*) = 0 from (select apitoken from users where apitoken is not null group by apitoken having count(*) > 1) d
+-- @require select count(*) = 0 from (select address, domain from mailboxes where address is not null and domain is not null group by address, domain having count(*) > 1) d
+-- @if select count(*) = 0 from SCHEMA_VERSION where VERSION = 1
+create unique index if not exists ux_users_mail on users (mail);
+create unique index if not exists ux_users_apitoken on users (apitoken);
+create unique index if not exists ux_mailboxes_address_domain on mailboxes (address, domain);
+create index if not exists ix_mail_uuid on mail (uuid);
+create index if not exists ix_mail_receive_time on mail (receive_time);
+create index if not exists ix_mailtransactions_ts on mailtransactions (ts);
+insert into SCHEMA_VERSION (VERSION, DESCRIPTION)
+  values (1, 'indexes for user, API token, mailbox, mail and mail transaction lookups');
+-- @end
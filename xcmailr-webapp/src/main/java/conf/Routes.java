@@ -102,6 +102,7 @@ public class Routes implements ApplicationRoutes
         router.GET().route("/create/temporaryMail/{token}/{mailAddress}/{validTime}")
               .with(BoxHandler.class, "createTemporaryMailAddress");
 
+        router.GET().route("/mailbox/events/{token}").with(BoxHandler.class, "streamMailboxEvents");
         router.GET().route("/mailbox/{mailAddress}/{token}").with(BoxHandler.class, "queryMailbox");
         router.GET().route("/mailbox").with(BoxHandler.class, "queryMailbox");
         router.GET().route("/mails").with(BoxHandler.class, "queryAllMailboxes");
@@ -129,6 +130,10 @@ public class Routes implements ApplicationRoutes
 
         router.GET().route("/admin/usersearch").with(AdminHandler.class, "jsonUserSearch");
 
+        router.GET().route("/admin/forwarding").with(AdminHandler.class, "jsonForwardingMetrics");
+        router.GET().route("/admin/expiration").with(AdminHandler.class, "jsonExpirationMetrics");
+        router.GET().route("/admin/jobs").with(AdminHandler.class, "jsonJobMetrics");
+
         router.GET().route("/admin/whitelist").with(AdminHandler.class, "showDomainWhitelist");
         router.POST().route("/admin/whitelist/remove").with(AdminHandler.class, "callRemoveDomain");
         router.GET().route("/admin/whitelist/remove").with(AdminHandler.class, "handleRemoveDomain");
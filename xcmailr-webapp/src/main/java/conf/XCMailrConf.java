@@ -16,6 +16,11 @@
  */
 package conf;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -92,6 +97,11 @@ public class XCMailrConf
      */
     public final String[] DOMAIN_LIST;
 
+    /**
+     * specified with mbox.dlist (as set, for lookups of incoming recipients)
+     */
+    public final Set<String> DOMAIN_SET;
+
     /**
      * specified with mbox.host
      */
@@ -141,6 +151,31 @@ public class XCMailrConf
      */
     public final Integer MTX_MAX_AGE;
 
+    /**
+     * specified with mail.forward.poolsize default value is 4
+     */
+    public final int FWD_POOL_SIZE;
+
+    /**
+     * specified with mail.forward.queuesize default value is 1000
+     */
+    public final int FWD_QUEUE_SIZE;
+
+    /**
+     * specified with mail.forward.enqueuetimeout (in milliseconds) default value is 5000
+     */
+    public final int FWD_ENQUEUE_TIMEOUT;
+
+    /**
+     * specified with mail.forward.maxretries default value is 3
+     */
+    public final int FWD_MAX_RETRIES;
+
+    /**
+     * specified with mail.forward.retrydelay (in milliseconds) default value is 1000
+     */
+    public final int FWD_RETRY_DELAY;
+
     /**
      * specified with mail.smtp.auth
      */
@@ -161,6 +196,16 @@ public class XCMailrConf
      */
     public final String OUT_SMTP_PASS;
 
+    /**
+     * specified with mail.smtp.pool.maxmessages default value is 100
+     */
+    public final int OUT_SMTP_POOL_MAX_MESSAGES;
+
+    /**
+     * specified with mail.smtp.pool.idletimeout (in seconds) default value is 60
+     */
+    public final int OUT_SMTP_POOL_IDLE_TIMEOUT;
+
     /**
      * specified with mail.smtp.port
      */
@@ -187,10 +232,141 @@ public class XCMailrConf
     public final String SESSION_EXPIRETIME;
 
     /**
-     * Maximum size of a single mail that will be handled. Mails that exceed that size will be dropped.
+     * Maximum size of a single mail in bytes that will be handled. Mails that exceed that size will be dropped.
      */
     public final int MAX_MAIL_SIZE;
 
+    /**
+     * Incoming mails larger than this number of bytes are buffered in a temporary file instead of the memory.
+     */
+    public final int MAIL_MEMORY_THRESHOLD;
+
+    /**
+     * The number of expired mails which are deleted in one transaction, specified with mbox.mail.deletechunksize
+     * default value is 500
+     */
+    public final int MAIL_DELETE_CHUNK_SIZE;
+
+    /**
+     * The maximum number of seconds a mailbox-query waits for a matching mail, specified with mbox.mail.maxwait default
+     * value is 25 (the default timeout of asynchronous requests of Jetty is 30 seconds)
+     */
+    public final int MAILBOX_MAX_WAIT;
+
+    /**
+     * The number of threads which check the waiting mailbox-queries when a mail is received, specified with
+     * mbox.mail.waitworkers default value is 4
+     */
+    public final int MAILBOX_WAIT_WORKERS;
+
+    /**
+     * The number of events which are buffered for a client of the mailbox event-stream before it's disconnected,
+     * specified with mbox.events.buffersize default value is 100
+     */
+    public final int EVENTS_BUFFER_SIZE;
+
+    /**
+     * The number of threads which send the events of the mailbox event-stream, specified with mbox.events.workers
+     * default value is 4
+     */
+    public final int EVENTS_WORKERS;
+
+    /**
+     * The number of milliseconds a client of the mailbox event-stream may block a write before it's disconnected,
+     * specified with mbox.events.writetimeout default value is 5000
+     */
+    public final long EVENTS_WRITE_TIMEOUT;
+
+    /**
+     * The number of clients which may be connected to the mailbox event-stream of one user, specified with
+     * mbox.events.maxperuser default value is 5
+     */
+    public final int EVENTS_MAX_PER_USER;
+
+    /**
+     * The number of seconds between two runs of the deletion of expired mails, specified with
+     * mbox.mail.retentioninterval default value is 60
+     */
+    public final int MAIL_RETENTION_INTERVAL;
+
+    /**
+     * The number of seconds between two runs of the expiration of API tokens, specified with
+     * application.api.tokenexpirationinterval default value is 3600
+     */
+    public final int APITOKEN_EXPIRATION_INTERVAL;
+
+    /**
+     * The number of seconds between two runs of the persistence of mail transactions, specified with
+     * mailtransaction.interval default value is 60
+     */
+    public final int MTX_INTERVAL;
+
+    /**
+     * The number of mail transactions which are buffered until they are stored, specified with
+     * mailtransaction.buffer.capacity default value is 65536
+     */
+    public final int MTX_BUFFER_CAPACITY;
+
+    /**
+     * What to do with new mail transactions if the buffer fills up (drop or sample), specified with
+     * mailtransaction.buffer.overflow default value is drop
+     */
+    public final String MTX_BUFFER_OVERFLOW;
+
+    /**
+     * Only every n-th mail transaction is kept if the buffer is half full and the overflow policy is sample, specified
+     * with mailtransaction.buffer.samplerate default value is 10
+     */
+    public final int MTX_BUFFER_SAMPLE_RATE;
+
+    /**
+     * The number of mail transactions which are stored with one batch, specified with mailtransaction.batchsize
+     * default value is 500
+     */
+    public final int MTX_BATCH_SIZE;
+
+    /**
+     * The number of seconds between two runs of the cleanup of old mail transactions, specified with
+     * mailtransaction.cleanupinterval default value is 3600
+     */
+    public final int MTX_CLEANUP_INTERVAL;
+
+    /**
+     * The number of seconds between two runs of the persistence of mail statistics, specified with
+     * mailstatistics.interval default value is 60
+     */
+    public final int STATISTICS_INTERVAL;
+
+    /**
+     * Indicates whether the hourly mail statistics and the sender domains of the last week are kept in memory for the
+     * statistics dashboard, specified with mailstatistics.cache default value is true
+     */
+    public final Boolean STATISTICS_CACHE;
+
+    /**
+     * The number of seconds a single run of a maintenance job should take at most, specified with jobs.budget default
+     * value is 30
+     */
+    public final int JOB_BUDGET;
+
+    /**
+     * The maximum number of session users kept in the local near-cache in front of the caching-server (0 disables it),
+     * specified with application.session.nearcache.size default value is 10000
+     */
+    public final int SESSION_NEAR_CACHE_SIZE;
+
+    /**
+     * The number of seconds a session user is kept in the local near-cache, specified with
+     * application.session.nearcache.ttl default value is 5
+     */
+    public final int SESSION_NEAR_CACHE_TTL;
+
+    /**
+     * The maximum number of sessions of a user, the oldest session is removed if a new one exceeds it, specified with
+     * application.session.maxperuser default value is 50
+     */
+    public final int SESSION_MAX_PER_USER;
+
     /**
      * The maximum time a temporary mail can be valid
      */
@@ -201,6 +377,18 @@ public class XCMailrConf
      */
     public final int APITOKEN_EXPIRATION;
 
+    /**
+     * The maximum number of API tokens whose users are kept in memory, specified with application.api.tokencache.size
+     * default value is 10000
+     */
+    public final int APITOKEN_CACHE_SIZE;
+
+    /**
+     * The number of seconds the user of an API token is kept in memory, specified with application.api.tokencache.ttl
+     * default value is 60
+     */
+    public final int APITOKEN_CACHE_TTL;
+
     /**
      * The amount of minutes an email should be preserved before being deleted. NOTE: this only accounts for emails that
      * were sent to an user defined email address that also has to be active
@@ -235,6 +423,12 @@ public class XCMailrConf
         MEMCA_HOST = ninjaProp.getOrDie("memcached.host");
         MSG_REWRITE = ninjaProp.getBooleanWithDefault("mail.msg.rewrite", false);
 
+        FWD_POOL_SIZE = ninjaProp.getIntegerWithDefault("mail.forward.poolsize", 4);
+        FWD_QUEUE_SIZE = ninjaProp.getIntegerWithDefault("mail.forward.queuesize", 1000);
+        FWD_ENQUEUE_TIMEOUT = ninjaProp.getIntegerWithDefault("mail.forward.enqueuetimeout", 5000);
+        FWD_MAX_RETRIES = ninjaProp.getIntegerWithDefault("mail.forward.maxretries", 3);
+        FWD_RETRY_DELAY = ninjaProp.getIntegerWithDefault("mail.forward.retrydelay", 1000);
+
         OUT_SMTP_HOST = ninjaProp.getOrDie("mail.smtp.host");
         OUT_SMTP_PORT = ninjaProp.getIntegerOrDie("mail.smtp.port");
         OUT_SMTP_AUTH = ninjaProp.getBooleanOrDie("mail.smtp.auth");
@@ -250,6 +444,8 @@ public class XCMailrConf
         }
         OUT_SMTP_TLS = ninjaProp.getBooleanOrDie("mail.smtp.tls");
         OUT_SMTP_DEBUG = ninjaProp.getBooleanWithDefault("mail.smtp.debug", false);
+        OUT_SMTP_POOL_MAX_MESSAGES = ninjaProp.getIntegerWithDefault("mail.smtp.pool.maxmessages", 100);
+        OUT_SMTP_POOL_IDLE_TIMEOUT = ninjaProp.getIntegerWithDefault("mail.smtp.pool.idletimeout", 60);
 
         PW_LENGTH = ninjaProp.getIntegerOrDie("pw.length");
         SESSION_EXPIRETIME = COOKIE_EXPIRETIME + "s";
@@ -258,10 +454,35 @@ public class XCMailrConf
             throw new RuntimeException("Key mbox.dlist does not exist. Please include it in your application.conf. "
                                        + "Otherwise this app will not work");
         }
+        DOMAIN_SET = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(DOMAIN_LIST)));
         MAX_MAIL_SIZE = ninjaProp.getIntegerOrDie("mbox.mail.maxsize");
+        MAIL_MEMORY_THRESHOLD = ninjaProp.getIntegerWithDefault("mbox.mail.memorythreshold", 1048576);
         MAIL_RETENTION_PERIOD = ninjaProp.getIntegerOrDie("mbox.mail.retentionperiod");
+        MAIL_DELETE_CHUNK_SIZE = ninjaProp.getIntegerWithDefault("mbox.mail.deletechunksize", 500);
+        MAILBOX_MAX_WAIT = ninjaProp.getIntegerWithDefault("mbox.mail.maxwait", 25);
+        MAILBOX_WAIT_WORKERS = ninjaProp.getIntegerWithDefault("mbox.mail.waitworkers", 4);
+        EVENTS_BUFFER_SIZE = ninjaProp.getIntegerWithDefault("mbox.events.buffersize", 100);
+        EVENTS_WORKERS = ninjaProp.getIntegerWithDefault("mbox.events.workers", 4);
+        EVENTS_WRITE_TIMEOUT = ninjaProp.getIntegerWithDefault("mbox.events.writetimeout", 5000);
+        EVENTS_MAX_PER_USER = ninjaProp.getIntegerWithDefault("mbox.events.maxperuser", 5);
+        MAIL_RETENTION_INTERVAL = ninjaProp.getIntegerWithDefault("mbox.mail.retentioninterval", 60);
+        MTX_INTERVAL = ninjaProp.getIntegerWithDefault("mailtransaction.interval", 60);
+        MTX_CLEANUP_INTERVAL = ninjaProp.getIntegerWithDefault("mailtransaction.cleanupinterval", 3600);
+        MTX_BATCH_SIZE = ninjaProp.getIntegerWithDefault("mailtransaction.batchsize", 500);
+        MTX_BUFFER_CAPACITY = ninjaProp.getIntegerWithDefault("mailtransaction.buffer.capacity", 65536);
+        MTX_BUFFER_OVERFLOW = ninjaProp.getWithDefault("mailtransaction.buffer.overflow", "drop");
+        MTX_BUFFER_SAMPLE_RATE = ninjaProp.getIntegerWithDefault("mailtransaction.buffer.samplerate", 10);
+        STATISTICS_INTERVAL = ninjaProp.getIntegerWithDefault("mailstatistics.interval", 60);
+        STATISTICS_CACHE = ninjaProp.getBooleanWithDefault("mailstatistics.cache", true);
+        JOB_BUDGET = ninjaProp.getIntegerWithDefault("jobs.budget", 30);
+        SESSION_NEAR_CACHE_SIZE = ninjaProp.getIntegerWithDefault("application.session.nearcache.size", 10000);
+        SESSION_NEAR_CACHE_TTL = ninjaProp.getIntegerWithDefault("application.session.nearcache.ttl", 5);
+        SESSION_MAX_PER_USER = ninjaProp.getIntegerWithDefault("application.session.maxperuser", 50);
         TEMPORARY_MAIL_MAX_VALID_TIME = ninjaProp.getIntegerOrDie("application.temporarymail.maximumvalidtime");
 
         APITOKEN_EXPIRATION = ninjaProp.getIntegerOrDie("application.api.tokenexpirationtime");
+        APITOKEN_EXPIRATION_INTERVAL = ninjaProp.getIntegerWithDefault("application.api.tokenexpirationinterval", 3600);
+        APITOKEN_CACHE_SIZE = ninjaProp.getIntegerWithDefault("application.api.tokencache.size", 10000);
+        APITOKEN_CACHE_TTL = ninjaProp.getIntegerWithDefault("application.api.tokencache.ttl", 60);
     }
 }
@@ -17,31 +17,33 @@
 package controllers;
 
 import java.sql.Date;
-import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 
-import com.avaje.ebean.Ebean;
-import com.avaje.ebean.SqlRow;
-import com.avaje.ebean.Transaction;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import conf.XCMailrConf;
 import etc.HelperUtils;
+import etc.SessionUser;
+import etc.StatisticsEntry;
 import filters.AdminFilter;
 import filters.SecureFilter;
 import filters.WhitelistFilter;
 import models.Domain;
 import models.MailStatistics;
+import models.MailStatisticsHourly;
 import models.MailStatisticsJson;
-import models.MailStatisticsKey;
 import models.MailTransaction;
 import models.PageList;
 import models.User;
@@ -79,6 +81,18 @@ public class AdminHandler
     @Inject
     CachingSessionHandler cachingSessionHandler;
 
+    @Inject
+    MailForwardingService forwardingService;
+
+    @Inject
+    SmtpTransportPool transportPool;
+
+    @Inject
+    JobController jobController;
+
+    @Inject
+    MailStatisticsCache statisticsCache;
+
     private static final Pattern PATTERN_DOMAINS = Pattern.compile("^[a-z0-9]+([\\-\\.]{1}[a-z0-9]+)*\\.[a-z]{2,6}");
 
     /**
@@ -103,7 +117,7 @@ public class AdminHandler
     public Result showUsers(Context context)
     {
         Result result = Results.html();
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         // render the userID in the result to identify the row where no buttons will be shown
         result.render("uid", user.getId());
         // set a default number or the number which the user had chosen
@@ -197,7 +211,7 @@ public class AdminHandler
     public Result activateUserProcess(@PathParam("id") Long userId, Context context)
     {
         // get the user who executes this action
-        User executingUser = context.getAttribute("user", User.class);
+        SessionUser executingUser = context.getAttribute("user", SessionUser.class);
         if (executingUser.getId() == userId)
             // the admin wants to disable his own account, this is not allowed
             return Results.redirect(context.getContextPath() + "/admin/users");
@@ -239,7 +253,7 @@ public class AdminHandler
      */
     public Result promoteUserProcess(@PathParam("id") Long userId, Context context)
     {
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
 
         if (user.getId() != userId)
         { // the user to pro-/demote is not the user who performs this action
@@ -261,7 +275,7 @@ public class AdminHandler
      */
     public Result deleteUserProcess(@PathParam("id") Long deleteUserId, Context context)
     {
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
 
         if (user.getId() != deleteUserId)
         { // the user to delete is not the user who performs this action
@@ -299,6 +313,60 @@ public class AdminHandler
         return Results.json().render(userDatalist);
     }
 
+    /**
+     * Shows the metrics of the forwarding-workers (queue-depth, active workers, sent, retried, failed and rejected
+     * mails) and the pooled SMTP-connections.
+     * 
+     * @param context
+     *            the context of this request
+     * @return the metrics as JSON object
+     */
+    public Result jsonForwardingMetrics(Context context)
+    {
+        Map<String, Number> metrics = forwardingService.getMetrics();
+        metrics.put("smtpConnectionsOpened", transportPool.getOpenedConnections());
+        metrics.put("smtpConnectionsReused", transportPool.getReusedConnections());
+        metrics.put("smtpConnectionsIdle", transportPool.getIdleConnections());
+        return Results.json().render(metrics);
+    }
+
+    /**
+     * Shows the progress of the retention cleanup of the received mails.
+     * 
+     * @param context
+     *            the context of this request
+     * @return the metrics as JSON object
+     */
+    public Result jsonExpirationMetrics(Context context)
+    {
+        ExpirationService expirationTask = jobController.getExpirationTask();
+        if (expirationTask == null)
+        {
+            return Results.json().render(new LinkedHashMap<String, Number>());
+        }
+        return Results.json().render(expirationTask.getRetentionMetrics());
+    }
+
+    /**
+     * Shows the runs, failures, durations and processed items of the maintenance jobs and the state of the buffer of
+     * the mail transactions.
+     * 
+     * @param context
+     *            the context of this request
+     * @return the metrics of each job as JSON object
+     */
+    public Result jsonJobMetrics(Context context)
+    {
+        Map<String, Map<String, Number>> metrics = new LinkedHashMap<String, Map<String, Number>>();
+        ExpirationService expirationTask = jobController.getExpirationTask();
+        if (expirationTask != null)
+        {
+            metrics.putAll(expirationTask.getJobMetrics());
+        }
+        metrics.put("mailTransactionBuffer", jobController.mtxQueue.getMetrics());
+        return Results.json().render(metrics);
+    }
+
     /**
      * Shows a page that contains a list of all domains allowed for registration.
      * 
@@ -428,7 +496,13 @@ public class AdminHandler
         List<Long> dailyForwardedMails = new LinkedList<>();
         List<Long> dailyTimestamps = new LinkedList<>();
 
-        reduceStatisticsData(4, getStatistics(0, true), dailyDroppedMails, dailyForwardedMails, dailyTimestamps);
+        // the week chart shows the full days including today, the day chart the last 24 hours including the current
+        final LocalDateTime now = LocalDateTime.now();
+        final LocalDate today = now.toLocalDate();
+        final Map<Long, StatisticsEntry> hourlyCounts = statisticsCache.getHourlyCounts(today.minusDays(6));
+
+        addHourlyStatistics(hourlyCounts, today.minusDays(1), now.getHour() + 1, 24, dailyDroppedMails,
+                            dailyForwardedMails, dailyTimestamps);
 
         html.render("lastDayTimestamps", dailyTimestamps);
         html.render("lastDayDroppedData", dailyDroppedMails);
@@ -439,7 +513,8 @@ public class AdminHandler
         List<Long> weeklyTimestamps = new LinkedList<>();
 
         // week statistics
-        reduceStatisticsData(4, getStatistics(6, false), weeklyDroppedMails, weeklyForwardedMails, weeklyTimestamps);
+        addHourlyStatistics(hourlyCounts, today.minusDays(6), 0, 7 * 24, weeklyDroppedMails, weeklyForwardedMails,
+                            weeklyTimestamps);
 
         html.render("lastWeekTimestamps", weeklyTimestamps);
         html.render("lastWeekDroppedData", weeklyDroppedMails);
@@ -452,15 +527,15 @@ public class AdminHandler
                                           @Param("offset") int offset, @Param("limit") int limit,
                                           @Param("sort") String sort, @Param("order") String order)
     {
-        List<MailStatistics> data = null;
+        final MailStatisticsCache.SenderRanking ranking;
         switch (scope)
         {
             case "day":
-                data = getMailSenderList(0, sort, order);
+                ranking = statisticsCache.getSenderRanking(0);
                 break;
 
             case "week":
-                data = getMailSenderList(6, sort, order);
+                ranking = statisticsCache.getSenderRanking(MailStatisticsCache.WEEK_DAYS);
                 break;
 
             default:
@@ -470,67 +545,28 @@ public class AdminHandler
         if (page < 0)
             page = 0;
 
+        // the page is taken from the ranking, which is sorted by each column already
+        List<MailStatistics> data = ranking.getPage(getOrderColumn(sort), "desc".equals(getOrderDirection(order)),
+                                                    offset, limit);
         List<MailStatisticsJson> jsonData = new LinkedList<>();
 
-        for (int i = offset; i < offset + limit; i++)
+        for (int i = 0; i < data.size(); i++)
         {
-            if (i < data.size())
-            {
-                MailStatisticsJson newEntry = new MailStatisticsJson();
-                newEntry.id = i;
-                newEntry.droppedCount = data.get(i).getDropCount();
-                newEntry.forwardedCount = data.get(i).getForwardCount();
-                newEntry.fromDomain = data.get(i).getKey().getFromDomain();
-                jsonData.add(newEntry);
-            }
+            MailStatisticsJson newEntry = new MailStatisticsJson();
+            newEntry.id = offset + i;
+            newEntry.droppedCount = data.get(i).getDropCount();
+            newEntry.forwardedCount = data.get(i).getForwardCount();
+            newEntry.fromDomain = data.get(i).getKey().getFromDomain();
+            jsonData.add(newEntry);
         }
 
         Result result = Results.json();
         result.render("rows", jsonData);
-        result.render("total", data.size());
+        result.render("total", ranking.size());
 
         return result;
     }
 
-    /**
-     * Returns a list of email sender domains that were received in the given last N days
-     * 
-     * @param lastNDays
-     *            A positive integer that specifies how many days should be aggregated
-     * @return
-     */
-    private List<MailStatistics> getMailSenderList(int lastNDays, String sort, String order)
-    {
-        if (lastNDays < 0)
-            lastNDays = 0;
-
-        // daily top for dropped mail sender
-        StringBuilder sql = new StringBuilder();
-        sql.append("select ms.FROM_DOMAIN as \"fromDomain\", sum(ms.DROP_COUNT) as \"droppedCount\", sum(ms.FORWARD_COUNT) as \"forwardedCount\"");
-        sql.append("  from MAIL_STATISTICS ms");
-        sql.append(" where ms.DATE >= CURRENT_DATE() - " + lastNDays);
-        sql.append(" group by ms.FROM_DOMAIN");
-
-        String orderColumn = getOrderColumn(sort);
-        String orderBy = getOrderDirection(order);
-
-        sql.append(" order by \"" + orderColumn + "\" " + orderBy);
-
-        List<SqlRow> droppedMail = Ebean.createSqlQuery(sql.toString()).findList();
-        List<MailStatistics> droppedMailSender = new LinkedList<>();
-        droppedMail.forEach((SqlRow row) -> {
-            MailStatistics ms = new MailStatistics();
-            MailStatisticsKey key = new MailStatisticsKey(null, 0, row.getString("fromDomain"), null);
-            ms.setKey(key);
-            ms.setDropCount(row.getInteger("droppedCount"));
-            ms.setForwardCount(row.getInteger("forwardedCount"));
-
-            droppedMailSender.add(ms);
-        });
-
-        return droppedMailSender;
-    }
-
     private String getOrderColumn(String orderBy)
     {
         String orderColumn = "droppedCount"; // the column that is used to order data; droppedCount = default
@@ -561,86 +597,16 @@ public class AdminHandler
     }
 
     /**
-     * Function to retrieve email statistics data for the given last n days. In case sliding window is true, then the
-     * result will be day overlapping based on the current quarter hour of the day
+     * Adds the counts of consecutive hours to the given lists, the hours without mails are added with 0 mails.
      * 
-     * @param lastNDays
-     * @param slidingWindow
-     *            boolean value inidicating whether a sliding window (day overlapping) result is desired. If false the
-     *            result will only contain full days including the current
-     * @return
-     */
-    private List<SqlRow> getStatistics(int lastNDays, boolean slidingWindow)
-    {
-        if (lastNDays < 0)
-            lastNDays = 0;
-
-        if (slidingWindow)
-            lastNDays++;
-
-        // new line
-        String newLine = "\n";
-
-        Transaction transaction = Ebean.beginTransaction();
-
-        // set starting quarter of the day as a variable for sliding window results
-        Ebean.createSqlUpdate("set @startingQuarter = ((hour(CURRENT_TIME()) + 1)  * 4)").execute();
-
-        StringBuilder sb = new StringBuilder(5000);
-        sb.append("select temp.DATE");
-        sb.append(", temp.X as QUARTER_HOUR");
-        sb.append(", coalesce(sum(ms.DROP_COUNT), 0) as sum_dropped");
-        sb.append(", coalesce(sum(ms.FORWARD_COUNT), 0) as sum_forwarded ").append(newLine);
-        sb.append("from (");
-        sb.append("select date,X ");
-        sb.append("from (").append(newLine);
-
-        for (int i = 0; i < lastNDays + 1; i++)
-        {
-            if (i > 0)
-                sb.append("union ");
-
-            sb.append("select CURRENT_DATE() - " + i + " as date from dual").append(newLine);
-        }
-        sb.append(") ").append(newLine);
-        sb.append("cross join (select X from system_range(0,95))").append(newLine);
-        sb.append(") temp").append(newLine);
-
-        sb.append("left ");
-        sb.append("join  MAIL_STATISTICS ms");
-        sb.append("  on  ms.DATE = temp.date ").append(newLine);
-        sb.append(" and ms.quarter_hour = temp.X").append(newLine);
-
-        if (slidingWindow)
-        {
-            sb.append("where ");
-            sb.append("(temp.DATE < CURRENT_DATE()");
-            sb.append(" and temp.X >= @startingQuarter)");
-            sb.append(" or (temp.DATE = CURRENT_DATE()");
-            sb.append(" and temp.X < @startingQuarter)").append(newLine);
-        }
-
-        sb.append("group by temp.DATE, temp.X").append(newLine);
-        sb.append("order by temp.date, temp.X;").append(newLine);
-
-        // System.out.println("==========================================");
-        // System.out.println(sb.toString());
-        // System.out.println("==========================================");
-
-        List<SqlRow> result = Ebean.createSqlQuery(sb.toString()).findList();
-        transaction.commit();
-
-        return result;
-    }
-
-    /**
-     * Reduces a result set by combining consecutive result rows by adding the dropped mail count as well as the
-     * forwarded mail count. The date will be taken from the first row of the the subset
-     * 
-     * @param rowsToCombine
-     *            Number of rows to combine in result
-     * @param statisticsData
-     *            The result set from the database
+     * @param hourlyCounts
+     *            the counts per hour (see {@link MailStatisticsCache#getHourlyCounts(LocalDate)})
+     * @param firstDay
+     *            the day of the first hour
+     * @param firstHour
+     *            the first hour of the first day
+     * @param hours
+     *            the number of hours to add
      * @param outDroppedMails
      *            Out parameter! An empty list of longs
      * @param outForwardedMails
@@ -648,32 +614,18 @@ public class AdminHandler
      * @param outTimestamps
      *            Out parameter! An empty list of timestamps
      */
-    private void reduceStatisticsData(int rowsToCombine, List<SqlRow> statisticsData, List<Long> outDroppedMails,
-                                      List<Long> outForwardedMails, List<Long> outTimestamps)
+    private void addHourlyStatistics(Map<Long, StatisticsEntry> hourlyCounts, LocalDate firstDay, int firstHour,
+                                     int hours, List<Long> outDroppedMails, List<Long> outForwardedMails,
+                                     List<Long> outTimestamps)
     {
-        SqlRow sqlRow;
-        for (int i = 0; i < statisticsData.size(); i += rowsToCombine)
+        for (int hour = firstHour; hour < firstHour + hours; hour++)
         {
-            sqlRow = statisticsData.get(i);
-            Date date = sqlRow.getDate("DATE");
-            int quarterHour = sqlRow.getInteger("QUARTER_HOUR");
-
-            Timestamp timestamp = new Timestamp(date.getTime() + (quarterHour * 15 * 60 * 1000));
-            outTimestamps.add(timestamp.getTime());
+            long timestamp = MailStatisticsHourly.getTimestamp(Date.valueOf(firstDay.plusDays(hour / 24)), hour % 24);
+            StatisticsEntry entry = hourlyCounts.get(timestamp);
 
-            long sumDropped = 0;
-            long sumForwarded = 0;
-
-            for (int h = 0; h < rowsToCombine; h++)
-            {
-                sqlRow = statisticsData.get(i + h);
-
-                sumDropped += sqlRow.getLong("SUM_DROPPED");
-                sumForwarded += sqlRow.getLong("SUM_FORWARDED");
-            }
-            outDroppedMails.add(sumDropped);
-            outForwardedMails.add(sumForwarded);
+            outTimestamps.add(timestamp);
+            outDroppedMails.add(entry == null ? 0L : entry.getDropCount());
+            outForwardedMails.add(entry == null ? 0L : entry.getForwardCount());
         }
-
     }
 }
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import etc.SessionUser;
+import models.User;
+
+/**
+ * Resolves the API tokens of the requests to the API (e.g. /mailbox and /create) to their users. A token which has
+ * been resolved is kept in memory for some seconds, so the following requests with this token need neither the
+ * database nor the caching-server. The token of a user is invalidated when it's replaced or revoked and when the
+ * user's sessions are deleted (e.g. if the user has been deactivated).
+ */
+@Singleton
+public class ApiTokenCache
+{
+    private final SessionNearCache users;
+
+    @Inject
+    public ApiTokenCache(XCMailrConf xcmConfiguration)
+    {
+        users = new SessionNearCache(xcmConfiguration.APITOKEN_CACHE_SIZE, xcmConfiguration.APITOKEN_CACHE_TTL * 1000L);
+    }
+
+    /**
+     * Returns the active user owning the given token.
+     * 
+     * @param apiToken
+     *            the API token
+     * @return the user or <code>null</code> if there's no active user with this token
+     */
+    public SessionUser getUser(String apiToken)
+    {
+        SessionUser user = users.get(apiToken);
+        if (user == null)
+        {
+            final User owner = User.findUserByToken(apiToken);
+            if (owner != null)
+            {
+                user = SessionUser.of(owner);
+                users.put(apiToken, user);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Removes the given token from the cache.
+     * 
+     * @param apiToken
+     *            the API token (may be <code>null</code>)
+     */
+    public void invalidate(String apiToken)
+    {
+        if (apiToken != null)
+        {
+            users.invalidate(apiToken);
+        }
+    }
+}
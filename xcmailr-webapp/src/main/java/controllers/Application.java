@@ -308,7 +308,7 @@ public class Application
 
         // we put the username into the cookie, but use the id of the cookie for authentication
         String sessionKey = context.getSession().getId();
-        cachingSessionHandler.set(sessionKey, xcmConfiguration.COOKIE_EXPIRETIME, loginUser);
+        cachingSessionHandler.setSession(sessionKey, loginUser);
         // set a reverse mapped user-mail -> sessionId-list in the memcached server to handle
         // session-expiration for admin-actions (e.g. if an admin deletes a user that is currently
         // logged-in)
@@ -344,7 +344,7 @@ public class Application
         // remove the session (cachingServer and cookie)
         String sessionKey = context.getSession().getId();
         context.getSession().clear();
-        cachingSessionHandler.delete(sessionKey);
+        cachingSessionHandler.deleteSession(sessionKey);
 
         // show the index-page
         context.getFlashScope().success("logout_Flash_LogOut");
@@ -24,7 +24,6 @@ import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -32,12 +31,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.PatternSyntaxException;
-import java.util.stream.Collectors;
 
 import javax.activation.DataSource;
 import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ByteArrayOutputStream;
@@ -50,6 +52,9 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 
 import com.avaje.ebean.Ebean;
+import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.Junction;
+import com.avaje.ebean.Query;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Inject;
@@ -58,11 +63,14 @@ import com.google.inject.Singleton;
 import conf.XCMailrConf;
 import etc.HelperUtils;
 import etc.MailboxEntry;
+import etc.MailboxFilter;
+import etc.SessionUser;
 import etc.TypeRef;
 import filters.JsonSecureFilter;
 import filters.SecureFilter;
 import models.MBox;
 import models.Mail;
+import models.MailSearchIndex;
 import models.User;
 import ninja.Context;
 import ninja.FilterWith;
@@ -71,6 +79,7 @@ import ninja.Results;
 import ninja.i18n.Messages;
 import ninja.params.Param;
 import ninja.params.PathParam;
+import ninja.servlet.NinjaServletContext;
 import ninja.validation.JSR303Validation;
 import ninja.validation.Validation;
 
@@ -85,6 +94,12 @@ public class BoxHandler
 {
     private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy");
 
+    /**
+     * the properties of a {@link Mail} which are needed to show it (all but the raw content)
+     */
+    private static final String MAIL_PROJECTION_PROPERTIES = "sender, subject, receiveTime, textContent, htmlContent, "
+                                                             + "attachments, uuid";
+
     @Inject
     XCMailrConf xcmConfiguration;
 
@@ -98,7 +113,13 @@ public class BoxHandler
     ObjectMapper objectMapper;
 
     @Inject
-    CachingSessionHandler cachingSessionHandler;
+    ApiTokenCache apiTokenCache;
+
+    @Inject
+    MailboxWaiters mailboxWaiters;
+
+    @Inject
+    MailboxEventStream mailboxEventStream;
 
     /**
      * Opens the empty delete-box-dialog (just rendering the template).
@@ -256,7 +277,7 @@ public class BoxHandler
             return result.render("success", false).render("statusmsg", errorMessage);
         }
         // create the MBox
-        User user = context.getAttribute("user", User.class);
+        User user = HelperUtils.getUser(context);
         addBoxDialogData.setUsr(user);
         addBoxDialogData.resetIdAndCounterFields();
         addBoxDialogData.save();
@@ -293,7 +314,7 @@ public class BoxHandler
             return result.render("success", false);
 
         List<Long> boxIds = getIdListForMap(boxIdMap);
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         int nu = MBox.removeListOfBoxes(user.getId(), boxIds);
         return result.render("count", nu).render("success", nu >= 0);
     }
@@ -327,7 +348,7 @@ public class BoxHandler
             return result.render("success", false);
 
         List<Long> boxIds = getIdListForMap(boxIdMap);
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         int nu = MBox.disableListOfBoxes(user.getId(), boxIds);
         return result.render("count", nu).render("success", nu >= 0);
     }
@@ -361,7 +382,7 @@ public class BoxHandler
             return result.render("success", false);
 
         List<Long> boxIds = getIdListForMap(boxIdMap);
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         int nu = MBox.enableListOfBoxesIfPossible(user.getId(), boxIds);
         return result.render("count", nu).render("success", nu >= 0);
     }
@@ -390,7 +411,7 @@ public class BoxHandler
         }
 
         Result result = Results.json();
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
 
         if (input == null || input.isEmpty())
         {
@@ -436,7 +457,7 @@ public class BoxHandler
             return result.render("success", false);
 
         List<Long> boxIds = getIdListForMap(boxIdMap);
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         int nu = MBox.resetListOfBoxes(user.getId(), boxIds);
         return result.render("count", nu).render("success", nu >= 0);
     }
@@ -454,7 +475,7 @@ public class BoxHandler
     public Result deleteBoxByJson(@PathParam("id") Long boxId, Context context)
     {
         Result result = Results.json();
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         if (MBox.boxToUser(boxId, user.getId()))
         { // deletes the box from DB
             MBox.delete(boxId);
@@ -507,7 +528,7 @@ public class BoxHandler
         }
         // we got the boxID with the POST-Request
         MBox mailBox = MBox.getById(boxId);
-        User usr = context.getAttribute("user", User.class);
+        SessionUser usr = context.getAttribute("user", SessionUser.class);
         if (mailBox == null || !mailBox.belongsTo(usr.getId()))
         { // box does not belong to this user or does not exist
             errorMessage = messages.get("flash_FormError", context, Optional.of(result)).get();
@@ -599,7 +620,7 @@ public class BoxHandler
     public Result expireBoxJson(@PathParam("id") Long boxId, Context context)
     {
         MBox mailBox = MBox.getById(boxId);
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         Result result = Results.json();
         String errorMessage = "";
         if (!mailBox.belongsTo(user.getId()))
@@ -630,7 +651,7 @@ public class BoxHandler
     @FilterWith(JsonSecureFilter.class)
     public Result jsonBox(Context context)
     {
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
 
         Result result = Results.json();
         String searchString = context.getParameter("s", "");
@@ -667,7 +688,7 @@ public class BoxHandler
         Result result = Results.json();
 
         MBox mailBox = MBox.getById(boxId);
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
 
         // check if the mailbox belongs to the current user
         if (!mailBox.belongsTo(user.getId()))
@@ -689,7 +710,7 @@ public class BoxHandler
     @FilterWith(SecureFilter.class)
     public Result showMailsAsTextList(Context context)
     {
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         return Results.contentType("text/plain").render(MBox.getMailsForTxt(user.getId()));
     }
 
@@ -703,7 +724,7 @@ public class BoxHandler
     @FilterWith(SecureFilter.class)
     public Result showActiveMailsAsTextList(Context context)
     {
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         return Results.contentType("text/plain").render(MBox.getActiveMailsForTxt(user.getId()));
     }
 
@@ -726,7 +747,7 @@ public class BoxHandler
         if (boxIdMap == null || boxIdMap.isEmpty())
             return result.render(errorMessage);
 
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
         List<Long> boxes = getIdListForMap(boxIdMap);
 
         return result.render(MBox.getSelectedMailsForTxt(user.getId(), boxes));
@@ -781,7 +802,7 @@ public class BoxHandler
             return Results.badRequest();
 
         // check token
-        final User user = User.findUserByToken(apiToken);
+        final SessionUser user = apiTokenCache.getUser(apiToken);
         if (user == null)
         {
             // there is no user assigned with that api token
@@ -843,7 +864,8 @@ public class BoxHandler
         {
             log.info("Create mailbox " + desiredMailAddress);
             // create the address for the current user
-            new MBox(mailAddressParts[0], mailAddressParts[1], validUntil_ts, false, user).save();
+            new MBox(mailAddressParts[0], mailAddressParts[1], validUntil_ts, false,
+                     Ebean.getReference(User.class, user.getId())).save();
         }
 
         final Map<String, Object> data = new HashMap<>();
@@ -875,7 +897,8 @@ public class BoxHandler
             return Results.badRequest();
 
         log.trace("passed null check");
-        User user = User.findUserByToken(apiToken);
+        // the token authenticates each request on its own, no session is created
+        SessionUser user = apiTokenCache.getUser(apiToken);
 
         if (user == null)
         {
@@ -884,15 +907,6 @@ public class BoxHandler
             return Results.unauthorized();
         }
 
-        // we put the username into the cookie, but use the id of the cookie for authentication
-        String sessionKey = context.getSession().getId();
-        cachingSessionHandler.set(sessionKey, xcmConfiguration.COOKIE_EXPIRETIME, user);
-        // set a reverse mapped user-mail -> sessionId-list in the memcached server to handle
-        // session-expiration for admin-actions (e.g. if an admin deletes a user that is currently
-        // logged-in)
-        cachingSessionHandler.setSessionUser(user, sessionKey, xcmConfiguration.COOKIE_EXPIRETIME);
-        context.getSession().put("username", user.getMail());
-
         String[] mailAddressParts = HelperUtils.splitMailAddress(mailAddress.toLowerCase());
         MBox mailbox = MBox.getByName(mailAddressParts[0], mailAddressParts[1]);
 
@@ -908,57 +922,160 @@ public class BoxHandler
             return Results.badRequest();
         }
 
-        List<MBox> userMailBoxes = new LinkedList<>();
-        userMailBoxes.add(mailbox);
-
-        List<Mail> emails = Ebean.find(Mail.class).where() //
-                                 .eq("mailbox_id", mailbox.getId()) //
-                                 .order("receiveTime")//
-                                 .findList();
-
-        String senderRegex = context.getParameter("from", ".*");
-        String subjectRegex = context.getParameter("subject", ".*");
-        String plainTextRegex = context.getParameter("textContent", ".*");
-        String htmlTextRegex = context.getParameter("htmlContent", ".*");
-        String rawMailRegex = context.getParameter("plainMail", ".*");
-        boolean lastMatch = context.getParameter("lastMatch") != null;
-
-        Pattern senderPattern = null;
-        Pattern subjectPattern = null;
-        Pattern plainTextPattern = null;
-        Pattern htmlTextPattern = null;
-        Pattern rawMailPattern = null;
+        final MailboxFilter filter;
         try
         {
-            senderPattern = Pattern.compile(senderRegex, Pattern.MULTILINE | Pattern.DOTALL);
-            subjectPattern = Pattern.compile(subjectRegex, Pattern.MULTILINE | Pattern.DOTALL);
-            plainTextPattern = Pattern.compile(plainTextRegex, Pattern.MULTILINE | Pattern.DOTALL);
-            htmlTextPattern = Pattern.compile(htmlTextRegex, Pattern.MULTILINE | Pattern.DOTALL);
-            rawMailPattern = Pattern.compile(rawMailRegex, Pattern.MULTILINE | Pattern.DOTALL);
+            filter = new MailboxFilter(context);
         }
         catch (PatternSyntaxException e)
         {
             return Results.badRequest();
         }
+        final boolean lastMatch = context.getParameter("lastMatch") != null;
+        final String formatParameter = context.getParameter("format", "html").toLowerCase();
+        if (!"html".equals(formatParameter) && !"json".equals(formatParameter) && !"plain".equals(formatParameter))
+        {
+            return Results.forbidden();
+        }
+
+        final List<MailboxEntry> entries = findMailboxEntries(mailbox, mailAddress, filter, lastMatch,
+                                                              formatParameter);
+
+        final int wait = Math.min(context.getParameterAsInteger("wait", 0), xcmConfiguration.MAILBOX_MAX_WAIT);
+        if (!entries.isEmpty() || wait <= 0)
+        {
+            return renderMailboxEntries(entries, mailAddress, formatParameter);
+        }
+
+        // there's no matching mail yet, answer the request when a matching mail is received or the time is up
+        context.handleAsync();
+        mailboxWaiters.await(mailbox.getId(), new MailboxWaiters.Waiter()
+        {
+            private List<MailboxEntry> receivedEntries;
+
+            @Override
+            public boolean check(Mail mail)
+            {
+                try
+                {
+                    if (mail != null && !filter.matchesProjection(new MailboxEntry(mailAddress, mail)))
+                    {
+                        return false;
+                    }
+                    receivedEntries = findMailboxEntries(mailbox, mailAddress, filter, lastMatch, formatParameter);
+                    return !receivedEntries.isEmpty();
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void answer()
+            {
+                context.returnResultAsync(renderMailboxEntries(receivedEntries, mailAddress, formatParameter));
+            }
+
+            @Override
+            public void timedOut()
+            {
+                context.returnResultAsync(renderMailboxEntries(new LinkedList<MailboxEntry>(), mailAddress,
+                                                               formatParameter));
+            }
+        }, TimeUnit.SECONDS.toMillis(wait));
+        return Results.async();
+    }
+
+    /**
+     * Streams the mails which are received for the mailboxes of the user with the given API token as Server-Sent
+     * Events. The optional parameter mailAddress restricts the stream to one mailbox. Errors are returned without a
+     * body since there's no page to display.
+     */
+    public Result streamMailboxEvents(@PathParam("token") String apiToken, Context context) throws Exception
+    {
+        if (apiToken == null)
+            return Results.badRequest().render(Result.NO_HTTP_BODY);
+
+        SessionUser user = apiTokenCache.getUser(apiToken);
+        if (user == null)
+        {
+            // there is no user assigned with that api token
+            log.error("Token invalid");
+            return Results.unauthorized().render(Result.NO_HTTP_BODY);
+        }
+
+        Long mailboxId = null;
+        String mailAddress = context.getParameter("mailAddress");
+        if (mailAddress != null)
+        {
+            String[] mailAddressParts = HelperUtils.splitMailAddress(mailAddress.toLowerCase());
+            MBox mailbox = (mailAddressParts.length != 2) ? null
+                                                          : MBox.getByName(mailAddressParts[0], mailAddressParts[1]);
+            if (mailbox == null || !mailbox.belongsTo(user.getId()))
+            {
+                log.info("Mailbox not found: " + mailAddress);
+                return Results.badRequest().render(Result.NO_HTTP_BODY);
+            }
+            mailboxId = mailbox.getId();
+        }
+
+        if (!(context instanceof NinjaServletContext))
+        {
+            log.error("Event-streams require a servlet container");
+            return Results.internalServerError().render(Result.NO_HTTP_BODY);
+        }
+
+        if (mailboxEventStream.isFull(user.getId()))
+        {
+            log.info("Too many event-streams of user " + user.getMail());
+            return Results.status(429).render(Result.NO_HTTP_BODY);
+        }
+
+        // the response stays open, the events are written by the MailboxEventStream
+        context.handleAsync();
+        HttpServletRequest request = ((NinjaServletContext) context).getHttpServletRequest();
+        HttpServletResponse response = ((NinjaServletContext) context).getHttpServletResponse();
+        AsyncContext asyncContext = request.getAsyncContext();
+        asyncContext.setTimeout(0);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.flushBuffer();
+
+        mailboxEventStream.subscribe(user.getId(), apiToken, mailboxId, asyncContext);
+        return Results.async();
+    }
+
+    /**
+     * Loads the mails of the given mailbox which match the given filter, ordered by their receive time.
+     */
+    private List<MailboxEntry> findMailboxEntries(MBox mailbox, String mailAddress, MailboxFilter filter,
+                                                  boolean lastMatch, String formatParameter)
+        throws Exception
+    {
+        // the raw content is only loaded if it's needed
+        String selectedColumns = MAIL_PROJECTION_PROPERTIES;
+        if (filter.needsRawContent() || "plain".equals(formatParameter))
+        {
+            selectedColumns += ", message";
+        }
+        List<Mail> emails = Ebean.find(Mail.class).select(selectedColumns).where() //
+                                 .eq("mailbox_id", mailbox.getId()) //
+                                 .order("receiveTime")//
+                                 .findList();
 
         final List<MailboxEntry> entries = new LinkedList<>();
         for (int i = 0; i < emails.size(); i++)
         {
-            Mail email = emails.get(i);
-
-            MailboxEntry mailboxEntry = new MailboxEntry(mailAddress, email);
-            if (true //
-                && senderPattern.matcher(mailboxEntry.sender).find() //
-                && subjectPattern.matcher(mailboxEntry.subject).find() //
-                && plainTextPattern.matcher(mailboxEntry.textContent).find() //
-                && htmlTextPattern.matcher(mailboxEntry.htmlContent).find() //
-                && rawMailPattern.matcher(mailboxEntry.rawContent).find())
+            MailboxEntry mailboxEntry = new MailboxEntry(mailAddress, emails.get(i));
+            if (filter.matches(mailboxEntry))
             {
                 entries.add(mailboxEntry);
             }
         }
 
-        final String formatParameter = context.getParameter("format", "html").toLowerCase();
         if ((entries.size() > 1 && lastMatch) || "plain".equals(formatParameter))
         {
             // only retrieve the last match, also for plain format since we can not distinct multiple entries in the
@@ -970,11 +1087,16 @@ public class BoxHandler
                 entries.add(lastEntry);
             }
         }
+        return entries;
+    }
 
+    private Result renderMailboxEntries(List<MailboxEntry> entries, String mailAddress, String formatParameter)
+    {
         if ("html".equals(formatParameter))
         {
             // display content embedded in the site
-            return Results.html().render("accountEmails", entries).render("mailaddress", mailAddress);
+            return Results.html().template("/views/BoxHandler/queryMailbox.ftl.html")
+                          .render("accountEmails", entries).render("mailaddress", mailAddress);
         }
         else if ("json".equals(formatParameter))
         {
@@ -982,7 +1104,7 @@ public class BoxHandler
 
             return Results.json().render(entries);
         }
-        else if ("plain".equals(formatParameter))
+        else
         {
             // output plain mail
 
@@ -992,11 +1114,7 @@ public class BoxHandler
                 return Results.badRequest();
             }
 
-            return Results.text().render(entries.get(0).rawContent);
-        }
-        else
-        {
-            return Results.forbidden();
+            return Results.ok().contentType("text/plain").renderRaw(entries.get(0).rawContent());
         }
     }
 
@@ -1021,41 +1139,31 @@ public class BoxHandler
             sort = getOrderColumn(sort);
             order = getOrderDirection(order);
 
-            User user = context.getAttribute("user", User.class);
-            List<MBox> mailboxes = user.getBoxes();
-            List<Long> mailboxIds = mailboxes.stream().map(mbox -> mbox.getId()).collect(Collectors.toList());
+            SessionUser user = context.getAttribute("user", SessionUser.class);
 
-            final List<Mail> mails = Ebean.find(Mail.class).where().in("mailbox_id", mailboxIds)
-                                          .orderBy(sort + " " + order).findList();
-
-            final List<MailboxEntry> matches = new ArrayList<>();
-
-            // there is a searchphrase. prefilter the results
-            // apparent we can't do this in the db since messages are stored encoded
-
-            for (Mail mail : mails)
+            // count and page in the database, only the visible mails are loaded
+            final Query<Mail> query = Ebean.find(Mail.class).select(MAIL_PROJECTION_PROPERTIES)
+                                           .fetch("mailbox", "address, domain");
+            final ExpressionList<Mail> where = query.where().eq("mailbox.usr.id", user.getId());
+            if (StringUtils.isNotBlank(search))
             {
-                MailboxEntry mailboxEntry = new MailboxEntry(mail.getMailbox().getFullAddress(), mail);
-
-                if (StringUtils.isBlank(search) || mailboxEntry.matchesSearchPhrase(search))
-                {
-                    matches.add(mailboxEntry);
-                }
+                addSearchPhrase(where, search.trim());
             }
+            final int total = query.findRowCount();
 
-            final int nbMatches = matches.size();
-            final List<MailboxEntry> result;
-            if (iOffset >= nbMatches || iLimit == 0)
+            final List<MailboxEntry> result = new ArrayList<>();
+            if (iOffset < total && iLimit > 0)
             {
-                result = Collections.emptyList();
-            }
-            else
-            {
-                result = matches.subList(iOffset, Math.min(iOffset + iLimit, nbMatches));
+                // order by id as well to get a stable order for mails received at the same time
+                final List<Mail> mails = query.orderBy(sort + " " + order + ", id " + order).setFirstRow(iOffset)
+                                              .setMaxRows(iLimit).findList();
+                for (Mail mail : mails)
+                {
+                    result.add(new MailboxEntry(mail.getMailbox().getFullAddress(), mail));
+                }
             }
 
-            System.err.println("result: " + result);
-            return Results.json().render("rows", result).render("total", mails.size());
+            return Results.json().render("rows", result).render("total", total);
         }
         else
         {
@@ -1063,9 +1171,46 @@ public class BoxHandler
         }
     }
 
+    /**
+     * Restricts the given mail-query to the mails which contain the given phrase (case-insensitive) in the address of
+     * their mailbox, the sender, the subject or the content. The sender, subject and content are searched by the
+     * {@link MailSearchIndex} if it's available, the mailbox-address is always matched as substring, so a part of the
+     * address finds the mails either way.
+     *
+     * @param where
+     *            the mail-query
+     * @param phrase
+     *            the search-phrase
+     */
+    private void addSearchPhrase(ExpressionList<Mail> where, String phrase)
+    {
+        Junction<Mail> matches = where.disjunction();
+        final int at = phrase.indexOf('@');
+        if (at < 0)
+        {
+            matches.icontains("mailbox.address", phrase).icontains("mailbox.domain", phrase);
+        }
+        else if (at == phrase.lastIndexOf('@'))
+        {
+            // the phrase spans both parts of the mail-address
+            matches.conjunction().iendsWith("mailbox.address", phrase.substring(0, at))
+                   .istartsWith("mailbox.domain", phrase.substring(at + 1)).endJunction();
+        }
+        if (MailSearchIndex.isAvailable())
+        {
+            MailSearchIndex.restrict(matches, phrase);
+        }
+        else
+        {
+            matches.icontains("sender", phrase).icontains("subject", phrase).icontains("textContent", phrase)
+                   .icontains("htmlContent", phrase);
+        }
+        matches.endJunction();
+    }
+
     private String getOrderColumn(String orderBy)
     {
-        return ("subject".equals(orderBy) || "sender".equals(orderBy)) ? orderBy : "receive_time";
+        return ("subject".equals(orderBy) || "sender".equals(orderBy)) ? orderBy : "receiveTime";
     }
 
     private String getOrderDirection(String orderBy)
@@ -1086,7 +1231,8 @@ public class BoxHandler
         }
         Mail mail = foundMails.get(0);
 
-        MimeMessage mimeMessage = MimeMessageUtils.createMimeMessage(null, mail.getMessage());
+        MimeMessage mimeMessage = MimeMessageUtils.createMimeMessage(null,
+                                                                     new SharedByteArrayInputStream(mail.getMessage()));
         MimeMessageParser mimeMessageParser = new MimeMessageParser(mimeMessage);
         mimeMessageParser.parse();
 
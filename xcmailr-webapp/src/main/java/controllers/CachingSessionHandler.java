@@ -16,9 +16,10 @@
  */
 package controllers;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map.Entry;
 
+import etc.SessionUser;
 import models.User;
 import ninja.cache.NinjaCache;
 
@@ -31,6 +32,15 @@ import conf.XCMailrConf;
 
 /**
  * Handles all actions that belong to the Caching-Server. This is almost a Wrapper-Class for the NinjaCache.
+ * <p>
+ * The users of the sessions are kept in a local {@link SessionNearCache} for some seconds too, so the requests of a
+ * page don't need a round-trip to the caching-server each (see {@link #getSessionUser(String)}). Each change of a
+ * cached entry made by this handler invalidates the local copy.
+ * </p>
+ * <p>
+ * The sessions of each user are stored in a {@link SessionIndex} under the user's mail-address. Each change of an
+ * index is made while holding a lock of this node, so concurrent logins of a user don't lose sessions.
+ * </p>
  * 
  * @author Patrick Thum, Xceptance Software Technologies GmbH, Germany
  */
@@ -38,15 +48,40 @@ import conf.XCMailrConf;
 public class CachingSessionHandler
 {
 
-    @Inject
     XCMailrConf xcmConf;
 
-    @Inject
     NinjaCache ninjaCache;
 
-    @Inject
     Logger log;
 
+    private final SessionNearCache nearCache;
+
+    private final ApiTokenCache apiTokenCache;
+
+    private final MailboxEventStream mailboxEventStream;
+
+    /**
+     * the locks of the session indexes, an index is read, changed and written back while holding the lock its address
+     * maps to
+     */
+    private final Object[] indexLocks = new Object[64];
+
+    @Inject
+    public CachingSessionHandler(XCMailrConf xcmConf, NinjaCache ninjaCache, ApiTokenCache apiTokenCache,
+                                 MailboxEventStream mailboxEventStream, Logger log)
+    {
+        this.apiTokenCache = apiTokenCache;
+        this.mailboxEventStream = mailboxEventStream;
+        this.xcmConf = xcmConf;
+        this.ninjaCache = ninjaCache;
+        this.log = log;
+        nearCache = new SessionNearCache(xcmConf.SESSION_NEAR_CACHE_SIZE, xcmConf.SESSION_NEAR_CACHE_TTL * 1000L);
+        for (int i = 0; i < indexLocks.length; i++)
+        {
+            indexLocks[i] = new Object();
+        }
+    }
+
     /**
      * Sets a new Object to the caching-server
      * 
@@ -59,16 +94,19 @@ public class CachingSessionHandler
      */
     void set(String key, int timeToLive, final Object object)
     {
+        nearCache.invalidate(key);
         ninjaCache.safeSet(xcmConf.APP_NAME + key, object, timeToLive + "s");
     }
 
     void replace(String key, int timeToLive, final Object object)
     {
+        nearCache.invalidate(key);
         ninjaCache.safeReplace(xcmConf.APP_NAME + key, object, timeToLive + "s");
     }
 
     /**
-     * Sets the session to an user-mail in the caching-server
+     * Sets the session to an user-mail in the caching-server. If the user has more than
+     * application.session.maxperuser sessions, the oldest ones are deleted.
      * 
      * @param user
      *            the user-object
@@ -79,51 +117,75 @@ public class CachingSessionHandler
      */
     public void setSessionUser(final User user, String sessionId, int timeToLive)
     {
-        @SuppressWarnings("unchecked")
-        List<String> sessions = (List<String>) get(user.getMail());
-        // if there's no list, create a new one and add the session
-        if (sessions == null)
+        final long now = System.currentTimeMillis();
+        final List<String> evicted;
+        synchronized (getIndexLock(user.getMail()))
         {
-            sessions = new LinkedList<String>();
-            // set it to the caching-server
-            set(user.getMail(), timeToLive, sessions);
+            final SessionIndex index = getIndex(user.getMail(), now);
+            evicted = index.add(sessionId, now + timeToLive * 1000L, now, xcmConf.SESSION_MAX_PER_USER);
+            setIndex(user.getMail(), index, now);
         }
-        // if the session is not already stored in the list, add it
-        if (!sessions.contains(sessionId))
+        for (String sessionKey : evicted)
         {
-            sessions.add(sessionId);
-            replace(user.getMail(), timeToLive, sessions);
+            delete(sessionKey);
         }
     }
 
     /**
-     * deletes all session mappings and user-email mappings of this specified user
+     * deletes all session mappings and user-email mappings of this specified user, its API token is removed from the
+     * {@link ApiTokenCache} and its event-streams are closed too
      * 
      * @param user
      *            the user object
      */
     public void deleteUsersSessions(final User user)
     {
-        @SuppressWarnings("unchecked")
-        // get the sessions of this user
-        List<String> sessions = (List<String>) get(user.getMail());
-
-        if (sessions != null)
-        { // delete the sessionKeys of this user at caching-server
-            for (String sessionKey : sessions)
+        synchronized (getIndexLock(user.getMail()))
+        {
+            // get the sessions of this user
+            final SessionIndex index = getIndex(user.getMail(), System.currentTimeMillis());
+            // delete the sessionKeys of this user at caching-server
+            for (String sessionKey : index.getSessions().keySet())
             {
                 delete(sessionKey);
             }
+            // delete the sessionlist of this user
+            delete(user.getMail());
         }
-        // delete the sessionlist of this user
-        delete(user.getMail());
+        apiTokenCache.invalidate(user.getApiToken());
+        mailboxEventStream.closeUser(user.getId());
     }
 
     /**
-     * Updates the user-object for all sessions of this user.
+     * Deletes a session and removes it from the sessions of its user.
+     * 
+     * @param sessionId
+     *            the session-id
+     */
+    public void deleteSession(String sessionId)
+    {
+        final SessionUser user = getSessionUser(sessionId);
+        delete(sessionId);
+        if (user == null)
+        {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (getIndexLock(user.getMail()))
+        {
+            final SessionIndex index = getIndex(user.getMail(), now);
+            if (index.remove(sessionId))
+            {
+                setIndex(user.getMail(), index, now);
+            }
+        }
+    }
+
+    /**
+     * Updates the user-object for all sessions of this user. The sessions keep their expiration time.
      * <p>
-     * <b>WARNING:</b> if the email has been changed, use {@link #updateUsersSessions(User)} to change the user-session
-     * mapping too
+     * <b>WARNING:</b> if the email has been changed, use {@link #updateUsersSessionsOnChangedMail(String, String)} to
+     * change the user-session mapping too
      * </p>
      * 
      * @param user
@@ -131,18 +193,21 @@ public class CachingSessionHandler
      */
     public void updateUsersSessions(final User user)
     {
-        @SuppressWarnings("unchecked")
-        // get the sessions of this user
-        List<String> sessions = (List<String>) get(user.getMail());
-        if (sessions == null)
-            return;
-        // update all sessions of this user at memCached
-        for (String sessionKey : sessions)
+        final SessionUser sessionUser = SessionUser.of(user);
+        final long now = System.currentTimeMillis();
+        synchronized (getIndexLock(user.getMail()))
         {
-            // replace all user-objects for all sessions
-            replace(sessionKey, xcmConf.COOKIE_EXPIRETIME, user);
+            // get the sessions of this user
+            final SessionIndex index = getIndex(user.getMail(), now);
+            index.prune(now);
+            // update all sessions of this user at memCached
+            for (Entry<String, Long> session : index.getSessions().entrySet())
+            {
+                // replace all user-objects for all sessions
+                final int timeToLive = (int) ((session.getValue() - now + 999) / 1000);
+                replace(session.getKey(), timeToLive, sessionUser);
+            }
         }
-
     }
 
     /**
@@ -155,36 +220,78 @@ public class CachingSessionHandler
      */
     public void updateUsersSessionsOnChangedMail(String oldEmail, String newEmail)
     {
-        @SuppressWarnings("unchecked")
-        // get the sessions of this user with the old address
-        List<String> oldAddressSessions = (List<String>) get(oldEmail);
-
-        // get the sessions of this user with the new address (if there are some existing)
-        @SuppressWarnings("unchecked")
-        List<String> newAddressSessions = (List<String>) get(newEmail);
-
-        if (oldAddressSessions != null)
-        { // there is at least one session with the old address
-          // check if a session with the new address exists
-            if (newAddressSessions != null)
+        final long now = System.currentTimeMillis();
+        final List<String> evicted;
+        // take the locks of both addresses in the same order everywhere
+        final int oldLock = getIndexLockNumber(oldEmail);
+        final int newLock = getIndexLockNumber(newEmail);
+        synchronized (indexLocks[Math.min(oldLock, newLock)])
+        {
+            synchronized (indexLocks[Math.max(oldLock, newLock)])
             {
-                // add the old session-ids to the new
-                newAddressSessions.addAll(oldAddressSessions);
-                // replace the existing new session-object with the updated one
-                replace(newEmail, xcmConf.COOKIE_EXPIRETIME, newAddressSessions);
-
+                // get the sessions of this user with the old address
+                final SessionIndex oldAddressSessions = getIndex(oldEmail, now);
+                if (oldAddressSessions.isEmpty())
+                { // there's no session -> do nothing
+                    return;
+                }
+                // add the old session-ids to the ones of the new address (if there are some existing)
+                final SessionIndex newAddressSessions = getIndex(newEmail, now);
+                evicted = newAddressSessions.addAll(oldAddressSessions, now, xcmConf.SESSION_MAX_PER_USER);
+                setIndex(newEmail, newAddressSessions, now);
+                // delete the session entries for the old email
+                delete(oldEmail);
             }
-            else
-            { // no new session-> create a new mapping for the new address
-                set(newEmail, xcmConf.COOKIE_EXPIRETIME, oldAddressSessions);
+        }
+        for (String sessionKey : evicted)
+        {
+            delete(sessionKey);
+        }
+    }
+
+    /**
+     * Returns the sessions stored for the given address, an index which has been stored by an older version as list
+     * of session-ids is converted.
+     */
+    private SessionIndex getIndex(String mail, long now)
+    {
+        final Object value = get(mail);
+        if (value instanceof SessionIndex)
+        {
+            return (SessionIndex) value;
+        }
+        final SessionIndex index = new SessionIndex();
+        if (value instanceof List)
+        {
+            for (Object sessionId : (List<?>) value)
+            {
+                index.add((String) sessionId, now + xcmConf.COOKIE_EXPIRETIME * 1000L, now, Integer.MAX_VALUE);
             }
-            // delete the session entries for the old email
-            delete(oldEmail);
         }
-        else
-        { // there's no session -> do nothing
+        return index;
+    }
 
+    /**
+     * Stores the sessions of the given address until the last of them expires.
+     */
+    private void setIndex(String mail, SessionIndex index, long now)
+    {
+        if (index.isEmpty())
+        {
+            delete(mail);
+            return;
         }
+        set(mail, (int) ((index.getLastExpiration() - now + 999) / 1000), index);
+    }
+
+    private int getIndexLockNumber(String mail)
+    {
+        return (mail.hashCode() & Integer.MAX_VALUE) % indexLocks.length;
+    }
+
+    private Object getIndexLock(String mail)
+    {
+        return indexLocks[getIndexLockNumber(mail)];
     }
 
     /**
@@ -199,6 +306,44 @@ public class CachingSessionHandler
         return ninjaCache.get(xcmConf.APP_NAME + key);
     }
 
+    /**
+     * Sets the user of a session in the caching-server.
+     * 
+     * @param sessionId
+     *            the session-id
+     * @param user
+     *            the user-object
+     */
+    public void setSession(String sessionId, final User user)
+    {
+        set(sessionId, xcmConf.COOKIE_EXPIRETIME, SessionUser.of(user));
+    }
+
+    /**
+     * Returns the user of the given session or <code>null</code> if the session doesn't exist. The user is taken from
+     * the local near-cache if it has been read recently, so it may be some seconds older than the one at the
+     * caching-server if it has been changed by another node.
+     * 
+     * @param sessionId
+     *            the session-id
+     * @return the principal of the session
+     */
+    public SessionUser getSessionUser(String sessionId)
+    {
+        SessionUser user = nearCache.get(sessionId);
+        if (user == null)
+        {
+            // sessions which have been stored by an older version hold the whole user entity
+            final Object value = get(sessionId);
+            if (value instanceof SessionUser)
+            {
+                user = (SessionUser) value;
+                nearCache.put(sessionId, user);
+            }
+        }
+        return user;
+    }
+
     /**
      * Deletes the object to the given key.
      * 
@@ -207,6 +352,7 @@ public class CachingSessionHandler
      */
     void delete(String key)
     {
+        nearCache.invalidate(key);
         ninjaCache.safeDelete(xcmConf.APP_NAME + key);
     }
 }
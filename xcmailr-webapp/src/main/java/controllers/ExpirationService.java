@@ -1,15 +1,13 @@
 package controllers;
 
-import java.sql.Date;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -24,62 +22,213 @@ import models.Mail;
 import models.MailStatistics;
 import models.MailStatisticsKey;
 import models.MailTransaction;
+import models.MailboxExpiryScheduler;
 import models.User;
 
-public class ExpirationService implements Runnable
+/**
+ * The maintenance jobs of XCMailr: the expiration of mailboxes, mails and API tokens, the persistence of the mail
+ * transactions and statistics and the cleanup of old transactions. Each job is scheduled on its own by the
+ * {@link JobController} (see {@link #getJobs()}), so a slow or failing job doesn't delay the others.
+ */
+public class ExpirationService
 {
     Logger log = LoggerFactory.getLogger(ExpirationService.class);
 
-    private ConcurrentLinkedQueue<MailTransaction> mtxQueue;
-
-    private boolean deleteTransactions;
+    private MailTransactionBuffer mtxQueue;
 
     private XCMailrConf xcmConfiguration;
 
-    public ExpirationService(ConcurrentLinkedQueue<MailTransaction> mtxQueue, boolean deleteTransactions,
-        XCMailrConf xcmConfiguration)
+    private final List<ScheduledJob> jobs = new ArrayList<ScheduledJob>();
+
+    private MailStatisticsCounter statisticsCounter;
+
+    private MailStatisticsCache statisticsCache;
+
+    private final ApiTokenCache apiTokenCache;
+
+    private final AtomicLong expiredMailboxes = new AtomicLong();
+
+    private volatile int lastExpiredMailboxes;
+
+    private final AtomicLong deletedMails = new AtomicLong();
+
+    private final AtomicLong deletedChunks = new AtomicLong();
+
+    private volatile int lastRetentionDeleted;
+
+    private volatile long lastRetentionDuration;
+
+    public ExpirationService(MailTransactionBuffer mtxQueue, MailStatisticsCounter statisticsCounter,
+        MailStatisticsCache statisticsCache, boolean deleteTransactions, XCMailrConf xcmConfiguration,
+        ApiTokenCache apiTokenCache)
     {
         log.info("ExpirationService initialized");
         this.xcmConfiguration = xcmConfiguration;
         this.mtxQueue = mtxQueue;
-        this.deleteTransactions = deleteTransactions;
+        this.statisticsCounter = statisticsCounter;
+        this.statisticsCache = statisticsCache;
+        this.apiTokenCache = apiTokenCache;
+
+        final int budget = xcmConfiguration.JOB_BUDGET;
+        jobs.add(new ScheduledJob("mailboxExpiration", xcmConfiguration.MB_INTERVAL * 60, budget)
+        {
+            @Override
+            protected int execute()
+            {
+                // disable expired mail-addresses which have been missed by the MailboxExpiryScheduler
+                return expireMailboxes(System.currentTimeMillis());
+            }
+        });
+        jobs.add(new ScheduledJob("mailRetention", xcmConfiguration.MAIL_RETENTION_INTERVAL, budget)
+        {
+            @Override
+            protected int execute()
+            {
+                // delete expired mails in chunks, without loading them
+                long olderThanRetentionPolicy = System.currentTimeMillis()
+                                                - (xcmConfiguration.MAIL_RETENTION_PERIOD * 60 * 1000);
+                return deleteExpiredMails(olderThanRetentionPolicy, getDeadline());
+            }
+        });
+        jobs.add(new ScheduledJob("apiTokenExpiration", xcmConfiguration.APITOKEN_EXPIRATION_INTERVAL, budget)
+        {
+            @Override
+            protected int execute()
+            {
+                return expireApiTokens(getDeadline());
+            }
+        });
+        jobs.add(new ScheduledJob("mailTransactions", xcmConfiguration.MTX_INTERVAL, budget)
+        {
+            @Override
+            protected int execute()
+            {
+                return processMailTransactions(getDeadline());
+            }
+        });
+        jobs.add(new ScheduledJob("mailStatistics", xcmConfiguration.STATISTICS_INTERVAL, budget)
+        {
+            @Override
+            protected int execute()
+            {
+                return writeMailStatistics();
+            }
+        });
+        if (deleteTransactions)
+        { // execute only if a value has been set
+            jobs.add(new ScheduledJob("mailTransactionCleanup", xcmConfiguration.MTX_CLEANUP_INTERVAL, budget)
+            {
+                @Override
+                protected int execute()
+                {
+                    return deleteOldTransactions();
+                }
+            });
+        }
     }
 
-    @Override
-    public void run()
+    /**
+     * @return the jobs to schedule
+     */
+    public List<ScheduledJob> getJobs()
     {
-        log.info("Emailaddress Expiration Task run");
+        return Collections.unmodifiableList(jobs);
+    }
 
-        // get the number of MBox-Elements that will expire in the next "MB_INT"-minutes
-        List<MBox> expiringMailBoxesList = MBox.getNextBoxes(xcmConfiguration.MB_INTERVAL);
-        ListIterator<MBox> mailBoxIterator = expiringMailBoxesList.listIterator();
+    /**
+     * @return the metrics of the jobs keyed by their name
+     */
+    public Map<String, Map<String, Number>> getJobMetrics()
+    {
+        Map<String, Map<String, Number>> metrics = new LinkedHashMap<String, Map<String, Number>>();
+        for (ScheduledJob job : jobs)
+        {
+            metrics.put(job.getName(), job.getMetrics());
+        }
+        return metrics;
+    }
 
-        DateTime dt = new DateTime();
-        MBox mailBox;
-        // disable expired mail-addresses
-        while (mailBoxIterator.hasNext())
+    /**
+     * Expires the mailboxes whose ts_Active has been reached with a single statement. Usually the boxes have been
+     * expired at their deadline already (see {@link MailboxExpiryScheduler}), this catches the remaining ones.
+     * 
+     * @param now
+     *            the current timestamp (in milliseconds)
+     * @return the number of expired boxes
+     */
+    int expireMailboxes(long now)
+    {
+        final List<Long> boxIds = MBox.expireBoxes(now);
+        expiredMailboxes.addAndGet(boxIds.size());
+        lastExpiredMailboxes = boxIds.size();
+        if (!boxIds.isEmpty())
         {
-            mailBox = mailBoxIterator.next();
-            if (dt.isAfter(mailBox.getTs_Active()) && (mailBox.getTs_Active() != 0))
-            { // this element is now expired
-                mailBox.disable();
-                log.debug("Mailbox '{}' expired",mailBox.getFullAddress());
-            }
+            log.info("Expired {} mailboxes", boxIds.size());
+            log.debug("Expired mailboxes: {}", boxIds);
         }
+        return boxIds.size();
+    }
 
-        // delete expired mails
-        long olderThanRetentionPolicy = System.currentTimeMillis()
-                                        - (xcmConfiguration.MAIL_RETENTION_PERIOD * 60 * 1000);
-        List<Mail> findList = Ebean.find(Mail.class).where().lt("receiveTime", olderThanRetentionPolicy).findList();
+    /**
+     * Deletes the mails which have been received before the given time in chunks of mbox.mail.deletechunksize mails,
+     * each chunk in its own short transaction.
+     * 
+     * @param receivedBefore
+     *            the timestamp (in milliseconds)
+     * @return the number of deleted mails
+     */
+    int deleteExpiredMails(long receivedBefore)
+    {
+        return deleteExpiredMails(receivedBefore, Long.MAX_VALUE);
+    }
 
-        if (findList.size() > 0)
+    /**
+     * Deletes the mails which have been received before the given time in chunks of mbox.mail.deletechunksize mails
+     * until all of them have been deleted or the given deadline has passed.
+     * 
+     * @param receivedBefore
+     *            the timestamp (in milliseconds)
+     * @param deadline
+     *            the time (in milliseconds) to stop after the current chunk
+     * @return the number of deleted mails
+     */
+    int deleteExpiredMails(long receivedBefore, long deadline)
+    {
+        final long start = System.currentTimeMillis();
+        final int chunkSize = xcmConfiguration.MAIL_DELETE_CHUNK_SIZE;
+        int deleted = 0;
+        int chunks = 0;
+        int count;
+        do
         {
-            findList.forEach((mail) -> {
-                mail.delete();
-            });
-            log.info("Removed {} expired mails", findList.size());
+            count = Mail.deleteReceivedBefore(receivedBefore, chunkSize);
+            deleted += count;
+            chunks++;
+            log.debug("Removed {} expired mails so far", deleted);
+        }
+        while (count >= chunkSize && System.currentTimeMillis() < deadline);
+
+        final long duration = System.currentTimeMillis() - start;
+        deletedMails.addAndGet(deleted);
+        deletedChunks.addAndGet(chunks);
+        lastRetentionDeleted = deleted;
+        lastRetentionDuration = duration;
+        if (deleted > 0)
+        {
+            log.info("Removed " + deleted + " expired mails in " + chunks + " chunks (" + duration + " ms)");
         }
+        return deleted;
+    }
 
+    /**
+     * Removes the API tokens which are older than application.api.tokenexpirationtime days.
+     * 
+     * @param deadline
+     *            the time (in milliseconds) to stop at, the remaining tokens are removed by the next run
+     * @return the number of removed tokens
+     */
+    int expireApiTokens(long deadline)
+    {
         // set token expiration
         Calendar tokenExpiration = Calendar.getInstance();
         tokenExpiration.add(Calendar.DAY_OF_MONTH, -1 * xcmConfiguration.APITOKEN_EXPIRATION);
@@ -90,160 +239,126 @@ public class ExpirationService implements Runnable
                                                     tokenExpiration.getTimeInMillis())
                                            .findList();
 
-        expiredUserToken.forEach((user) -> {
+        int count = 0;
+        for (User user : expiredUserToken)
+        {
+            if (System.currentTimeMillis() >= deadline)
+            {
+                break;
+            }
+            final String expiredToken = user.getApiToken();
             user.setApiToken(null);
             user.setApiTokenCreationTimestamp(0);
             user.save();
+            apiTokenCache.invalidate(expiredToken);
             log.info("User API token expired for '{}'", user.getMail());
-        });
-
-        // add the new Mailtransactions
-        final List<MailTransaction> mtxToSave = new LinkedList<MailTransaction>();
+            count++;
+        }
+        return count;
+    }
 
-        final Map<MailStatisticsKey, StatisticsEntry> statistics = new HashMap<>();
+    /**
+     * Takes the transactions from the queue in chunks of mailtransaction.batchsize transactions. The transactions of
+     * dropped and forwarded mails are counted by the {@link MailStatisticsCounter} (they are written by
+     * {@link #writeMailStatistics()}), all others are stored in the database with one batch per chunk. Full chunks
+     * are written back-to-back until the queue is empty or the given deadline has passed.
+     * 
+     * @param deadline
+     *            the time (in milliseconds) to stop taking transactions from the queue at
+     * @return the number of processed transactions
+     */
+    int processMailTransactions(long deadline)
+    {
+        final int batchSize = xcmConfiguration.MTX_BATCH_SIZE;
+        final List<MailTransaction> mtxToSave = new ArrayList<MailTransaction>(batchSize);
 
-        // add all transactions from the queue to a list
-        MailTransaction mt;
+        MailTransaction mt = null;
+        int count = 0;
+        int saved = 0;
         log.info("Start processing mail transaction queue [size: {}]", mtxQueue.size());
-        while ((mt = mtxQueue.poll()) != null)
+        do
         {
-            final int status = mt.getStatus();
-            // mails will be silently dropped if there is no forward address but target address domain is
-            // configured to be valid / handled
-            if (status == 100 || status == 300)
+            // take the next chunk from the queue
+            int chunk = 0;
+            while (chunk < batchSize && (mt = mtxQueue.poll()) != null)
             {
-                final MailStatisticsKey mailStatisticsKey = createMailStatisticsKey(mt);
-                if (mailStatisticsKey != null)
+                chunk++;
+                // mails will be silently dropped if there is no forward address but target address domain is
+                // configured to be valid / handled, these are only counted
+                if (!statisticsCounter.count(mt))
                 {
-                    StatisticsEntry mailStats = statistics.get(mailStatisticsKey);
-                    if (mailStats == null)
-                    {
-                        mailStats = new StatisticsEntry();
-                        statistics.put(mailStatisticsKey, mailStats);
-                    }
-
-                    if (status == 100)
-                    {
-                        mailStats.incrementDropCount();
-                    }
-                    else if (status == 300)
-                    {
-                        mailStats.incrementForwardCount();
-                    }
+                    mtxToSave.add(mt);
                 }
             }
-            else
-            {
-                mtxToSave.add(mt);
-            }
-        }
-        log.info("Finished processing mail transaction queue [size: {}]", mtxQueue.size());
-
-        try
-        {
-            log.info("Write mail statistics to DB [size: {}]", statistics.size());
+            count += chunk;
 
-            for (Entry<MailStatisticsKey, StatisticsEntry> statisticEntry : statistics.entrySet())
-            {
-                MailStatisticsKey mailStatisticsKey = statisticEntry.getKey();
-                int additionalMailDropCount = statisticEntry.getValue().getDropCount();
-                int additionalMailForwardCount = statisticEntry.getValue().getForwardCount();
-
-                MailStatistics entry = Ebean.find(MailStatistics.class).where() //
-                                            .eq("DATE", mailStatisticsKey.getDate()) //
-                                            .eq("QUARTER_HOUR", mailStatisticsKey.getQuarterHour()) //
-                                            .eq("FROM_DOMAIN", mailStatisticsKey.getFromDomain()) //
-                                            .eq("TARGET_DOMAIN", mailStatisticsKey.getTargetDomain()) //
-                                            .findUnique();
-
-                if (entry == null)
-                {
-                    // there is no entry, we need to create a new ones
-                    MailStatistics mailStatisticEntry = new MailStatistics();
-                    mailStatisticEntry.setKey(mailStatisticsKey);
-                    mailStatisticEntry.setDropCount(additionalMailDropCount);
-                    mailStatisticEntry.setForwardCount(additionalMailForwardCount);
-
-                    try
-                    {
-                        Ebean.save(mailStatisticEntry);
-                    }
-                    catch (Exception e)
-                    {
-                        log.error("Couldn't create new message statistics entry: " + statisticEntry.toString(), e);
-                    }
-                }
-                else
-                {
-                    entry.setDropCount(entry.getDropCount() + additionalMailDropCount);
-                    entry.setForwardCount(entry.getForwardCount() + additionalMailForwardCount);
-                    Ebean.update(entry);
-                }
-            }
-            log.info("Finished writing mail statistics to DB");
-        }
-        catch (Exception e)
-        {
-            log.error("Error while persisting mail statistics", e);
-        }
-
-        // and save all entries of this list in one transaction to the list
-        MailTransaction.saveMultipleTx(mtxToSave);
-        log.info("Stored {} entries in the database", mtxToSave.size());
-
-        // remove old MailTransactions
-        if (deleteTransactions)
-        { // execute only if a value has been set
-            log.debug("Cleanup Mailtransaction-list");
-            long removalTS = dt.minusHours(xcmConfiguration.MTX_MAX_AGE).getMillis();
-
-            MailTransaction.deleteTxInPeriod(removalTS);
-            log.debug("Finished Mailtransaction cleanup");
+            // and save all entries of this chunk with one batch
+            MailTransaction.saveMultipleTx(mtxToSave);
+            saved += mtxToSave.size();
+            mtxToSave.clear();
         }
+        while (mt != null && System.currentTimeMillis() < deadline);
+        log.info("Finished processing mail transaction queue [size: {}]", mtxQueue.size());
 
+        log.info("Stored {} entries in the database", saved);
+        return count;
     }
 
-    private MailStatisticsKey createMailStatisticsKey(MailTransaction mt)
+    /**
+     * Adds the counted mails to the statistics and their rollups in the database with one batch of upserts per table
+     * and refreshes the {@link MailStatisticsCache}. If that fails, the counts are kept for the next run.
+     * 
+     * @return the number of written statistics entries
+     */
+    int writeMailStatistics()
     {
-        final String targetDomain = getDomainOfEmail(mt.getRelayaddr());
-        if (targetDomain == null)
-        {
-            return null;
-        }
-
-        final String sourceDomain = getDomainOfEmail(mt.getSourceaddr());
-        final Date mailDate = new Date(mt.getTs());
-        final int quarterHourOfDay = getQuarterHour(mt.getTs());
-
-        return new MailStatisticsKey(mailDate, quarterHourOfDay, sourceDomain, targetDomain);
+        final Map<MailStatisticsKey, StatisticsEntry> statistics = statisticsCounter.drain();
 
-    }
-
-    private String getDomainOfEmail(String email)
-    {
-        if (email == null || email.trim().length() == 0)
+        log.info("Write mail statistics to DB [size: {}]", statistics.size());
+        try
         {
-            return null;
+            MailStatistics.addCounts(statistics);
         }
-
-        String[] split = email.split("\\@");
-        if (split.length != 2)
+        catch (RuntimeException e)
         {
-            return null;
+            statisticsCounter.restore(statistics);
+            throw e;
         }
-
-        return split[1];
+        statisticsCache.refresh();
+        log.info("Finished writing mail statistics to DB");
+        return statistics.size();
     }
 
-    private int getQuarterHour(long timestamp)
+    /**
+     * Removes the transactions which are older than mailtransaction.maxage hours.
+     * 
+     * @return the number of removed transactions
+     */
+    int deleteOldTransactions()
     {
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(timestamp);
+        log.debug("Cleanup Mailtransaction-list");
+        long removalTS = new DateTime().minusHours(xcmConfiguration.MTX_MAX_AGE).getMillis();
 
-        int currentQuarterHour = calendar.get(Calendar.HOUR_OF_DAY) * 4;
-        currentQuarterHour += (calendar.get(Calendar.MINUTE) / 15);
-
-        return currentQuarterHour;
+        int count = MailTransaction.deleteTxInPeriod(removalTS);
+        log.debug("Finished Mailtransaction cleanup");
+        return count;
     }
 
+    /**
+     * @return the progress of the expiration and retention cleanup (expired mailboxes, deleted mails and chunks
+     *         overall, expired mailboxes, deleted mails and duration of the last run)
+     */
+    public Map<String, Number> getRetentionMetrics()
+    {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("expiredMailboxes", expiredMailboxes.get());
+        metrics.put("lastRunExpiredMailboxes", lastExpiredMailboxes);
+        metrics.put("scheduledMailboxes", MailboxExpiryScheduler.size());
+        metrics.put("expiredMailboxesOnDeadline", MailboxExpiryScheduler.getExpiredCount());
+        metrics.put("deletedMails", deletedMails.get());
+        metrics.put("deletedChunks", deletedChunks.get());
+        metrics.put("lastRunDeletedMails", lastRetentionDeleted);
+        metrics.put("lastRunDuration", lastRetentionDuration);
+        return metrics;
+    }
 }
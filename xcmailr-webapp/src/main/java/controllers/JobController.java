@@ -18,7 +18,7 @@ package controllers;
 
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -31,7 +31,10 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import conf.XCMailrConf;
-import models.MailTransaction;
+import etc.NamedThreadFactory;
+import models.MailSearchIndex;
+import models.MailboxExpiryScheduler;
+import models.MailboxRoutingIndex;
 import models.User;
 import ninja.lifecycle.Dispose;
 import ninja.lifecycle.Start;
@@ -45,7 +48,7 @@ import ninja.utils.NinjaProperties;
 @Singleton
 public class JobController
 {
-    private final ScheduledExecutorService expirationService = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledExecutorService jobExecutor;
 
     private SMTPServer smtpServer;
 
@@ -63,7 +66,19 @@ public class JobController
 
     private boolean deleteTransactions;
 
-    ConcurrentLinkedQueue<MailTransaction> mtxQueue = new ConcurrentLinkedQueue<MailTransaction>();
+    private ExpirationService expirationTask;
+
+    @Inject
+    MailTransactionBuffer mtxQueue;
+
+    @Inject
+    MailStatisticsCounter mailStatisticsCounter;
+
+    @Inject
+    MailStatisticsCache mailStatisticsCache;
+
+    @Inject
+    ApiTokenCache apiTokenCache;
 
     /**
      * Starts the mail-server, creates the Admin-Account specified in application.conf and threads to expire the
@@ -87,15 +102,39 @@ public class JobController
             user.save();
 
         }
+        // load the mailboxes to route the incoming mails without querying the database
+        int indexedBoxes = MailboxRoutingIndex.load();
+        log.info("Loaded {} mailboxes into the routing index", indexedBoxes);
+
+        // expire the mailboxes at their deadline
+        int scheduledBoxes = MailboxExpiryScheduler.start();
+        log.info("Scheduled the expiration of {} mailboxes", scheduledBoxes);
+
+        // create the full-text index of the mails if it doesn't exist
+        MailSearchIndex.init();
+
         // create and start the server for incoming mails
         smtpServer = createSmtpServer();
         smtpServer.start();
 
-        // create the executor-service to check the mail-addresses which were expired since the last run and disable
-        // them
-        // and also all new MailTransactions will be stored here and old entries will be removed
-        expirationService.scheduleAtFixedRate(new ExpirationService(mtxQueue, deleteTransactions, xcmConfiguration),
-                                              new Long(0), new Long(xcmConfiguration.MB_INTERVAL), TimeUnit.MINUTES);
+        // schedule the jobs which disable the expired mail-addresses, delete the expired mails and tokens, store the
+        // new MailTransactions and remove old entries, each on its own so a slow job doesn't delay the others
+        expirationTask = new ExpirationService(mtxQueue, mailStatisticsCounter, mailStatisticsCache,
+                                               deleteTransactions, xcmConfiguration, apiTokenCache);
+        List<ScheduledJob> jobs = expirationTask.getJobs();
+        jobExecutor = Executors.newScheduledThreadPool(jobs.size(), new NamedThreadFactory("maintenance"));
+        for (ScheduledJob job : jobs)
+        {
+            jobExecutor.scheduleWithFixedDelay(job, 0, job.getInterval(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return the jobs which expire the mailboxes and mails, or <code>null</code> if they haven't been started
+     */
+    public ExpirationService getExpirationTask()
+    {
+        return expirationTask;
     }
 
     /**
@@ -107,8 +146,12 @@ public class JobController
         // stop the forwarding-service
         smtpServer.stop();
 
-        // stop the job to expire the mailboxes
-        expirationService.shutdown();
+        // stop the jobs to expire the mailboxes
+        MailboxExpiryScheduler.stop();
+        if (jobExecutor != null)
+        {
+            jobExecutor.shutdown();
+        }
     }
 
     /**
@@ -0,0 +1,425 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+import conf.XCMailrConf;
+import etc.NamedThreadFactory;
+import ninja.lifecycle.Dispose;
+
+/**
+ * Executes the outgoing mails on a bounded pool of workers. If the queue of the pool is full, the submitting thread
+ * waits up to mail.forward.enqueuetimeout milliseconds for a free slot (which slows down the SMTP-client of the
+ * incoming mail) before the mail is rejected. Mails which failed with a transient error are retried with an
+ * exponential backoff.
+ */
+@Singleton
+public class MailForwardingService
+{
+    private final Logger log;
+
+    private final int maxRetries;
+
+    private final long retryDelay;
+
+    private final long enqueueTimeout;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService retryScheduler;
+
+    private final Set<Retry> pendingRetries = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong retried = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    @Inject
+    public MailForwardingService(XCMailrConf xcmConfiguration, Logger log)
+    {
+        this(xcmConfiguration.FWD_POOL_SIZE, xcmConfiguration.FWD_QUEUE_SIZE, xcmConfiguration.FWD_ENQUEUE_TIMEOUT,
+             xcmConfiguration.FWD_MAX_RETRIES, xcmConfiguration.FWD_RETRY_DELAY, log);
+    }
+
+    MailForwardingService(int poolSize, int queueSize, long enqueueTimeout, int maxRetries, long retryDelay,
+                          Logger log)
+    {
+        this.log = log;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.enqueueTimeout = enqueueTimeout;
+
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(queueSize),
+                                          new NamedThreadFactory("mail-forward"), new WaitForQueuePolicy());
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mail-forward-retry"));
+    }
+
+    /**
+     * Submits the given task to the pool.
+     *
+     * @param task
+     *            the send-task
+     * @return true if the task has been queued, false if it was rejected because the queue is full or the service has
+     *         been shut down (the task has been notified about the failure then)
+     */
+    public boolean submit(SendTask task)
+    {
+        try
+        {
+            executor.execute(new Attempt(task, 0));
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            log.error("Rejected outgoing mail: " + e.getMessage());
+            task.failed(e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of mails waiting for a free worker
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of workers which are currently sending a mail
+     */
+    public int getActiveWorkers()
+    {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of mails which were rejected because the queue was full
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of retries which were scheduled after a transient error
+     */
+    public long getRetriedCount()
+    {
+        return retried.get();
+    }
+
+    /**
+     * @return the number of mails which could not be sent
+     */
+    public long getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of sent mails
+     */
+    public long getSentCount()
+    {
+        return sent.get();
+    }
+
+    /**
+     * @return all metrics of the pool
+     */
+    public Map<String, Number> getMetrics()
+    {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("poolSize", executor.getMaximumPoolSize());
+        metrics.put("activeWorkers", getActiveWorkers());
+        metrics.put("queueDepth", getQueueDepth());
+        metrics.put("queueCapacity", getQueueDepth() + executor.getQueue().remainingCapacity());
+        metrics.put("sent", getSentCount());
+        metrics.put("retried", getRetriedCount());
+        metrics.put("failed", getFailedCount());
+        metrics.put("rejected", getRejectedCount());
+        return metrics;
+    }
+
+    /**
+     * Stops the pool. Queued mails will still be sent, pending retries and the mails which are still queued after the
+     * timeout are dropped and reported as failed.
+     */
+    @Dispose(order = 80)
+    public void shutdown()
+    {
+        retryScheduler.shutdownNow();
+        int dropped = 0;
+        for (Retry retry : pendingRetries)
+        {
+            if (retry.drop())
+            {
+                drop(retry.task);
+                dropped++;
+            }
+        }
+
+        executor.shutdown();
+        List<Runnable> queued = Collections.emptyList();
+        try
+        {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS))
+            {
+                queued = executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            queued = executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for (Runnable attempt : queued)
+        {
+            // the pool gets the attempts by execute(), so they aren't wrapped
+            drop(((Attempt) attempt).task);
+            dropped++;
+        }
+
+        if (dropped > 0)
+        {
+            log.warn("Dropped {} outgoing mails on shutdown", dropped);
+        }
+    }
+
+    private void drop(SendTask task)
+    {
+        failed.incrementAndGet();
+        task.failed(new RejectedExecutionException("the service has been shut down"));
+    }
+
+    /**
+     * Decides whether the given exception is worth a retry, i.e. the server answered with a 4xx-code or the connection
+     * to the server failed.
+     *
+     * @param e
+     *            the exception thrown by the transport
+     * @return true if the error is transient
+     */
+    static boolean isTransient(MessagingException e)
+    {
+        if (e instanceof SMTPSendFailedException)
+        {
+            int code = ((SMTPSendFailedException) e).getReturnCode();
+            return code >= 400 && code < 500;
+        }
+        if (e instanceof SMTPAddressFailedException)
+        {
+            int code = ((SMTPAddressFailedException) e).getReturnCode();
+            return code >= 400 && code < 500;
+        }
+        if (e instanceof SendFailedException || e instanceof AuthenticationFailedException)
+        {
+            return false;
+        }
+        // connection errors are wrapped
+        return e.getNextException() instanceof IOException;
+    }
+
+    /**
+     * A mail that should be sent by the pool
+     */
+    public interface SendTask
+    {
+        /**
+         * Sends the mail.
+         *
+         * @throws MessagingException
+         *             if the mail could not be sent
+         */
+        void send() throws MessagingException;
+
+        /**
+         * Called when the mail finally could not be sent or has been rejected.
+         *
+         * @param e
+         *            the last error
+         */
+        void failed(Exception e);
+    }
+
+    private class Attempt implements Runnable
+    {
+        private final SendTask task;
+
+        private final int attempt;
+
+        Attempt(SendTask task, int attempt)
+        {
+            this.task = task;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                task.send();
+                sent.incrementAndGet();
+            }
+            catch (MessagingException e)
+            {
+                if (attempt < maxRetries && isTransient(e) && scheduleRetry(e))
+                {
+                    return;
+                }
+                failed.incrementAndGet();
+                task.failed(e);
+            }
+            catch (RuntimeException e)
+            {
+                // e.g. a database error while counting the forward, the executor would swallow it silently
+                log.error("Sending mail failed unexpectedly", e);
+                failed.incrementAndGet();
+                task.failed(e);
+            }
+        }
+
+        private boolean scheduleRetry(MessagingException e)
+        {
+            final long delay = retryDelay << attempt;
+            log.warn("Sending mail failed (attempt {}), retrying in {} ms: {}", new Object[]
+                {
+                  attempt + 1, delay, e.getMessage()
+                });
+            Retry retry = new Retry(task, attempt + 1, e);
+            pendingRetries.add(retry);
+            try
+            {
+                retryScheduler.schedule(retry, delay, TimeUnit.MILLISECONDS);
+                retried.incrementAndGet();
+                return true;
+            }
+            catch (RejectedExecutionException re)
+            {
+                // the service is shutting down
+                return !retry.drop();
+            }
+        }
+    }
+
+    /**
+     * Resubmits a task after the backoff. Pending retries are kept in a set because the scheduler doesn't hand out
+     * the dropped tasks on shutdown.
+     */
+    private class Retry implements Runnable
+    {
+        private final SendTask task;
+
+        private final int attempt;
+
+        private final MessagingException cause;
+
+        Retry(SendTask task, int attempt, MessagingException cause)
+        {
+            this.task = task;
+            this.attempt = attempt;
+            this.cause = cause;
+        }
+
+        /**
+         * @return true if the retry was still pending and won't run anymore
+         */
+        boolean drop()
+        {
+            return pendingRetries.remove(this);
+        }
+
+        @Override
+        public void run()
+        {
+            if (!drop())
+            {
+                // already reported as failed on shutdown
+                return;
+            }
+            try
+            {
+                executor.execute(new Attempt(task, attempt));
+            }
+            catch (RejectedExecutionException re)
+            {
+                failed.incrementAndGet();
+                task.failed(cause);
+            }
+        }
+    }
+
+    /**
+     * Waits for a free slot in the queue and rejects the task if there's none after the enqueue-timeout.
+     */
+    private class WaitForQueuePolicy implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor pool)
+        {
+            if (!pool.isShutdown())
+            {
+                try
+                {
+                    if (pool.getQueue().offer(r, enqueueTimeout, TimeUnit.MILLISECONDS))
+                    {
+                        return;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("queue is full (" + pool.getQueue().size() + " mails)");
+        }
+    }
+}
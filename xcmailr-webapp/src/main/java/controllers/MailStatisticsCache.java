@@ -0,0 +1,266 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import etc.StatisticsEntry;
+import models.MailStatistics;
+import models.MailStatisticsDaily;
+import models.MailStatisticsHourly;
+import models.MailStatisticsKey;
+
+/**
+ * Keeps the statistics of the dashboard in memory, so they don't have to be queried from the database for each request:
+ * the {@link MailStatisticsHourly hourly statistics} of the last days for the charts and the sender domains of the
+ * day and the week ranked by each column of the sender tables (see {@link SenderRanking}). The cache is refreshed
+ * after each run of the statistics job of the {@link ExpirationService}, so it's as current as the database. If the
+ * cache is disabled (with mailstatistics.cache), the statistics are read from the database.
+ */
+@Singleton
+public class MailStatisticsCache
+{
+    /** the number of days before today which are cached, the week chart needs the last six */
+    static final int DAYS = 7;
+
+    /** the number of days before today covered by the sender table of the week */
+    static final int WEEK_DAYS = 6;
+
+    private final boolean enabled;
+
+    private volatile Snapshot snapshot;
+
+    @Inject
+    public MailStatisticsCache(XCMailrConf xcmConfiguration)
+    {
+        this(xcmConfiguration.STATISTICS_CACHE);
+    }
+
+    /**
+     * @param enabled
+     *            whether the statistics are kept in memory
+     */
+    public MailStatisticsCache(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the number of dropped and forwarded mails of each hour since the given day.
+     * 
+     * @param from
+     *            the first day
+     * @return the counts per hour, the key is the timestamp of the start of the hour (see
+     *         {@link MailStatisticsHourly#getTimestamp(java.util.Date, int)}), hours without mails are missing
+     */
+    public Map<Long, StatisticsEntry> getHourlyCounts(LocalDate from)
+    {
+        final Date fromDate = Date.valueOf(from);
+        final Snapshot current = getSnapshot();
+        if (current != null && !fromDate.before(current.from))
+        {
+            return current.hourlyCounts;
+        }
+        return MailStatisticsHourly.getCounts(fromDate);
+    }
+
+    /**
+     * Returns the sender domains of the mails since the given number of days before today.
+     * 
+     * @param lastNDays
+     *            the number of days before today, 0 for today only
+     * @return the ranked sender domains
+     */
+    public SenderRanking getSenderRanking(int lastNDays)
+    {
+        final LocalDate today = LocalDate.now();
+        final Snapshot current = getSnapshot();
+        // the rankings of the snapshot are outdated after midnight until the next refresh
+        if (current != null && current.today.equals(today))
+        {
+            if (lastNDays == 0)
+            {
+                return current.daySenders;
+            }
+            if (lastNDays == WEEK_DAYS)
+            {
+                return current.weekSenders;
+            }
+        }
+        return loadSenderRanking(today, lastNDays);
+    }
+
+    /**
+     * Reloads the statistics of the last days from the database, if the cache is enabled.
+     */
+    public void refresh()
+    {
+        if (enabled)
+        {
+            final LocalDate today = LocalDate.now();
+            final Date from = Date.valueOf(today.minusDays(DAYS));
+            snapshot = new Snapshot(today, from, Collections.unmodifiableMap(MailStatisticsHourly.getCounts(from)),
+                                    loadSenderRanking(today, 0), loadSenderRanking(today, WEEK_DAYS));
+        }
+    }
+
+    private SenderRanking loadSenderRanking(LocalDate today, int lastNDays)
+    {
+        return new SenderRanking(MailStatisticsDaily.getSenderCounts(Date.valueOf(today.minusDays(lastNDays))));
+    }
+
+    /**
+     * @return the cached statistics (loaded on the first call) or null if the cache is disabled
+     */
+    private Snapshot getSnapshot()
+    {
+        if (enabled && snapshot == null)
+        {
+            refresh();
+        }
+        return snapshot;
+    }
+
+    /**
+     * The sender domains of a period ranked by their domain name, their number of dropped mails and their number of
+     * forwarded mails. The rankings are sorted once when the ranking is created, so a page of any order is read
+     * without sorting.
+     */
+    public static final class SenderRanking
+    {
+        private static final Comparator<MailStatistics> BY_DOMAIN = Comparator.comparing((MailStatistics ms) -> ms
+            .getKey().getFromDomain());
+
+        private final MailStatistics[] byDomain;
+
+        private final MailStatistics[] byDroppedCount;
+
+        private final MailStatistics[] byForwardedCount;
+
+        /**
+         * @param counts
+         *            the number of dropped and forwarded mails per sender domain
+         */
+        public SenderRanking(Map<String, StatisticsEntry> counts)
+        {
+            byDomain = new MailStatistics[counts.size()];
+            int i = 0;
+            for (Entry<String, StatisticsEntry> count : counts.entrySet())
+            {
+                MailStatistics ms = new MailStatistics();
+                ms.setKey(new MailStatisticsKey(null, 0, count.getKey(), null));
+                ms.setDropCount(count.getValue().getDropCount());
+                ms.setForwardCount(count.getValue().getForwardCount());
+                byDomain[i++] = ms;
+            }
+            Arrays.sort(byDomain, BY_DOMAIN);
+
+            // the sort is stable, so equal counts are ordered by their domain
+            byDroppedCount = byDomain.clone();
+            Arrays.sort(byDroppedCount, Comparator.comparingInt(MailStatistics::getDropCount));
+            byForwardedCount = byDomain.clone();
+            Arrays.sort(byForwardedCount, Comparator.comparingInt(MailStatistics::getForwardCount));
+        }
+
+        /**
+         * @return the number of sender domains
+         */
+        public int size()
+        {
+            return byDomain.length;
+        }
+
+        /**
+         * Returns a page of the sender domains.
+         * 
+         * @param sort
+         *            the column to order by: "fromDomain", "droppedCount" or "forwardedCount"
+         * @param descending
+         *            whether the order is descending
+         * @param offset
+         *            the position of the first sender domain of the page
+         * @param limit
+         *            the maximum number of sender domains of the page
+         * @return the sender domains of the page
+         */
+        public List<MailStatistics> getPage(String sort, boolean descending, int offset, int limit)
+        {
+            final MailStatistics[] ranking;
+            switch (sort)
+            {
+                case "fromDomain":
+                    ranking = byDomain;
+                    break;
+
+                case "forwardedCount":
+                    ranking = byForwardedCount;
+                    break;
+
+                default:
+                    ranking = byDroppedCount;
+                    break;
+            }
+
+            final List<MailStatistics> page = new ArrayList<>();
+            for (int i = Math.max(0, offset); i < Math.min(ranking.length, offset + limit); i++)
+            {
+                page.add(ranking[descending ? ranking.length - 1 - i : i]);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * The cached statistics
+     */
+    private static final class Snapshot
+    {
+        /** the day the snapshot has been taken */
+        final LocalDate today;
+
+        /** the first day of the hourly statistics */
+        final Date from;
+
+        final Map<Long, StatisticsEntry> hourlyCounts;
+
+        final SenderRanking daySenders;
+
+        final SenderRanking weekSenders;
+
+        Snapshot(LocalDate today, Date from, Map<Long, StatisticsEntry> hourlyCounts, SenderRanking daySenders,
+                 SenderRanking weekSenders)
+        {
+            this.today = today;
+            this.from = from;
+            this.hourlyCounts = hourlyCounts;
+            this.daySenders = daySenders;
+            this.weekSenders = weekSenders;
+        }
+    }
+}
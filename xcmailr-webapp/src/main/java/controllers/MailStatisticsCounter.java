@@ -0,0 +1,185 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.sql.Date;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.inject.Singleton;
+
+import etc.StatisticsEntry;
+import models.MailStatistics;
+import models.MailStatisticsKey;
+import models.MailTransaction;
+
+/**
+ * Counts the dropped and forwarded mails per quarter-hour, sender domain and target domain until they are added to
+ * the {@link MailStatistics} by the statistics job of the {@link ExpirationService}. The counters are kept in a
+ * {@link ConcurrentHashMap}, so threads which count mails of different keys don't block each other. A counter is
+ * taken out of the map atomically, a mail which is counted in the meantime starts a new one.
+ */
+@Singleton
+public class MailStatisticsCounter
+{
+    /** status of a transaction of a mail to a non-existing mailbox */
+    private static final int STATUS_DROPPED = 100;
+
+    /** status of a transaction of a forwarded mail */
+    private static final int STATUS_FORWARDED = 300;
+
+    private final ConcurrentHashMap<MailStatisticsKey, StatisticsEntry> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Counts a mail which has been dropped or forwarded now.
+     *
+     * @param status
+     *            100 for a dropped mail, 300 for a forwarded mail
+     * @param source
+     *            the sender's address
+     * @param relay
+     *            the address the mail was sent to
+     */
+    public void count(int status, String source, String relay)
+    {
+        count(status, System.currentTimeMillis(), source, relay);
+    }
+
+    /**
+     * Counts the mail of the given transaction if it has been dropped or forwarded.
+     *
+     * @param mtx
+     *            the transaction
+     * @return true if the transaction is one of a dropped or forwarded mail
+     */
+    public boolean count(MailTransaction mtx)
+    {
+        if (mtx.getStatus() != STATUS_DROPPED && mtx.getStatus() != STATUS_FORWARDED)
+        {
+            return false;
+        }
+        count(mtx.getStatus(), mtx.getTs(), mtx.getSourceaddr(), mtx.getRelayaddr());
+        return true;
+    }
+
+    /**
+     * @return the number of counters which have not been written yet
+     */
+    public int size()
+    {
+        return counters.size();
+    }
+
+    /**
+     * Takes all counters out of this map.
+     *
+     * @return the counted mails per key
+     */
+    public Map<MailStatisticsKey, StatisticsEntry> drain()
+    {
+        final Map<MailStatisticsKey, StatisticsEntry> statistics = new HashMap<>();
+        for (MailStatisticsKey key : counters.keySet())
+        {
+            counters.computeIfPresent(key, (k, entry) -> {
+                statistics.put(k, entry);
+                return null;
+            });
+        }
+        return statistics;
+    }
+
+    /**
+     * Adds the given counters again, e.g. after they couldn't be written.
+     *
+     * @param statistics
+     *            the counted mails per key
+     */
+    public void restore(Map<MailStatisticsKey, StatisticsEntry> statistics)
+    {
+        for (final Entry<MailStatisticsKey, StatisticsEntry> statistic : statistics.entrySet())
+        {
+            counters.compute(statistic.getKey(), (k, entry) -> {
+                if (entry == null)
+                {
+                    return statistic.getValue();
+                }
+                entry.setDropCount(entry.getDropCount() + statistic.getValue().getDropCount());
+                entry.setForwardCount(entry.getForwardCount() + statistic.getValue().getForwardCount());
+                return entry;
+            });
+        }
+    }
+
+    private void count(final int status, long timestamp, String source, String relay)
+    {
+        final MailStatisticsKey key = createMailStatisticsKey(timestamp, source, relay);
+        if (key == null)
+        {
+            return;
+        }
+        counters.compute(key, (k, entry) -> {
+            StatisticsEntry result = (entry == null) ? new StatisticsEntry() : entry;
+            if (status == STATUS_DROPPED)
+            {
+                result.incrementDropCount();
+            }
+            else
+            {
+                result.incrementForwardCount();
+            }
+            return result;
+        });
+    }
+
+    private MailStatisticsKey createMailStatisticsKey(long timestamp, String source, String relay)
+    {
+        final String targetDomain = getDomainOfEmail(relay);
+        final String sourceDomain = getDomainOfEmail(source);
+        if (targetDomain == null || sourceDomain == null)
+        {
+            return null;
+        }
+
+        // the key holds the day only, so all mails of a quarter-hour are counted together
+        final LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
+        final Date mailDate = Date.valueOf(time.toLocalDate());
+        final int quarterHourOfDay = time.getHour() * 4 + time.getMinute() / 15;
+
+        return new MailStatisticsKey(mailDate, quarterHourOfDay, sourceDomain, targetDomain);
+    }
+
+    private String getDomainOfEmail(String email)
+    {
+        if (email == null || email.trim().length() == 0)
+        {
+            return null;
+        }
+
+        String[] split = email.split("\\@");
+        if (split.length != 2)
+        {
+            return null;
+        }
+
+        return split[1];
+    }
+}
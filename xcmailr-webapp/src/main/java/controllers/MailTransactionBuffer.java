@@ -0,0 +1,259 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import models.MailTransaction;
+
+/**
+ * Bounded, lock-free buffer of the {@link MailTransaction mail transactions} which have not been stored yet. The
+ * transactions are written by the SMTP and forwarding threads and taken by the mail transaction job of the
+ * {@link ExpirationService}.
+ * <p>
+ * The buffer is a ring of pre-allocated slots, each guarded by a sequence number (a bounded MPMC queue after Dmitry
+ * Vyukov). A producer claims a slot with a single CAS and copies the fields of the transaction into it, so no objects
+ * are created on the delivery path. If the buffer is full, the transaction is dropped and counted. With the overflow
+ * policy {@link OverflowPolicy#SAMPLE}, only every n-th transaction is kept once the buffer is half full, so a flood
+ * of similar transactions still leaves room for the others.
+ * </p>
+ */
+@Singleton
+public class MailTransactionBuffer
+{
+    /**
+     * What to do with new transactions if the consumer doesn't keep up
+     */
+    public enum OverflowPolicy
+    {
+        /** drop the transactions which don't fit into the buffer */
+        DROP,
+
+        /** keep only every n-th transaction once the buffer is half full, drop them if it is full */
+        SAMPLE
+    }
+
+    private final Slot[] slots;
+
+    /** the sequence number of each slot, tells whether the slot may be written or read at a position */
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final int sampleRate;
+
+    /** the next position to write */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** the next position to read */
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong offered = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong sampledOut = new AtomicLong();
+
+    @Inject
+    public MailTransactionBuffer(XCMailrConf xcmConfiguration)
+    {
+        this(xcmConfiguration.MTX_BUFFER_CAPACITY,
+             OverflowPolicy.valueOf(xcmConfiguration.MTX_BUFFER_OVERFLOW.trim().toUpperCase()),
+             xcmConfiguration.MTX_BUFFER_SAMPLE_RATE);
+    }
+
+    /**
+     * @param capacity
+     *            the minimum number of transactions the buffer can hold, rounded up to a power of two
+     * @param overflowPolicy
+     *            what to do with new transactions if the buffer fills up
+     * @param sampleRate
+     *            keep every n-th transaction if the buffer is half full (used with {@link OverflowPolicy#SAMPLE})
+     */
+    public MailTransactionBuffer(int capacity, OverflowPolicy overflowPolicy, int sampleRate)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * Adds a transaction which happened now.
+     *
+     * @param status
+     *            the status code of the transaction (see {@link MailTransaction})
+     * @param source
+     *            the sender's address
+     * @param relay
+     *            the address of the mailbox
+     * @param target
+     *            the original recipient's address
+     * @return false if the transaction has been dropped
+     */
+    public boolean offer(int status, String source, String relay, String target)
+    {
+        final long count = offered.incrementAndGet();
+        if (overflowPolicy == OverflowPolicy.SAMPLE && size() > mask / 2 && count % sampleRate != 0)
+        {
+            sampledOut.incrementAndGet();
+            return false;
+        }
+
+        long position = tail.get();
+        int index;
+        while (true)
+        {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    break;
+                }
+                position = tail.get();
+            }
+            else if (difference < 0)
+            {
+                // the slot still holds the transaction of the previous round
+                dropped.incrementAndGet();
+                return false;
+            }
+            else
+            {
+                // another producer claimed the slot
+                position = tail.get();
+            }
+        }
+
+        Slot slot = slots[index];
+        slot.ts = System.currentTimeMillis();
+        slot.status = status;
+        slot.source = source;
+        slot.relay = relay;
+        slot.target = target;
+        // publish the slot to the consumer
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest transaction from the buffer.
+     *
+     * @return the transaction or <code>null</code> if the buffer is empty
+     */
+    public MailTransaction poll()
+    {
+        long position = head.get();
+        int index;
+        while (true)
+        {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0)
+            {
+                if (head.compareAndSet(position, position + 1))
+                {
+                    break;
+                }
+                position = head.get();
+            }
+            else if (difference < 0)
+            {
+                // empty
+                return null;
+            }
+            else
+            {
+                position = head.get();
+            }
+        }
+
+        Slot slot = slots[index];
+        MailTransaction mtx = new MailTransaction(slot.status, slot.source, slot.relay, slot.target);
+        mtx.setTs(slot.ts);
+        slot.source = null;
+        slot.relay = null;
+        slot.target = null;
+        // release the slot for the next round
+        sequences.set(index, position + mask + 1);
+        return mtx;
+    }
+
+    /**
+     * @return the number of buffered transactions
+     */
+    public int size()
+    {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * @return the number of transactions the buffer can hold
+     */
+    public int getCapacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * @return the number of offered, dropped and sampled out transactions and the current size
+     */
+    public Map<String, Number> getMetrics()
+    {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("capacity", getCapacity());
+        metrics.put("size", size());
+        metrics.put("offered", offered.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("sampledOut", sampledOut.get());
+        return metrics;
+    }
+
+    /**
+     * A reusable entry of the ring, the fields are published by the sequence number of the slot.
+     */
+    private static final class Slot
+    {
+        long ts;
+
+        int status;
+
+        String source;
+
+        String relay;
+
+        String target;
+    }
+}
@@ -0,0 +1,524 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import etc.MailboxEntry;
+import etc.NamedThreadFactory;
+import etc.SessionUser;
+import models.MBox;
+import models.Mail;
+import ninja.lifecycle.Dispose;
+
+/**
+ * Pushes the received mails as Server-Sent Events to the clients which subscribed to the mailboxes of a user (see
+ * {@link BoxHandler#streamMailboxEvents}).
+ * <p>
+ * The {@link MessageListener} only hands the persisted mail over to a small pool of workers, which serialize it and
+ * put the event into a bounded buffer per subscriber. The buffers are written to the clients by the same workers. A
+ * client which doesn't keep up and lets its buffer overflow is disconnected, so it can't stall the processing of
+ * incoming mails. A write which blocks longer than mbox.events.writetimeout milliseconds (e.g. because the client
+ * doesn't read) is interrupted and the client is disconnected, so a few slow clients can't occupy all workers. A
+ * comment is sent every 15 seconds to detect closed connections.
+ * </p>
+ * <p>
+ * A user may connect up to mbox.events.maxperuser clients. The clients of a user are disconnected when the API token
+ * is replaced or revoked and when the sessions of the user are deleted (see {@link #closeUser(long)}). The token of
+ * each client is checked again with every heartbeat, which also catches expired tokens.
+ * </p>
+ */
+@Singleton
+public class MailboxEventStream
+{
+    private static final byte[] HEARTBEAT = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final long HEARTBEAT_INTERVAL = 15;
+
+    private final Logger log;
+
+    private final ObjectMapper objectMapper;
+
+    private final ApiTokenCache apiTokenCache;
+
+    private final int bufferSize;
+
+    private final long writeTimeout;
+
+    private final int maxPerUser;
+
+    private final ThreadPoolExecutor workers;
+
+    private final ScheduledExecutorService heartbeat;
+
+    private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<Long, Set<Subscriber>>();
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    @Inject
+    public MailboxEventStream(XCMailrConf xcmConfiguration, ObjectMapper objectMapper, ApiTokenCache apiTokenCache,
+                              Logger log)
+    {
+        this.log = log;
+        this.objectMapper = objectMapper;
+        this.apiTokenCache = apiTokenCache;
+        this.bufferSize = xcmConfiguration.EVENTS_BUFFER_SIZE;
+        this.writeTimeout = xcmConfiguration.EVENTS_WRITE_TIMEOUT;
+        this.maxPerUser = xcmConfiguration.EVENTS_MAX_PER_USER;
+
+        workers = new ThreadPoolExecutor(xcmConfiguration.EVENTS_WORKERS, xcmConfiguration.EVENTS_WORKERS, 0,
+                                         TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue<Runnable>(xcmConfiguration.EVENTS_BUFFER_SIZE * 10),
+                                         new NamedThreadFactory("mailbox-events"));
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mailbox-events-heartbeat"));
+        heartbeat.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sendHeartbeat();
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param userId
+     *            the ID of the user
+     * @return true if the user can't connect another client
+     */
+    public boolean isFull(long userId)
+    {
+        final Set<Subscriber> userSubscribers = subscribers.get(userId);
+        return userSubscribers != null && userSubscribers.size() >= maxPerUser;
+    }
+
+    /**
+     * Registers a client which receives the mails of the given user. The response of the given request has to be
+     * prepared as event-stream already. If the user has too many clients already, the request is completed.
+     *
+     * @param userId
+     *            the ID of the user
+     * @param apiToken
+     *            the API token the client connected with
+     * @param mailboxId
+     *            the ID of the mailbox to restrict the events to, or <code>null</code> for all mailboxes of the user
+     * @param asyncContext
+     *            the started asynchronous request
+     * @return true if the client has been registered
+     * @throws IOException
+     *             if the response can't be opened
+     */
+    public boolean subscribe(long userId, String apiToken, Long mailboxId, AsyncContext asyncContext)
+        throws IOException
+    {
+        final Subscriber subscriber = new Subscriber(userId, apiToken, mailboxId, asyncContext);
+        final Set<Subscriber> userSubscribers = subscribers.compute(userId, (id, current) -> {
+            Set<Subscriber> result = (current == null) ? ConcurrentHashMap.<Subscriber> newKeySet() : current;
+            if (result.size() < maxPerUser)
+            {
+                result.add(subscriber);
+            }
+            return result.isEmpty() ? null : result;
+        });
+        if (userSubscribers == null || !userSubscribers.contains(subscriber))
+        {
+            log.info("Rejected an event-stream of user {}, too many clients", userId);
+            subscriber.close();
+            return false;
+        }
+        asyncContext.addListener(new AsyncListener()
+        {
+            @Override
+            public void onComplete(AsyncEvent event)
+            {
+                unsubscribe(subscriber);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event)
+            {
+                subscriber.close();
+            }
+
+            @Override
+            public void onError(AsyncEvent event)
+            {
+                subscriber.close();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event)
+            {
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Disconnects all clients of the given user, e.g. because the API token has been replaced or revoked or the user
+     * has been deactivated.
+     *
+     * @param userId
+     *            the ID of the user
+     */
+    public void closeUser(long userId)
+    {
+        final Set<Subscriber> userSubscribers = subscribers.remove(userId);
+        if (userSubscribers != null)
+        {
+            for (Subscriber subscriber : userSubscribers)
+            {
+                subscriber.close();
+            }
+        }
+    }
+
+    /**
+     * Publishes the given mail to the subscribers of its mailbox. Returns immediately, the event is created and sent
+     * asynchronously.
+     *
+     * @param mail
+     *            the persisted mail
+     */
+    public void mailArrived(final Mail mail)
+    {
+        final MBox mailbox = mail.getMailbox();
+        if (mailbox == null || mailbox.getUsr() == null)
+        {
+            return;
+        }
+        final Set<Subscriber> userSubscribers = subscribers.get(mailbox.getUsr().getId());
+        if (userSubscribers == null || userSubscribers.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    publish(mail, userSubscribers);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            dropped.incrementAndGet();
+            log.warn("Event of mail '{}' dropped, too many pending events", mail.getId());
+        }
+    }
+
+    /**
+     * @return the number of connected clients
+     */
+    public int getSubscriberCount()
+    {
+        int count = 0;
+        for (Set<Subscriber> userSubscribers : subscribers.values())
+        {
+            count += userSubscribers.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of events put into the buffers of the clients
+     */
+    public long getPublishedCount()
+    {
+        return published.get();
+    }
+
+    /**
+     * @return the number of events which were dropped because of full buffers
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Disconnects all clients and stops the workers.
+     */
+    @Dispose(order = 85)
+    public void shutdown()
+    {
+        heartbeat.shutdownNow();
+        workers.shutdownNow();
+        for (Set<Subscriber> userSubscribers : subscribers.values())
+        {
+            for (Subscriber subscriber : userSubscribers)
+            {
+                subscriber.close();
+            }
+        }
+    }
+
+    private void publish(Mail mail, Set<Subscriber> userSubscribers)
+    {
+        byte[] event;
+        try
+        {
+            String data = objectMapper.writeValueAsString(new MailboxEntry(mail.getMailbox().getFullAddress(), mail));
+            event = ("event: mail\nid: " + mail.getId() + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+        }
+        catch (Exception e)
+        {
+            log.error("Failed to create the event of mail " + mail.getId(), e);
+            return;
+        }
+
+        long mailboxId = mail.getMailbox().getId();
+        for (Subscriber subscriber : userSubscribers)
+        {
+            if (subscriber.mailboxId == null || subscriber.mailboxId == mailboxId)
+            {
+                subscriber.send(event);
+                published.incrementAndGet();
+            }
+        }
+    }
+
+    private void sendHeartbeat()
+    {
+        for (Set<Subscriber> userSubscribers : subscribers.values())
+        {
+            for (Subscriber subscriber : userSubscribers)
+            {
+                if (hasValidToken(subscriber))
+                {
+                    subscriber.send(HEARTBEAT);
+                }
+                else
+                {
+                    log.info("Closed the event-stream of a client of user {}, the API token is not valid anymore",
+                             subscriber.userId);
+                    subscriber.close();
+                }
+            }
+        }
+    }
+
+    private boolean hasValidToken(Subscriber subscriber)
+    {
+        try
+        {
+            final SessionUser user = apiTokenCache.getUser(subscriber.apiToken);
+            return user != null && user.getId() == subscriber.userId;
+        }
+        catch (RuntimeException e)
+        {
+            // keep the client if the token can't be checked, an exception would stop the heartbeat
+            log.error("Failed to check the API token of an event-stream", e);
+            return true;
+        }
+    }
+
+    private void unsubscribe(final Subscriber subscriber)
+    {
+        subscribers.computeIfPresent(subscriber.userId, (id, userSubscribers) -> {
+            userSubscribers.remove(subscriber);
+            return userSubscribers.isEmpty() ? null : userSubscribers;
+        });
+    }
+
+    /**
+     * A connected client with its buffer of events which have not been written yet.
+     */
+    private class Subscriber implements Runnable
+    {
+        final long userId;
+
+        final String apiToken;
+
+        final Long mailboxId;
+
+        private final AsyncContext asyncContext;
+
+        private final OutputStream out;
+
+        private final BlockingQueue<byte[]> buffer = new ArrayBlockingQueue<byte[]>(bufferSize);
+
+        private final AtomicBoolean writing = new AtomicBoolean();
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /**
+         * The worker which is currently writing to the client, guarded by this subscriber
+         */
+        private Thread writer;
+
+        Subscriber(long userId, String apiToken, Long mailboxId, AsyncContext asyncContext) throws IOException
+        {
+            this.userId = userId;
+            this.apiToken = apiToken;
+            this.mailboxId = mailboxId;
+            this.asyncContext = asyncContext;
+            this.out = asyncContext.getResponse().getOutputStream();
+        }
+
+        /**
+         * Buffers the given event and makes sure that a worker writes the buffer.
+         */
+        void send(byte[] event)
+        {
+            if (closed.get())
+            {
+                return;
+            }
+            if (!buffer.offer(event))
+            {
+                dropped.incrementAndGet();
+                log.info("Closed the event-stream of a slow client of user {}", userId);
+                close();
+                return;
+            }
+            scheduleWrite();
+        }
+
+        private void scheduleWrite()
+        {
+            if (writing.compareAndSet(false, true))
+            {
+                try
+                {
+                    workers.execute(this);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Writes the buffered events to the client.
+         */
+        @Override
+        public void run()
+        {
+            synchronized (this)
+            {
+                writer = Thread.currentThread();
+            }
+            ScheduledFuture<?> timeout = null;
+            try
+            {
+                timeout = heartbeat.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        writeTimedOut();
+                    }
+                }, writeTimeout, TimeUnit.MILLISECONDS);
+
+                byte[] event;
+                while ((event = buffer.poll()) != null && !closed.get())
+                {
+                    out.write(event);
+                }
+                out.flush();
+            }
+            catch (IOException | RejectedExecutionException e)
+            {
+                // the client is gone, didn't read in time or the stream is shutting down
+                close();
+            }
+            finally
+            {
+                if (timeout != null)
+                {
+                    timeout.cancel(false);
+                }
+                synchronized (this)
+                {
+                    writer = null;
+                }
+                // clear an interrupt of a timeout which fired after the write had finished
+                Thread.interrupted();
+                writing.set(false);
+            }
+            // events which were added after the buffer has been drained
+            if (!buffer.isEmpty() && !closed.get())
+            {
+                scheduleWrite();
+            }
+        }
+
+        /**
+         * Interrupts a write which blocks because the client doesn't read, the blocked write fails then.
+         */
+        private synchronized void writeTimedOut()
+        {
+            if (writer != null)
+            {
+                log.info("Closed the event-stream of a client of user {} which didn't read in time", userId);
+                dropped.incrementAndGet();
+                writer.interrupt();
+                close();
+            }
+        }
+
+        void close()
+        {
+            if (closed.compareAndSet(false, true))
+            {
+                unsubscribe(this);
+                buffer.clear();
+                try
+                {
+                    asyncContext.complete();
+                }
+                catch (IllegalStateException e)
+                {
+                    // already completed by the container
+                }
+            }
+        }
+    }
+}
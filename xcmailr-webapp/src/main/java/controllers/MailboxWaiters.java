@@ -0,0 +1,286 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import conf.XCMailrConf;
+import etc.NamedThreadFactory;
+import models.Mail;
+import ninja.lifecycle.Dispose;
+
+/**
+ * Keeps the mailbox-queries which wait for a new mail (see parameter wait of {@link BoxHandler#queryMailbox}). The
+ * {@link MessageListener} reports each persisted mail, the waiting queries of its mailbox are checked then on a pool
+ * of mbox.mail.waitworkers threads, so a slow check doesn't delay the others. A query is completed either by a matching
+ * mail or by its timeout, whichever comes first.
+ */
+@Singleton
+public class MailboxWaiters
+{
+    /**
+     * A query which waits for a mail.
+     */
+    public interface Waiter
+    {
+        /**
+         * Checks whether the waiting query can be answered now. Called on a thread of the {@link MailboxWaiters}.
+         *
+         * @param mail
+         *            the newly received mail, or <code>null</code> if the mailbox should be checked without a hint
+         * @return true if matching mails have been found
+         */
+        boolean check(Mail mail);
+
+        /**
+         * Answers the query with the mails found by the last {@link #check(Mail)}.
+         */
+        void answer();
+
+        /**
+         * Answers the query after no matching mail has been received in time.
+         */
+        void timedOut();
+    }
+
+    private final Logger log;
+
+    private final ExecutorService executor;
+
+    private final ScheduledExecutorService timeoutScheduler;
+
+    private final Map<Long, Set<Pending>> waiters = new ConcurrentHashMap<Long, Set<Pending>>();
+
+    @Inject
+    public MailboxWaiters(XCMailrConf xcmConfiguration, Logger log)
+    {
+        this(xcmConfiguration.MAILBOX_WAIT_WORKERS, log);
+    }
+
+    MailboxWaiters(int workers, Logger log)
+    {
+        this.log = log;
+        executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("mailbox-waiter"));
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mailbox-waiter-timeout"));
+    }
+
+    /**
+     * Registers a query which waits for a mail of the given mailbox. The mailbox is checked once after the
+     * registration, so a mail which has been received in the meantime isn't missed.
+     *
+     * @param mailboxId
+     *            the ID of the mailbox
+     * @param waiter
+     *            the waiting query
+     * @param timeout
+     *            the time to wait in milliseconds
+     */
+    public void await(long mailboxId, Waiter waiter, long timeout)
+    {
+        final Pending pending = new Pending(mailboxId, waiter);
+        waiters.compute(mailboxId, (id, mailboxWaiters) -> {
+            Set<Pending> result = (mailboxWaiters == null) ? ConcurrentHashMap.<Pending> newKeySet() : mailboxWaiters;
+            result.add(pending);
+            return result;
+        });
+
+        try
+        {
+            pending.timeout = timeoutScheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (pending.finish())
+                    {
+                        pending.waiter.timedOut();
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            executor.execute(new Check(pending, null));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shutting down
+            if (pending.finish())
+            {
+                waiter.timedOut();
+            }
+        }
+    }
+
+    /**
+     * Checks the queries which wait for a mail of the mailbox of the given mail.
+     *
+     * @param mail
+     *            the persisted mail
+     */
+    public void mailArrived(Mail mail)
+    {
+        Set<Pending> mailboxWaiters = waiters.get(mail.getMailbox().getId());
+        if (mailboxWaiters == null || mailboxWaiters.isEmpty())
+        {
+            return;
+        }
+        for (Pending pending : mailboxWaiters)
+        {
+            try
+            {
+                executor.execute(new Check(pending, mail));
+            }
+            catch (RejectedExecutionException e)
+            {
+                // shutting down, the query is answered by shutdown()
+            }
+        }
+    }
+
+    /**
+     * @return the number of waiting queries
+     */
+    public int getWaitingCount()
+    {
+        int count = 0;
+        for (Set<Pending> mailboxWaiters : waiters.values())
+        {
+            count += mailboxWaiters.size();
+        }
+        return count;
+    }
+
+    /**
+     * Answers all waiting queries and stops the executor.
+     */
+    @Dispose(order = 85)
+    public void shutdown()
+    {
+        timeoutScheduler.shutdownNow();
+        executor.shutdownNow();
+        for (Set<Pending> mailboxWaiters : waiters.values())
+        {
+            for (Pending pending : mailboxWaiters)
+            {
+                if (pending.finish())
+                {
+                    pending.waiter.timedOut();
+                }
+            }
+        }
+    }
+
+    private void remove(Pending pending)
+    {
+        waiters.computeIfPresent(pending.mailboxId, (id, mailboxWaiters) -> {
+            mailboxWaiters.remove(pending);
+            return mailboxWaiters.isEmpty() ? null : mailboxWaiters;
+        });
+    }
+
+    private class Pending
+    {
+        final long mailboxId;
+
+        final Waiter waiter;
+
+        final AtomicBoolean done = new AtomicBoolean();
+
+        volatile ScheduledFuture<?> timeout;
+
+        Pending(long mailboxId, Waiter waiter)
+        {
+            this.mailboxId = mailboxId;
+            this.waiter = waiter;
+        }
+
+        /**
+         * @return true if the query wasn't finished before
+         */
+        boolean finish()
+        {
+            if (!done.compareAndSet(false, true))
+            {
+                return false;
+            }
+            remove(this);
+            if (timeout != null)
+            {
+                timeout.cancel(false);
+            }
+            return true;
+        }
+    }
+
+    private class Check implements Runnable
+    {
+        private final Pending pending;
+
+        private final Mail mail;
+
+        Check(Pending pending, Mail mail)
+        {
+            this.pending = pending;
+            this.mail = mail;
+        }
+
+        @Override
+        public void run()
+        {
+            if (pending.done.get())
+            {
+                return;
+            }
+            // the checks of a query run one after the other, so a check can't replace the result of the check which
+            // answers the query; finish() makes sure that the query is answered only once
+            synchronized (pending)
+            {
+                if (pending.done.get())
+                {
+                    return;
+                }
+                try
+                {
+                    if (pending.waiter.check(mail) && pending.finish())
+                    {
+                        pending.waiter.answer();
+                    }
+                }
+                catch (Exception e)
+                {
+                    log.error("Failed to check a waiting mailbox-query", e);
+                    if (pending.finish())
+                    {
+                        pending.waiter.timedOut();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -23,7 +23,6 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
@@ -34,8 +33,8 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import conf.XCMailrConf;
+import etc.RawMailBuffer;
 import models.MBox;
-import models.MailTransaction;
 import models.User;
 import ninja.i18n.Messages;
 import ninja.utils.NinjaProperties;
@@ -63,6 +62,15 @@ public class MailrMessageSenderFactory
     @Inject
     JobController jobController;
 
+    @Inject
+    MailStatisticsCounter mailStatisticsCounter;
+
+    @Inject
+    MailForwardingService forwardingService;
+
+    @Inject
+    SmtpTransportPool transportPool;
+
     private Session session;
 
     /**
@@ -111,7 +119,7 @@ public class MailrMessageSenderFactory
      *            the Message-Body
      * @param subject
      *            the Message Subject
-     * @return true, if the mail had been successfully pushed to the thread
+     * @return true, if the mail had been successfully pushed to the forwarding-queue
      */
     public boolean sendMail(String from, String to, String content, String subject)
     {
@@ -129,10 +137,6 @@ public class MailrMessageSenderFactory
             message.setSubject(subject);
             message.setText(content);
             message.saveChanges();
-
-            // send the mail in an own thread
-            ThreadedMailSend tms = new ThreadedMailSend(message);
-            tms.start();
         }
         catch (AddressException e)
         {
@@ -145,7 +149,25 @@ public class MailrMessageSenderFactory
             return false;
         }
 
-        return true;
+        // send the mail asynchronously
+        return forwardMail(message, null, null);
+    }
+
+    /**
+     * Queues the given Mail to be sent by the forwarding-workers
+     * 
+     * @param mail
+     *            the prepared Mail
+     * @param mailBox
+     *            the {@link MBox} which received the Mail or null if it's a mail of the application
+     * @param rawContent
+     *            the buffer the Mail has been parsed from, it will be released when the Mail has been sent (or the
+     *            sending finally failed), may be null
+     * @return true, if the mail had been successfully pushed to the forwarding-queue
+     */
+    public boolean forwardMail(MimeMessage mail, MBox mailBox, RawMailBuffer rawContent)
+    {
+        return forwardingService.submit(new MailSendTask(mail, mailBox, rawContent));
     }
 
     /**
@@ -225,76 +247,88 @@ public class MailrMessageSenderFactory
         sendMail(from, to, body, subject);
     }
 
-    public void addMtxToJCList(MailTransaction mtx)
+    public void addMtxToJCList(int status, String from, String relay, String recipient)
     {
-        jobController.mtxQueue.add(mtx);
+        jobController.mtxQueue.offer(status, from, relay, recipient);
     }
 
-    public class ThreadedMailSend extends Thread
+    /**
+     * Sends a Mail and logs the transaction
+     */
+    class MailSendTask implements MailForwardingService.SendTask
     {
-        private MimeMessage mail;
+        private final MimeMessage mail;
 
-        private MBox mailBox;
+        private final MBox mailBox;
 
-        private MailTransaction mtx;
+        private final RawMailBuffer rawContent;
 
-        public ThreadedMailSend(MimeMessage mail)
-        {
-            this(mail, null);
-        }
+        private String recipient = "";
+
+        private String from = "";
 
-        public ThreadedMailSend(MimeMessage mail, MBox mailBox)
+        MailSendTask(MimeMessage mail, MBox mailBox, RawMailBuffer rawContent)
         {
             this.mailBox = mailBox;
             this.mail = mail;
+            this.rawContent = rawContent;
         }
 
-        /**
-         * Sends the mail in a new thread
-         */
         @Override
-        public void run()
+        public void send() throws MessagingException
         {
-            String recipient = "";
-            String from = "";
-            try
+            // check whether the sender and recipient had been set
+            if (mail.getFrom().length > 0 && mail.getRecipients(Message.RecipientType.TO).length > 0)
             {
-                // check whether the sender and recipient had been set
-                if (mail.getFrom().length > 0 && mail.getRecipients(Message.RecipientType.TO).length > 0)
-                {
-                    // extract the senders and recipients-address to log the transaction
-                    recipient = mail.getRecipients(Message.RecipientType.TO)[0].toString();
-                    from = mail.getFrom()[0].toString();
-                }
-                if (!ninjaProperties.isTest()) // no messages will be sent when running in test-mode
+                // extract the senders and recipients-address to log the transaction
+                recipient = mail.getRecipients(Message.RecipientType.TO)[0].toString();
+                from = mail.getFrom()[0].toString();
+            }
+            if (!ninjaProperties.isTest()) // no messages will be sent when running in test-mode
+            {
+                transportPool.send(getSession(), mail);
+                log.info("Message sent, From: " + from + " To:" + recipient);
+
+                // the mail has been delivered, an error in the bookkeeping mustn't report it as failed
+                try
                 {
-                    Transport.send(mail);
                     if (xcmConfiguration.MTX_MAX_AGE != 0)
                     {// if mailtransaction.maxage is set to 0 -> log nothing
                      // log the transaction
-                        mtx = new MailTransaction(300, from, mailBox == null ? null : mailBox.getFullAddress(),
-                                                  recipient);
-
-                        addMtxToJCList(mtx);
+                        mailStatisticsCounter.count(300, from, mailBox == null ? null : mailBox.getFullAddress());
                     }
-                    log.info("Message sent, From: " + from + " To:" + recipient);
 
                     if (mailBox != null)
                     { // the message belongs to one of our mailboxes
                         mailBox.increaseFwd();
                     }
                 }
+                catch (RuntimeException e)
+                {
+                    log.error("Failed to count the sent message, From: " + from + " To:" + recipient, e);
+                }
+            }
+            release();
+        }
+
+        @Override
+        public void failed(Exception e)
+        {
+            // the message sending-process failed
+            // log it
+            if (xcmConfiguration.MTX_MAX_AGE != 0 && mailBox != null)
+            { // if mailtransaction.maxage is set to 0 -> log nothing
+                addMtxToJCList(400, from, mailBox.getFullAddress(), recipient);
             }
-            catch (MessagingException e)
+            log.error(e.getMessage());
+            release();
+        }
+
+        private void release()
+        {
+            if (rawContent != null)
             {
-                // the message sending-process failed
-                // log it
-                if (xcmConfiguration.MTX_MAX_AGE != 0 && mailBox != null)
-                { // if mailtransaction.maxage is set to 0 -> log nothing
-                    mtx = new MailTransaction(400, from, mailBox.getFullAddress(), recipient);
-                    addMtxToJCList(mtx);
-                }
-                log.error(e.getMessage());
+                rawContent.release();
             }
         }
     }
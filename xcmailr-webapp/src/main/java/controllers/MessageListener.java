@@ -16,12 +16,8 @@
  */
 package controllers;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
@@ -32,23 +28,24 @@ import javax.mail.Session;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMessage.RecipientType;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.subethamail.smtp.helper.SimpleMessageListener;
 
-import com.avaje.ebean.Ebean;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import conf.XCMailrConf;
+import etc.MailHeaderScan;
+import etc.MailProjection;
 import etc.MessageComposer;
+import etc.RawMailBuffer;
+import etc.RawMimeMessage;
 import models.MBox;
 import models.Mail;
-import models.MailTransaction;
+import models.MailboxRoutingIndex;
 import models.User;
 
 /**
@@ -68,6 +65,15 @@ public class MessageListener implements SimpleMessageListener
     @Inject
     JobController jobController;
 
+    @Inject
+    MailStatisticsCounter mailStatisticsCounter;
+
+    @Inject
+    MailboxWaiters mailboxWaiters;
+
+    @Inject
+    MailboxEventStream mailboxEventStream;
+
     @Inject
     Logger log;
 
@@ -81,9 +87,7 @@ public class MessageListener implements SimpleMessageListener
         // accept the address if the domain is contained in the application.conf
         String[] splitaddress = recipient.split("@");
 
-        List<String> domainlist = Arrays.asList(xcmConfiguration.DOMAIN_LIST);
-
-        if ((splitaddress.length == 2) && (domainlist.contains(splitaddress[1])))
+        if ((splitaddress.length == 2) && (xcmConfiguration.DOMAIN_SET.contains(splitaddress[1])))
             return true;
 
         // the mailaddress has a strange form or has an recipient with a domain-part that does not belong to our
@@ -91,8 +95,7 @@ public class MessageListener implements SimpleMessageListener
         // log status 500 (relay denied)
         if (xcmConfiguration.MTX_MAX_AGE != 0)
         { // if mailtransaction.maxage is set to 0 -> log nothing
-            MailTransaction mtx = new MailTransaction(500, from, null, recipient);
-            jobController.mtxQueue.add(mtx);
+            jobController.mtxQueue.offer(500, from, null, recipient);
         }
         return false;
     }
@@ -106,12 +109,13 @@ public class MessageListener implements SimpleMessageListener
      * </ul>
      * The number of hops / too many Received fields is checked by an internal library.
      * 
-     * @param mail
-     *            the mail to check
+     * @param headers
+     *            the headers of the mail to check (see {@link MailHeaderScan})
      * @return null if there was no loop, an error message if there was
      * @throws MessagingException
+     *             if the To header can't be parsed
      */
-    String checkForLoop(MimeMessage mail) throws MessagingException
+    String checkForLoop(MailHeaderScan headers) throws MessagingException
     {
         String errorMessage;
 
@@ -137,54 +141,49 @@ public class MessageListener implements SimpleMessageListener
         // }
 
         // check custom X-Loop header
-        String customHeader = mail.getHeader(LOOP_HEADER_NAME, "###");
-        if (customHeader != null)
+        if (!headers.getLoopHeaders().isEmpty() && headers.getTo() != null)
         {
-            customHeader = customHeader.toLowerCase();
-            String shouldBeContent = LOOP_HEADER_VALUE_PREFIX + mail.getRecipients(RecipientType.TO)[0];
-            if (customHeader.contains(shouldBeContent))
+            InternetAddress[] recipients = InternetAddress.parseHeader(headers.getTo(), false);
+            if (recipients.length > 0)
             {
-                // loop detected;
-                errorMessage = "X-Loop header with this email adress present";
-                return errorMessage;
+                String shouldBeContent = LOOP_HEADER_VALUE_PREFIX + recipients[0];
+                for (String customHeader : headers.getLoopHeaders())
+                {
+                    if (customHeader.toLowerCase().contains(shouldBeContent))
+                    {
+                        // loop detected;
+                        errorMessage = "X-Loop header with this email adress present";
+                        return errorMessage;
+                    }
+                }
             }
         }
 
         // determine domain from message ID
-        String id = mail.getMessageID();
+        String id = headers.getMessageId();
         if (id != null)
         {
             String[] splitString = id.split("@");
 
-            if (id.length() >= 2)
+            if (splitString.length >= 2)
             {
                 String domain = splitString[1];
                 domain = domain.toLowerCase();
 
                 // check References header
-                String referenceHeaders = mail.getHeader("References", "###");
-                if (referenceHeaders != null)
+                if (containsDomain(headers.getReferences(), domain))
                 {
-                    referenceHeaders = referenceHeaders.toLowerCase();
-                    if (referenceHeaders.contains("@" + domain))
-                    {
-                        // loop detected;
-                        errorMessage = "References header references the domain of this email adress: " + domain;
-                        return errorMessage;
-                    }
+                    // loop detected;
+                    errorMessage = "References header references the domain of this email adress: " + domain;
+                    return errorMessage;
                 }
 
                 // check In-Reply-To header
-                String inReplyToHeader = mail.getHeader("In-Reply-To", "###");
-                if (inReplyToHeader != null)
+                if (containsDomain(headers.getInReplyTo(), domain))
                 {
-                    inReplyToHeader = inReplyToHeader.toLowerCase();
-                    if (inReplyToHeader.contains("@" + domain))
-                    {
-                        // loop detected;
-                        errorMessage = "In-Reply-To header mentions the domain of this email adress: " + domain;
-                        return errorMessage;
-                    }
+                    // loop detected;
+                    errorMessage = "In-Reply-To header mentions the domain of this email adress: " + domain;
+                    return errorMessage;
                 }
             }
             else
@@ -202,6 +201,18 @@ public class MessageListener implements SimpleMessageListener
         return null;
     }
 
+    private boolean containsDomain(List<String> headerValues, String domain)
+    {
+        for (String headerValue : headerValues)
+        {
+            if (headerValue.toLowerCase().contains("@" + domain))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Checks preconditions related to the MBox, such as:
      * <ul>
@@ -230,12 +241,13 @@ public class MessageListener implements SimpleMessageListener
             return null;
         }
 
-        if (MBox.mailExists(splitAddress[0], splitAddress[1]) == false)
+        // resolve the box by the in-memory routing index
+        mailBox = MailboxRoutingIndex.resolve(splitAddress[0], splitAddress[1]);
+        if (mailBox == null)
         { // mailaddress/forward does not exist
             createMtxAndAddToQueue(100, from, recipient, null);
             return null;
         }
-        mailBox = MBox.getByName(splitAddress[0], splitAddress[1]);
         final String forwardTarget = (mailBox.getUsr() != null) ? mailBox.getUsr().getMail() : "";
 
         if (mailBox.isActive() == false)
@@ -270,16 +282,16 @@ public class MessageListener implements SimpleMessageListener
                 return;
             }
 
-            final Address forwardAddress;
             final String forwardTarget = (mailBox.getUsr() != null) ? mailBox.getUsr().getMail() : "";
 
             final Session session = mailrSenderFactory.getSession();
             session.setDebug(xcmConfiguration.OUT_SMTP_DEBUG);
 
-            String rawContent = null;
+            RawMailBuffer rawContent = null;
             try
             {
-                rawContent = readLimitedAmount(data, xcmConfiguration.MAX_MAIL_SIZE);
+                rawContent = readLimitedAmount(data, xcmConfiguration.MAX_MAIL_SIZE,
+                                               xcmConfiguration.MAIL_MEMORY_THRESHOLD);
             }
             catch (IOException e)
             {
@@ -294,136 +306,208 @@ public class MessageListener implements SimpleMessageListener
                 throw e;
             }
 
-            MimeMessage mail = new MimeMessage(session, new ByteArrayInputStream(rawContent.getBytes()));
-
-            // write to mail table
-            persistMail(mailBox, from, mail, rawContent);
-
-            // check if the mail address is configured to forward emails
-            // the mail is still persisted (see above)
-            if (!mailBox.isForwardEmails())
-                return;
-
-            // check for a possible loop ...
-            String loopError = checkForLoop(mail);
-            if (loopError != null)
+            // the buffer is released by the forwarding-task if the mail is forwarded
+            boolean forwarded = false;
+            try
             {
-                log.info("Broke a possible loop");
-                log.info("Email was not forwarded");
-                log.info("From: " + from + " To:" + recipient);
-                log.info(loopError);
-                return;
+                forwarded = processMail(mailBox, from, recipient, forwardTarget, session, rawContent);
             }
-            // there's an existing and active mail-address
-            // add the target-address to the list
-            try
+            finally
             {
-                forwardAddress = new InternetAddress(forwardTarget);
-                // rewrite the message body and wrap the original message in a new one if mail.msg.rewrite is
-                // set to true
-                if (xcmConfiguration.MSG_REWRITE)
+                if (!forwarded)
                 {
-                    mail = MessageComposer.createQuotedMessage(mail);
+                    rawContent.release();
                 }
-                mail.setRecipient(Message.RecipientType.TO, forwardAddress);
-                mail.removeHeader("Cc");
-                mail.removeHeader("BCC");
+            }
+        }
+        catch (MessagingException e)
+        {
+            // the message-creation-process failed
+            // either the session can't be created or the input-stream was wrong
+            log.error(e.getMessage());
+        }
+        catch (IOException e)
+        {
+            log.error(e.getMessage());
+        }
+    }
 
-                mail.setSender(new InternetAddress(recipient));
-                mail.setFrom(new InternetAddress(recipient));
+    /**
+     * Stores the mail and forwards it if the box is configured to forward mails.
+     * 
+     * @return true if the mail has been handed over to the forwarding-workers (which release the buffer then)
+     */
+    private boolean processMail(MBox mailBox, String from, String recipient, String forwardTarget, Session session,
+                                RawMailBuffer rawContent)
+        throws MessagingException, IOException
+    {
+        final Address forwardAddress;
 
-                // intention: set 'from' to the incoming email address, set the sender to xcmailers one
-                // for clarity. Unfortunately it doesn't work because the SMTP server refuses to send these mails
-                // mail.setFrom(new InternetAddress(from));
+        // decide whether the mail is forwarded by its headers only, before the mail is parsed
+        final String loopError = mailBox.isForwardEmails() ? checkHeadersForLoop(rawContent) : null;
 
-                // set the Reply-To header to the incoming email address, the semantic one of the original sender
-                mail.setReplyTo(InternetAddress.parse(from));
-                mail.addHeader("X-FORWARDED-FROM", from);
+        // the message is parsed lazily from the buffer, if it's forwarded without rewriting, its body is sent as
+        // received
+        MimeMessage mail = new RawMimeMessage(session, rawContent);
 
-                // Set headers to break loops
-                String loopHeaderContent = LOOP_HEADER_VALUE_PREFIX + recipient;
-                mail.addHeader(LOOP_HEADER_NAME, loopHeaderContent);
-                mail.addHeader("Auto-Submitted", "auto-forwarded");
+        // write to mail table
+        persistMail(mailBox, from, mail, rawContent);
 
-                // send the mail in a separate thread
-                MailrMessageSenderFactory.ThreadedMailSend tms = mailrSenderFactory.new ThreadedMailSend(mail, mailBox);
-                tms.start();
-            }
-            catch (AddressException e)
-            {
-                log.error(e.getMessage());
-                // the message can't be forwarded (has not the correct format)
-                // this SHOULD never be the case...
-                createMtxAndAddToQueue(400, from, recipient, forwardTarget);
-            }
-            catch (IOException e)
+        // check if the mail address is configured to forward emails
+        // the mail is still persisted (see above)
+        if (!mailBox.isForwardEmails())
+            return false;
+
+        // check for a possible loop ...
+        if (loopError != null)
+        {
+            log.info("Broke a possible loop");
+            log.info("Email was not forwarded");
+            log.info("From: " + from + " To:" + recipient);
+            log.info(loopError);
+            return false;
+        }
+        // there's an existing and active mail-address
+        // add the target-address to the list
+        try
+        {
+            forwardAddress = new InternetAddress(forwardTarget);
+            // rewrite the message body and wrap the original message in a new one if mail.msg.rewrite is
+            // set to true
+            if (xcmConfiguration.MSG_REWRITE)
             {
-                log.error(e.getMessage());
-                // the message can't be forwarded (has not the correct format)
-                // this SHOULD never be the case...
-                createMtxAndAddToQueue(400, from, recipient, forwardTarget);
+                mail = MessageComposer.createQuotedMessage(mail);
             }
+            mail.setRecipient(Message.RecipientType.TO, forwardAddress);
+            mail.removeHeader("Cc");
+            mail.removeHeader("BCC");
+
+            mail.setSender(new InternetAddress(recipient));
+            mail.setFrom(new InternetAddress(recipient));
+
+            // intention: set 'from' to the incoming email address, set the sender to xcmailers one
+            // for clarity. Unfortunately it doesn't work because the SMTP server refuses to send these mails
+            // mail.setFrom(new InternetAddress(from));
+
+            // set the Reply-To header to the incoming email address, the semantic one of the original sender
+            mail.setReplyTo(InternetAddress.parse(from));
+            mail.addHeader("X-FORWARDED-FROM", from);
+
+            // Set headers to break loops
+            String loopHeaderContent = LOOP_HEADER_VALUE_PREFIX + recipient;
+            mail.addHeader(LOOP_HEADER_NAME, loopHeaderContent);
+            mail.addHeader("Auto-Submitted", "auto-forwarded");
+
+            // queue the mail for the forwarding-workers, the buffer is released when the mail has been sent
+            mailrSenderFactory.forwardMail(mail, mailBox, rawContent);
+            return true;
         }
-        catch (MessagingException e)
+        catch (AddressException e)
         {
-            // the message-creation-process failed
-            // either the session can't be created or the input-stream was wrong
             log.error(e.getMessage());
+            // the message can't be forwarded (has not the correct format)
+            // this SHOULD never be the case...
+            createMtxAndAddToQueue(400, from, recipient, forwardTarget);
         }
         catch (IOException e)
         {
             log.error(e.getMessage());
+            // the message can't be forwarded (has not the correct format)
+            // this SHOULD never be the case...
+            createMtxAndAddToQueue(400, from, recipient, forwardTarget);
+        }
+        return false;
+    }
+
+    /**
+     * Checks the headers of the given mail for a loop. A mail whose headers can't be read or parsed is stored, but not
+     * forwarded.
+     * 
+     * @return the reason why the mail must not be forwarded or <code>null</code> if it can be forwarded
+     */
+    private String checkHeadersForLoop(RawMailBuffer rawContent)
+    {
+        try
+        {
+            return checkForLoop(scanHeaders(rawContent));
+        }
+        catch (MessagingException | IOException e)
+        {
+            return "The headers could not be checked for a loop: " + e.getMessage();
+        }
+    }
+
+    private MailHeaderScan scanHeaders(RawMailBuffer rawContent) throws IOException
+    {
+        InputStream in = rawContent.getInputStream();
+        try
+        {
+            return MailHeaderScan.scan(in);
+        }
+        finally
+        {
+            in.close();
         }
     }
 
     /**
-     * Reads up to maxSize characters from data input stream using 7-bit ASCII encoding. If the limit is exceeded an
-     * {@link SizeLimitExceededException} is thrown.
+     * Reads up to maxSize bytes from data input stream. If the limit is exceeded an {@link SizeLimitExceededException}
+     * is thrown. Mails larger than memoryThreshold bytes are buffered in a temporary file.
      * 
      * @param data
      *            an {@link InputStream}
      * @param maxSize
-     *            determines the maximum amount of characters to be read from data
+     *            determines the maximum amount of bytes to be read from data
+     * @param memoryThreshold
+     *            the maximum amount of bytes to be kept in memory
      * @return the streams' data
      * @throws SizeLimitExceededException
      *             if maxSize read limit is exceeded
      * @throws IOException if an I/O error occurred
      */
-    static String readLimitedAmount(InputStream data, int maxSize) throws IOException
+    static RawMailBuffer readLimitedAmount(InputStream data, long maxSize, int memoryThreshold) throws IOException
     {
-        // StringBuilderWriter doesn't need to be closed since the close method is no-op
-        @SuppressWarnings("resource")
-        final StringBuilderWriter sw = new StringBuilderWriter();
-
-        int n;
-        long count = 0;
-        char[] buffer = new char[4096];
-        final InputStreamReader in = new InputStreamReader(data, StandardCharsets.US_ASCII);
-        while (IOUtils.EOF != (n = in.read(buffer)))
+        final RawMailBuffer buffer = new RawMailBuffer(memoryThreshold);
+        try
         {
-            sw.write(buffer, 0, n);
-            count += n;
-            if (count > maxSize)
+            int n;
+            byte[] chunk = new byte[8192];
+            while (IOUtils.EOF != (n = data.read(chunk)))
             {
-                throw new SizeLimitExceededException("Data stream exceeds size limit of " + maxSize + " bytes");
+                if (buffer.size() + n > maxSize)
+                {
+                    throw new SizeLimitExceededException("Data stream exceeds size limit of " + maxSize + " bytes");
+                }
+                buffer.write(chunk, 0, n);
             }
+            buffer.close();
+        }
+        catch (IOException e)
+        {
+            buffer.release();
+            throw e;
         }
 
-        return sw.toString();
+        return buffer;
     }
 
-    private void persistMail(MBox mailBox, String from, MimeMessage mail, String rawMessage)
+    private void persistMail(MBox mailBox, String from, MimeMessage mail, RawMailBuffer rawMessage)
         throws MessagingException, IOException
     {
         Mail newMail = new Mail();
         newMail.setMailbox(mailBox);
         newMail.setSender(from);
         newMail.setSubject(StringUtils.defaultString(mail.getSubject()));
-        newMail.setMessage(rawMessage);
         newMail.setReceiveTime(System.currentTimeMillis());
         newMail.setUuid(UUID.randomUUID().toString());
+        // parse the content once to serve the mailbox-queries without the raw content
+        MailProjection.project(newMail, mail);
 
-        Ebean.save(newMail);
+        Mail.saveWithContent(newMail, rawMessage.getInputStream(), rawMessage.size());
+
+        // answer the mailbox-queries which wait for this mail
+        mailboxWaiters.mailArrived(newMail);
+        mailboxEventStream.mailArrived(newMail);
     }
 
     private void createMtxAndAddToQueue(final int status, final String from, final String recipient,
@@ -431,8 +515,15 @@ public class MessageListener implements SimpleMessageListener
     {
         if (xcmConfiguration.MTX_MAX_AGE != 0)
         {// if mailtransaction.maxage is set to 0 -> log nothing
-            final MailTransaction mtx = new MailTransaction(status, from, recipient, forwardTarget);
-            jobController.mtxQueue.add(mtx);
+            if (status == 100 || status == 300)
+            {
+                // dropped and forwarded mails are only counted for the statistics
+                mailStatisticsCounter.count(status, from, recipient);
+            }
+            else
+            {
+                jobController.mtxQueue.offer(status, from, recipient, forwardTarget);
+            }
         }
     }
 
@@ -0,0 +1,152 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A periodic maintenance job which is scheduled by the {@link JobController}. A failing run is logged and counted, but
+ * doesn't stop the schedule. Each run gets a time budget: the job should stop after the current unit of work once
+ * {@link #getDeadline()} has passed and continue with the next run.
+ */
+public abstract class ScheduledJob implements Runnable
+{
+    private static final Logger log = LoggerFactory.getLogger(ScheduledJob.class);
+
+    private final String name;
+
+    private final long interval;
+
+    private final long budget;
+
+    private volatile long deadline = Long.MAX_VALUE;
+
+    private final AtomicLong runs = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong overBudgetRuns = new AtomicLong();
+
+    private final AtomicLong processedItems = new AtomicLong();
+
+    private volatile int lastRunItems;
+
+    private volatile long lastRunDuration;
+
+    private volatile long lastSuccess;
+
+    /**
+     * @param name
+     *            the name of the job (used in the logs and metrics)
+     * @param interval
+     *            the delay between two runs in seconds
+     * @param budget
+     *            the time a single run may take in seconds
+     */
+    protected ScheduledJob(String name, long interval, long budget)
+    {
+        this.name = name;
+        this.interval = interval;
+        this.budget = budget;
+    }
+
+    /**
+     * Does the work of this job.
+     *
+     * @return the number of processed items
+     * @throws Exception
+     *             if the run failed
+     */
+    protected abstract int execute() throws Exception;
+
+    @Override
+    public final void run()
+    {
+        final long start = System.currentTimeMillis();
+        deadline = start + budget * 1000;
+        runs.incrementAndGet();
+        try
+        {
+            int items = execute();
+            processedItems.addAndGet(items);
+            lastRunItems = items;
+            lastSuccess = System.currentTimeMillis();
+        }
+        catch (Throwable t)
+        {
+            // never let the exception reach the executor, it would cancel all further runs
+            failures.incrementAndGet();
+            log.error("Job '" + name + "' failed", t);
+        }
+        finally
+        {
+            lastRunDuration = System.currentTimeMillis() - start;
+            deadline = Long.MAX_VALUE;
+        }
+        if (lastRunDuration > budget * 1000)
+        {
+            overBudgetRuns.incrementAndGet();
+            log.warn("Job '" + name + "' exceeded its budget of " + budget + " s (" + lastRunDuration + " ms)");
+        }
+    }
+
+    /**
+     * @return the time (in milliseconds) the current run should be finished at
+     */
+    public long getDeadline()
+    {
+        return deadline;
+    }
+
+    /**
+     * @return the name of this job
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the delay between two runs in seconds
+     */
+    public long getInterval()
+    {
+        return interval;
+    }
+
+    /**
+     * @return the number of runs and failures, the processed items and the duration of the last run and the time of
+     *         the last successful run
+     */
+    public Map<String, Number> getMetrics()
+    {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("runs", runs.get());
+        metrics.put("failures", failures.get());
+        metrics.put("overBudgetRuns", overBudgetRuns.get());
+        metrics.put("processedItems", processedItems.get());
+        metrics.put("lastRunItems", lastRunItems);
+        metrics.put("lastRunDuration", lastRunDuration);
+        metrics.put("lastSuccess", lastSuccess);
+        return metrics;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The sessions of a user with the time each of them expires at, which is stored at the caching-server under the user's
+ * mail-address. The sessions are kept in the order they have been added, so the oldest one is evicted first if the
+ * index exceeds its maximum size. Expired sessions are pruned on each change.
+ * <p>
+ * The index isn't thread-safe, the {@link CachingSessionHandler} reads, changes and writes it back while holding the
+ * lock of the user.
+ * </p>
+ */
+class SessionIndex implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final LinkedHashMap<String, Long> sessions = new LinkedHashMap<String, Long>();
+
+    /**
+     * Adds a session or moves it to the end if it has been added before.
+     *
+     * @param sessionId
+     *            the session-id
+     * @param expires
+     *            the time (in milliseconds) the session expires at
+     * @param now
+     *            the current time (in milliseconds)
+     * @param maxSize
+     *            the maximum number of sessions
+     * @return the ids of the sessions which have been evicted to keep the maximum size
+     */
+    List<String> add(String sessionId, long expires, long now, int maxSize)
+    {
+        prune(now);
+        sessions.remove(sessionId);
+        sessions.put(sessionId, expires);
+
+        final List<String> evicted = new ArrayList<String>();
+        final Iterator<String> oldest = sessions.keySet().iterator();
+        while (sessions.size() > maxSize && oldest.hasNext())
+        {
+            evicted.add(oldest.next());
+            oldest.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * Adds the sessions of the given index.
+     *
+     * @param other
+     *            the index
+     * @param now
+     *            the current time (in milliseconds)
+     * @param maxSize
+     *            the maximum number of sessions
+     * @return the ids of the sessions which have been evicted to keep the maximum size
+     */
+    List<String> addAll(SessionIndex other, long now, int maxSize)
+    {
+        final List<String> evicted = new ArrayList<String>();
+        for (Entry<String, Long> session : other.sessions.entrySet())
+        {
+            evicted.addAll(add(session.getKey(), session.getValue(), now, maxSize));
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes a session.
+     *
+     * @param sessionId
+     *            the session-id
+     * @return true if the session has been in this index
+     */
+    boolean remove(String sessionId)
+    {
+        return sessions.remove(sessionId) != null;
+    }
+
+    /**
+     * Removes the sessions which have expired.
+     *
+     * @param now
+     *            the current time (in milliseconds)
+     */
+    void prune(long now)
+    {
+        final Iterator<Long> expiration = sessions.values().iterator();
+        while (expiration.hasNext())
+        {
+            if (expiration.next() <= now)
+            {
+                expiration.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the ids of the sessions with the time (in milliseconds) each of them expires at, the oldest first
+     */
+    Map<String, Long> getSessions()
+    {
+        return Collections.unmodifiableMap(sessions);
+    }
+
+    /**
+     * @return the time (in milliseconds) the last session expires at
+     */
+    long getLastExpiration()
+    {
+        long last = 0;
+        for (long expires : sessions.values())
+        {
+            last = Math.max(last, expires);
+        }
+        return last;
+    }
+
+    boolean isEmpty()
+    {
+        return sessions.isEmpty();
+    }
+
+    int size()
+    {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import etc.SessionUser;
+
+/**
+ * A small in-process LRU cache with a short time-to-live in front of the caching-server or the database. The cached
+ * {@link SessionUser session users} are immutable, so all requests of a session share the same object. An entry
+ * expires after the time-to-live even if it hasn't been invalidated, so changes made by other nodes are seen after
+ * that time at the latest.
+ */
+public class SessionNearCache
+{
+    private final int maxSize;
+
+    private final long timeToLive;
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * @param maxSize
+     *            the maximum number of entries, the least recently used entry is evicted if it's exceeded
+     * @param timeToLive
+     *            the time (in milliseconds) an entry is kept
+     */
+    public SessionNearCache(final int maxSize, long timeToLive)
+    {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return true if this cache keeps any entries
+     */
+    public boolean isEnabled()
+    {
+        return maxSize > 0 && timeToLive > 0;
+    }
+
+    /**
+     * Returns the session user to the given key.
+     *
+     * @param key
+     *            the key
+     * @return the session user or <code>null</code> if there's no entry or it has expired
+     */
+    public SessionUser get(String key)
+    {
+        return get(key, System.currentTimeMillis());
+    }
+
+    SessionUser get(String key, long now)
+    {
+        final Entry entry;
+        synchronized (entries)
+        {
+            entry = entries.get(key);
+            if (entry == null)
+            {
+                return null;
+            }
+            if (entry.expires <= now)
+            {
+                entries.remove(key);
+                return null;
+            }
+        }
+        return entry.value;
+    }
+
+    /**
+     * Keeps the given session user.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the session user
+     */
+    public void put(String key, SessionUser value)
+    {
+        put(key, value, System.currentTimeMillis());
+    }
+
+    void put(String key, SessionUser value, long now)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        synchronized (entries)
+        {
+            entries.put(key, new Entry(value, now + timeToLive));
+        }
+    }
+
+    /**
+     * Removes the entry to the given key.
+     *
+     * @param key
+     *            the key
+     */
+    public void invalidate(String key)
+    {
+        synchronized (entries)
+        {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * @return the number of entries (including the expired ones which haven't been removed yet)
+     */
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * A session user and the time (in milliseconds) it expires at.
+     */
+    private static final class Entry
+    {
+        final SessionUser value;
+
+        final long expires;
+
+        Entry(SessionUser value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package controllers;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.mail.smtp.SMTPTransport;
+
+import conf.XCMailrConf;
+import ninja.lifecycle.Dispose;
+
+/**
+ * Keeps the connections to the outgoing SMTP-server open to send multiple mails over one connection instead of doing
+ * the whole connect, EHLO, STARTTLS and AUTH sequence for each mail. The connections are pooled per server
+ * configuration of the {@link Session}. A connection is checked with NOOP before it's reused, and closed after
+ * mail.smtp.pool.maxmessages mails or when it has been idle for more than mail.smtp.pool.idletimeout seconds.
+ */
+@Singleton
+public class SmtpTransportPool
+{
+    private final Logger log;
+
+    private final int maxIdle;
+
+    private final int maxMessages;
+
+    private final long idleTimeout;
+
+    private final Map<String, Deque<PooledTransport>> pools = new ConcurrentHashMap<String, Deque<PooledTransport>>();
+
+    private final AtomicLong opened = new AtomicLong();
+
+    private final AtomicLong reused = new AtomicLong();
+
+    private volatile boolean closed;
+
+    @Inject
+    public SmtpTransportPool(XCMailrConf xcmConfiguration, Logger log)
+    {
+        this(xcmConfiguration.FWD_POOL_SIZE, xcmConfiguration.OUT_SMTP_POOL_MAX_MESSAGES,
+             xcmConfiguration.OUT_SMTP_POOL_IDLE_TIMEOUT * 1000L, log);
+    }
+
+    SmtpTransportPool(int maxIdle, int maxMessages, long idleTimeout, Logger log)
+    {
+        this.maxIdle = maxIdle;
+        this.maxMessages = maxMessages;
+        this.idleTimeout = idleTimeout;
+        this.log = log;
+    }
+
+    /**
+     * Sends the given mail to all of its recipients using a pooled connection. If a reused connection turns out to be
+     * broken, the mail is sent once more over a new connection.
+     *
+     * @param session
+     *            the session which specifies the SMTP-server
+     * @param mail
+     *            the mail to send
+     * @throws MessagingException
+     *             if the mail could not be sent
+     */
+    public void send(Session session, MimeMessage mail) throws MessagingException
+    {
+        // like Transport.send()
+        mail.saveChanges();
+        Address[] recipients = mail.getAllRecipients();
+        if (recipients == null || recipients.length == 0)
+        {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        String key = key(session);
+        PooledTransport pooled = borrow(session, key);
+        try
+        {
+            pooled.transport.sendMessage(mail, recipients);
+        }
+        catch (SendFailedException e)
+        {
+            // the server rejected the mail, not the connection
+            release(key, pooled);
+            throw e;
+        }
+        catch (MessagingException e)
+        {
+            close(pooled);
+            if (!pooled.reused)
+            {
+                throw e;
+            }
+            log.debug("Pooled SMTP connection broke, reconnecting: " + e.getMessage());
+            pooled = connect(session);
+            try
+            {
+                pooled.transport.sendMessage(mail, recipients);
+            }
+            catch (MessagingException e2)
+            {
+                close(pooled);
+                throw e2;
+            }
+        }
+        release(key, pooled);
+    }
+
+    /**
+     * @return the number of connections opened so far
+     */
+    public long getOpenedConnections()
+    {
+        return opened.get();
+    }
+
+    /**
+     * @return the number of mails sent over a reused connection
+     */
+    public long getReusedConnections()
+    {
+        return reused.get();
+    }
+
+    /**
+     * @return the number of idle connections
+     */
+    public int getIdleConnections()
+    {
+        int idle = 0;
+        for (Deque<PooledTransport> pool : pools.values())
+        {
+            idle += pool.size();
+        }
+        return idle;
+    }
+
+    /**
+     * Closes all idle connections. Connections which are in use will be closed when they're released.
+     */
+    @Dispose(order = 70)
+    public void closeAll()
+    {
+        closed = true;
+        for (Deque<PooledTransport> pool : pools.values())
+        {
+            PooledTransport pooled;
+            while ((pooled = pool.pollFirst()) != null)
+            {
+                close(pooled);
+            }
+        }
+    }
+
+    private PooledTransport borrow(Session session, String key) throws MessagingException
+    {
+        Deque<PooledTransport> pool = pools.get(key);
+        if (pool != null)
+        {
+            long now = System.currentTimeMillis();
+            PooledTransport pooled;
+            while ((pooled = pool.pollFirst()) != null)
+            {
+                if (now - pooled.lastUsed > idleTimeout || !isAlive(pooled))
+                {
+                    close(pooled);
+                    continue;
+                }
+                pooled.reused = true;
+                reused.incrementAndGet();
+                return pooled;
+            }
+        }
+        return connect(session);
+    }
+
+    private void release(String key, PooledTransport pooled)
+    {
+        pooled.messages++;
+        pooled.lastUsed = System.currentTimeMillis();
+        if (closed || pooled.messages >= maxMessages)
+        {
+            close(pooled);
+            return;
+        }
+
+        Deque<PooledTransport> pool = pools.get(key);
+        if (pool == null)
+        {
+            pools.putIfAbsent(key, new LinkedBlockingDeque<PooledTransport>(maxIdle));
+            pool = pools.get(key);
+        }
+        // reuse the most recently used connection first to let the others expire
+        if (!pool.offerFirst(pooled))
+        {
+            close(pooled);
+        }
+    }
+
+    private PooledTransport connect(Session session) throws MessagingException
+    {
+        Transport transport = session.getTransport("smtp");
+        transport.connect();
+        opened.incrementAndGet();
+        return new PooledTransport(transport);
+    }
+
+    private boolean isAlive(PooledTransport pooled)
+    {
+        if (!(pooled.transport instanceof SMTPTransport))
+        {
+            return pooled.transport.isConnected();
+        }
+        try
+        {
+            ((SMTPTransport) pooled.transport).issueCommand("NOOP", 250);
+            return true;
+        }
+        catch (MessagingException e)
+        {
+            return false;
+        }
+    }
+
+    private void close(PooledTransport pooled)
+    {
+        try
+        {
+            pooled.transport.close();
+        }
+        catch (MessagingException e)
+        {
+            // the connection is gone anyway
+        }
+    }
+
+    /**
+     * @return the key of the server configuration of the given session
+     */
+    private static String key(Session session)
+    {
+        // the values are not necessarily strings (see MailrMessageSenderFactory.getSession())
+        Properties properties = session.getProperties();
+        return properties.get("mail.smtp.host") + ":" + properties.get("mail.smtp.port") + ":"
+               + properties.get("mail.smtp.starttls.enable") + ":" + properties.get("mail.smtp.auth");
+    }
+
+    private static class PooledTransport
+    {
+        final Transport transport;
+
+        int messages;
+
+        long lastUsed;
+
+        boolean reused;
+
+        PooledTransport(Transport transport)
+        {
+            this.transport = transport;
+        }
+    }
+}
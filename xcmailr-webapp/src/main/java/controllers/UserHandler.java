@@ -55,6 +55,12 @@ public class UserHandler
     @Inject
     CachingSessionHandler cachingSessionHandler;
 
+    @Inject
+    ApiTokenCache apiTokenCache;
+
+    @Inject
+    MailboxEventStream mailboxEventStream;
+
     @Inject
     XCMailrConf xcmConfiguration;
 
@@ -85,7 +91,7 @@ public class UserHandler
                                                                         msg);
         result.render("available_langs", availableLanguages);
 
-        User user = context.getAttribute("user", User.class);
+        User user = HelperUtils.getUser(context);
         String oldMail = user.getMail();
         if (validation.hasViolations())
         { // the filled form has errors
@@ -203,7 +209,7 @@ public class UserHandler
         List<String[]> availableLanguageList = HelperUtils.getLanguageList(xcmConfiguration.APP_LANGS, context, result,
                                                                            msg);
         result.render("available_langs", availableLanguageList);
-        User user = context.getAttribute("user", User.class);
+        User user = HelperUtils.getUser(context);
 
         // handle the possibility, that the user has no language set (compatibility from updates of old versions, when
         // there was no language-attribute)
@@ -212,7 +218,7 @@ public class UserHandler
             Optional<Result> opt = Optional.of(result);
             user.setLanguage(lang.getLanguage(context, opt).get());
             user.update();
-            cachingSessionHandler.replace(context.getSession().getId(), xcmConfiguration.COOKIE_EXPIRETIME, user);
+            cachingSessionHandler.updateUsersSessions(user);
         }
 
         UserFormData userFormData = UserFormData.prepopulate(user);
@@ -231,7 +237,7 @@ public class UserHandler
         Result editUserResult = Results.redirect(context.getContextPath() + "/user/edit");
 
         String password = context.getParameter("password");
-        User user = context.getAttribute("user", User.class);
+        User user = HelperUtils.getUser(context);
         if (StringUtils.isBlank(password))
             return editUserResult;// no password entered
 
@@ -262,10 +268,14 @@ public class UserHandler
         TokenGenerator tokenGenerator = new TokenGenerator(50);
         String newToken = tokenGenerator.nextString();
 
-        User user = context.getAttribute("user", User.class);
+        User user = HelperUtils.getUser(context);
+        // invalidate after saving, so a concurrent request can't put the old token into the cache again
+        final String oldToken = user.getApiToken();
         user.setApiToken(newToken);
         user.setApiTokenCreationTimestamp(System.currentTimeMillis());
         user.save();
+        apiTokenCache.invalidate(oldToken);
+        mailboxEventStream.closeUser(user.getId());
 
         result.render(new ApiToken(newToken));
 
@@ -274,9 +284,12 @@ public class UserHandler
 
     public Result revokeApiToken(Context context)
     {
-        User user = context.getAttribute("user", User.class);
+        User user = HelperUtils.getUser(context);
+        final String oldToken = user.getApiToken();
         user.setApiToken(null);
         user.save();
+        apiTokenCache.invalidate(oldToken);
+        mailboxEventStream.closeUser(user.getId());
 
         return Results.json();
     }
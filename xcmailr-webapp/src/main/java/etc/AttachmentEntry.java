@@ -6,6 +6,10 @@ import javax.activation.DataSource;
 
 public class AttachmentEntry
 {
+    public AttachmentEntry()
+    {
+    }
+
     public AttachmentEntry(DataSource attachment) throws IOException
     {
         this.name = attachment.getName();
@@ -166,6 +166,29 @@ public class HelperUtils
         context.getSession().put("no", value);
     }
 
+    /**
+     * Returns the entity of the logged-in user. The entity is loaded once per request, the filters put only the
+     * {@link SessionUser} into the context.
+     * 
+     * @param context
+     *            the context of this request
+     * @return the user or <code>null</code> if there's no logged-in user or it has been deleted
+     */
+    public static User getUser(Context context)
+    {
+        User user = context.getAttribute("userEntity", User.class);
+        if (user == null)
+        {
+            final SessionUser sessionUser = context.getAttribute("user", SessionUser.class);
+            if (sessionUser != null)
+            {
+                user = User.getById(sessionUser.getId());
+                context.setAttribute("userEntity", user);
+            }
+        }
+        return user;
+    }
+
     /**
      * Creates a List which contains a string-array with the abbreviated language first and the long form as second item
      * translated to the language which is given primary by the result (or the context, if e.g. the result is null)
@@ -0,0 +1,204 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package etc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The headers of a raw mail which decide whether it's forwarded: X-Loop, Message-ID, References, In-Reply-To and To.
+ * The headers are read from the raw bytes up to the blank line which ends the header section, the body isn't read and
+ * no {@link javax.mail.internet.MimeMessage} is created. All other headers are skipped.
+ */
+public final class MailHeaderScan
+{
+    /** the maximum number of bytes which are scanned, the rest of an oversized header section is ignored */
+    static final int MAX_HEADER_SIZE = 256 * 1024;
+
+    private final List<String> loopHeaders = new ArrayList<String>();
+
+    private final List<String> references = new ArrayList<String>();
+
+    private final List<String> inReplyTo = new ArrayList<String>();
+
+    private String messageId;
+
+    private String to;
+
+    /** the last header, which may be continued by the next line */
+    private String pendingHeader;
+
+    private MailHeaderScan()
+    {
+    }
+
+    /**
+     * Reads the header section of the given raw mail.
+     * 
+     * @param in
+     *            the raw mail, read up to the end of the header section
+     * @return the scanned headers
+     * @throws IOException
+     *             if the mail can't be read
+     */
+    public static MailHeaderScan scan(InputStream in) throws IOException
+    {
+        final MailHeaderScan scan = new MailHeaderScan();
+        final byte[] chunk = new byte[4096];
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        int scanned = 0;
+        boolean headerEnd = false;
+        int n;
+        while (!headerEnd && scanned < MAX_HEADER_SIZE && (n = in.read(chunk, 0, chunk.length)) != -1)
+        {
+            scanned += n;
+            for (int i = 0; i < n && !headerEnd; i++)
+            {
+                if (chunk[i] == '\n')
+                {
+                    headerEnd = !scan.addLine(line, lineLength);
+                    lineLength = 0;
+                    continue;
+                }
+                if (lineLength == line.length)
+                {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = chunk[i];
+            }
+        }
+        if (!headerEnd)
+        {
+            // a mail without body
+            scan.addLine(line, lineLength);
+        }
+        scan.add(scan.pendingHeader);
+        return scan;
+    }
+
+    /**
+     * Adds a line of the header section.
+     * 
+     * @return false if the line is the blank line which ends the header section
+     */
+    private boolean addLine(byte[] line, int lineLength)
+    {
+        final int length = (lineLength > 0 && line[lineLength - 1] == '\r') ? lineLength - 1 : lineLength;
+        if (length == 0)
+        {
+            return false;
+        }
+        final String text = new String(line, 0, length, StandardCharsets.ISO_8859_1);
+        if (pendingHeader != null && (text.charAt(0) == ' ' || text.charAt(0) == '\t'))
+        {
+            // a folded line continues the previous header
+            pendingHeader = pendingHeader + text;
+        }
+        else
+        {
+            add(pendingHeader);
+            pendingHeader = text;
+        }
+        return true;
+    }
+
+    private void add(String header)
+    {
+        if (header == null)
+        {
+            return;
+        }
+        final int colon = header.indexOf(':');
+        if (colon <= 0)
+        {
+            return;
+        }
+        final String name = header.substring(0, colon).trim();
+        final String value = header.substring(colon + 1).trim();
+
+        if (name.equalsIgnoreCase("X-Loop"))
+        {
+            loopHeaders.add(value);
+        }
+        else if (name.equalsIgnoreCase("References"))
+        {
+            references.add(value);
+        }
+        else if (name.equalsIgnoreCase("In-Reply-To"))
+        {
+            inReplyTo.add(value);
+        }
+        else if (name.equalsIgnoreCase("Message-ID"))
+        {
+            if (messageId == null)
+            {
+                messageId = value;
+            }
+        }
+        else if (name.equalsIgnoreCase("To"))
+        {
+            // multiple To headers are combined like the recipients of a MimeMessage
+            to = (to == null) ? value : to + "," + value;
+        }
+    }
+
+    /**
+     * @return the values of the X-Loop headers
+     */
+    public List<String> getLoopHeaders()
+    {
+        return Collections.unmodifiableList(loopHeaders);
+    }
+
+    /**
+     * @return the values of the References headers
+     */
+    public List<String> getReferences()
+    {
+        return Collections.unmodifiableList(references);
+    }
+
+    /**
+     * @return the values of the In-Reply-To headers
+     */
+    public List<String> getInReplyTo()
+    {
+        return Collections.unmodifiableList(inReplyTo);
+    }
+
+    /**
+     * @return the value of the first Message-ID header or null if there is none
+     */
+    public String getMessageId()
+    {
+        return messageId;
+    }
+
+    /**
+     * @return the values of the To headers separated by commas or null if there is none
+     */
+    public String getTo()
+    {
+        return to;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package etc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.activation.DataSource;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.mail.util.MimeMessageParser;
+import org.apache.commons.mail.util.MimeMessageUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import models.Mail;
+
+/**
+ * Parses a mail once on receipt and stores the parts which are shown by the mailbox-queries (plain text, HTML and the
+ * attachment manifest) at the {@link Mail}, so the queries don't have to parse the raw content again.
+ */
+public final class MailProjection
+{
+    private static final Logger log = LoggerFactory.getLogger(MailProjection.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private MailProjection()
+    {
+    }
+
+    /**
+     * Parses the given message and sets the projection at the given mail. If the message can't be parsed, an empty
+     * projection is set.
+     *
+     * @param mail
+     *            the mail to update
+     * @param message
+     *            the parsed raw content of the mail
+     */
+    public static void project(Mail mail, MimeMessage message)
+    {
+        String textContent = "";
+        String htmlContent = "";
+        List<AttachmentEntry> attachments = new ArrayList<AttachmentEntry>();
+        try
+        {
+            MimeMessageParser mimeMessageParser = new MimeMessageParser(message);
+            mimeMessageParser.parse();
+
+            textContent = StringUtils.defaultString(mimeMessageParser.getPlainContent());
+            htmlContent = StringUtils.defaultString(mimeMessageParser.getHtmlContent());
+            for (DataSource attachment : mimeMessageParser.getAttachmentList())
+            {
+                attachments.add(new AttachmentEntry(attachment));
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("Failed to parse the content of mail '{}': {}", mail.getSubject(), e.getMessage());
+        }
+
+        mail.setTextContent(textContent);
+        mail.setHtmlContent(htmlContent);
+        try
+        {
+            mail.setAttachments(objectMapper.writeValueAsString(attachments));
+        }
+        catch (IOException e)
+        {
+            mail.setAttachments("[]");
+        }
+    }
+
+    /**
+     * Sets and stores the projection of a mail which has been received before the projection was introduced.
+     *
+     * @param mail
+     *            the mail to check
+     * @throws Exception
+     *             if the raw content can't be read
+     */
+    public static void ensureProjected(Mail mail) throws Exception
+    {
+        if (mail.getTextContent() != null)
+        {
+            return;
+        }
+        byte[] rawContent = (mail.getMessage() == null) ? new byte[0] : mail.getMessage();
+        project(mail, MimeMessageUtils.createMimeMessage(null, new SharedByteArrayInputStream(rawContent)));
+        mail.update();
+    }
+
+    /**
+     * @param mail
+     *            the (projected) mail
+     * @return the attachments of the mail
+     */
+    public static List<AttachmentEntry> getAttachments(Mail mail)
+    {
+        if (StringUtils.isEmpty(mail.getAttachments()))
+        {
+            return Collections.emptyList();
+        }
+        try
+        {
+            return objectMapper.readValue(mail.getAttachments(), TypeRef.LIST_ATTACHMENT_ENTRY);
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to read the attachments of mail '{}': {}", mail.getId(), e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+}
@@ -2,17 +2,11 @@ package etc;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.Base64.Decoder;
 import java.util.Base64.Encoder;
 import java.util.LinkedList;
 import java.util.List;
 
-import javax.activation.DataSource;
-import javax.mail.internet.MimeMessage;
-
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.mail.util.MimeMessageParser;
-import org.apache.commons.mail.util.MimeMessageUtils;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
@@ -34,49 +28,44 @@ public class MailboxEntry
 
     public final List<AttachmentEntry> attachments = new LinkedList<>();
 
-    @JsonIgnore
-    public final String rawContent;
-
     public final String downloadToken;
 
+    @JsonIgnore
+    private final Mail mail;
+
     public MailboxEntry(String mailAddress, Mail mail) throws Exception
     {
         this.mailAddress = mailAddress;
+        this.mail = mail;
         this.sender = mail.getSender();
-        this.rawContent = mail.getMessage();
         this.subject = StringUtils.defaultString(mail.getSubject());
         this.receivedTime = mail.getReceiveTime();
         this.downloadToken = mail.getUuid();
 
-        MimeMessage mimeMessage = MimeMessageUtils.createMimeMessage(null, rawContent);
-        MimeMessageParser mimeMessageParser = new MimeMessageParser(mimeMessage);
-        mimeMessageParser.parse();
-
-        final String plainText = StringUtils.defaultString(mimeMessageParser.getPlainContent());
-        final String htmlText = StringUtils.defaultString(mimeMessageParser.getHtmlContent());
+        // mails received before the projection was introduced are parsed once
+        MailProjection.ensureProjected(mail);
 
         Encoder base64encoder = Base64.getEncoder();
 
-        this.textContent = base64encoder.encodeToString(plainText.getBytes(StandardCharsets.UTF_8));
-        this.htmlContent = base64encoder.encodeToString(htmlText.getBytes(StandardCharsets.UTF_8));
+        this.textContent = base64encoder.encodeToString(mail.getTextContent().getBytes(StandardCharsets.UTF_8));
+        this.htmlContent = base64encoder.encodeToString(mail.getHtmlContent().getBytes(StandardCharsets.UTF_8));
 
-        for (DataSource attachment : mimeMessageParser.getAttachmentList())
-        {
-            attachments.add(new AttachmentEntry(attachment));
-        }
+        attachments.addAll(MailProjection.getAttachments(mail));
     }
 
-    public boolean matchesSearchPhrase(String phrase)
+    /**
+     * @return the raw content of the mail (loaded on demand)
+     */
+    public byte[] rawContent()
     {
-        phrase = phrase.toLowerCase();
-        return mailAddress.toLowerCase().contains(phrase) || sender.toLowerCase().contains(phrase)
-               || subject.toLowerCase().contains(phrase) || contentContainsIgnoreCase(phrase);
+        return (mail.getMessage() == null) ? new byte[0] : mail.getMessage();
     }
 
-    private boolean contentContainsIgnoreCase(final String phrase)
+    /**
+     * @return the raw content decoded as UTF-8 (the charset of 8-bit mails in most cases, 7-bit mails are unaffected)
+     */
+    public String rawContentAsText()
     {
-        final Decoder dec = Base64.getDecoder();
-        return (new String(dec.decode(textContent), StandardCharsets.UTF_8).toLowerCase().contains(phrase))
-               || (new String(dec.decode(htmlContent), StandardCharsets.UTF_8).toLowerCase().contains(phrase));
+        return new String(rawContent(), StandardCharsets.UTF_8);
     }
 }
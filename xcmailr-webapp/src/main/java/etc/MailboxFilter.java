@@ -0,0 +1,95 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package etc;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import ninja.Context;
+
+/**
+ * The regular expressions of a mailbox-query (parameters from, subject, textContent, htmlContent and plainMail) which
+ * a mail has to match.
+ */
+public class MailboxFilter
+{
+    private static final String MATCH_ALL = ".*";
+
+    private final Pattern senderPattern;
+
+    private final Pattern subjectPattern;
+
+    private final Pattern plainTextPattern;
+
+    private final Pattern htmlTextPattern;
+
+    private final Pattern rawMailPattern;
+
+    /**
+     * @param context
+     *            the context of the mailbox-query
+     * @throws PatternSyntaxException
+     *             if one of the expressions is invalid
+     */
+    public MailboxFilter(Context context)
+    {
+        senderPattern = compile(context.getParameter("from", MATCH_ALL));
+        subjectPattern = compile(context.getParameter("subject", MATCH_ALL));
+        plainTextPattern = compile(context.getParameter("textContent", MATCH_ALL));
+        htmlTextPattern = compile(context.getParameter("htmlContent", MATCH_ALL));
+        String rawMailRegex = context.getParameter("plainMail", MATCH_ALL);
+        rawMailPattern = MATCH_ALL.equals(rawMailRegex) ? null : compile(rawMailRegex);
+    }
+
+    /**
+     * @return true if the raw content of the mails is needed to apply this filter
+     */
+    public boolean needsRawContent()
+    {
+        return rawMailPattern != null;
+    }
+
+    /**
+     * @param entry
+     *            the mail to check
+     * @return true if the sender, subject and content of the given mail match this filter
+     */
+    public boolean matches(MailboxEntry entry)
+    {
+        return matchesProjection(entry) && (rawMailPattern == null
+                                            || rawMailPattern.matcher(entry.rawContentAsText()).find());
+    }
+
+    /**
+     * Checks only the parts of the mail which are available without its raw content.
+     *
+     * @param entry
+     *            the mail to check
+     * @return false if the given mail doesn't match this filter
+     */
+    public boolean matchesProjection(MailboxEntry entry)
+    {
+        return senderPattern.matcher(entry.sender).find() && subjectPattern.matcher(entry.subject).find()
+               && plainTextPattern.matcher(entry.textContent).find()
+               && htmlTextPattern.matcher(entry.htmlContent).find();
+    }
+
+    private static Pattern compile(String regex)
+    {
+        return Pattern.compile(regex, Pattern.MULTILINE | Pattern.DOTALL);
+    }
+}
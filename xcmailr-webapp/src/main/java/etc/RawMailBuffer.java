@@ -0,0 +1,189 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package etc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Holds the raw bytes of an incoming mail. The bytes are kept in memory up to the given threshold, larger mails are
+ * spilled to a temporary file. The content can be read as {@link javax.mail.internet.SharedInputStream} which lets a
+ * {@link javax.mail.internet.MimeMessage} parse its parts lazily without copying them.
+ * <p>
+ * Call {@link #release()} when the content is not needed anymore to delete the temporary file.
+ * </p>
+ */
+public class RawMailBuffer extends OutputStream
+{
+    private final int memoryThreshold;
+
+    private byte[] buffer = new byte[4096];
+
+    private long size;
+
+    private File file;
+
+    private OutputStream fileStream;
+
+    private boolean closed;
+
+    private final List<InputStream> openStreams = new ArrayList<InputStream>();
+
+    /**
+     * @param memoryThreshold
+     *            the maximum number of bytes to keep in memory
+     */
+    public RawMailBuffer(int memoryThreshold)
+    {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[]
+            {
+              (byte) b
+            }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Buffer has been closed");
+        }
+        if (fileStream == null && size + len > memoryThreshold)
+        {
+            spill();
+        }
+        if (fileStream != null)
+        {
+            fileStream.write(b, off, len);
+        }
+        else
+        {
+            if (size + len > buffer.length)
+            {
+                long newLength = Math.min(memoryThreshold, Math.max(buffer.length * 2L, size + len));
+                buffer = Arrays.copyOf(buffer, (int) newLength);
+            }
+            System.arraycopy(b, off, buffer, (int) size, len);
+        }
+        size += len;
+    }
+
+    /**
+     * Finishes the writing, the content can be read afterwards.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!closed)
+        {
+            closed = true;
+            if (fileStream != null)
+            {
+                fileStream.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * @return true if the content has been spilled to a temporary file
+     */
+    public boolean isSpilled()
+    {
+        return file != null;
+    }
+
+    /**
+     * Opens a new stream on the content. The stream implements {@link javax.mail.internet.SharedInputStream} and is
+     * closed on {@link #release()}.
+     *
+     * @return the content
+     * @throws IOException
+     *             if the temporary file can't be opened
+     */
+    public synchronized InputStream getInputStream() throws IOException
+    {
+        close();
+        InputStream in = (file != null) ? new SharedFileInputStream(file)
+                                        : new SharedByteArrayInputStream(buffer, 0, (int) size);
+        openStreams.add(in);
+        return in;
+    }
+
+    /**
+     * Closes all opened streams and deletes the temporary file.
+     */
+    public synchronized void release()
+    {
+        for (InputStream in : openStreams)
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                // nothing to do
+            }
+        }
+        openStreams.clear();
+        try
+        {
+            close();
+        }
+        catch (IOException e)
+        {
+            // nothing to do
+        }
+        if (file != null && !file.delete())
+        {
+            file.deleteOnExit();
+        }
+        buffer = null;
+    }
+
+    private void spill() throws IOException
+    {
+        file = File.createTempFile("xcmailr-", ".eml");
+        fileStream = new BufferedOutputStream(new FileOutputStream(file));
+        fileStream.write(buffer, 0, (int) size);
+        buffer = null;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package etc;
+
+import java.io.IOException;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A {@link MimeMessage} read from a {@link RawMailBuffer} which is forwarded with its body as received. The headers
+ * are parsed and may be changed, the body is read lazily from the buffer and isn't parsed unless its content is
+ * requested.
+ * <p>
+ * {@link MimeMessage#saveChanges()} marks the whole message as modified, so it's written by re-encoding its MIME tree.
+ * As long as the content of this message isn't replaced, saving the changes only updates the Message-ID. The message
+ * is then written as the changed headers followed by the original body bytes, streamed from the buffer (see
+ * {@link MimeMessage#writeTo(java.io.OutputStream, String[])}).
+ * </p>
+ */
+public class RawMimeMessage extends MimeMessage
+{
+    private boolean contentReplaced;
+
+    /**
+     * @param session
+     *            the session of the message
+     * @param rawContent
+     *            the raw bytes of the message, the buffer must not be released before the message has been written
+     * @throws MessagingException
+     *             if the headers can't be parsed
+     * @throws IOException
+     *             if the buffer can't be read
+     */
+    public RawMimeMessage(Session session, RawMailBuffer rawContent) throws MessagingException, IOException
+    {
+        super(session, rawContent.getInputStream());
+    }
+
+    @Override
+    public synchronized void setDataHandler(DataHandler dh) throws MessagingException
+    {
+        // all setters of the content end here
+        contentReplaced = true;
+        super.setDataHandler(dh);
+    }
+
+    @Override
+    public void saveChanges() throws MessagingException
+    {
+        if (contentReplaced)
+        {
+            // the message has to be written from the new content
+            super.saveChanges();
+            return;
+        }
+        saved = true;
+        updateMessageID();
+    }
+}
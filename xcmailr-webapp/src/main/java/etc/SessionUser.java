@@ -0,0 +1,150 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package etc;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import models.User;
+
+/**
+ * The principal of a session, which is stored at the caching-server instead of the whole {@link User} entity. It holds
+ * only the fields the filters and most controllers need and is immutable, so it can be shared between requests.
+ * Controllers which need the entity load it through {@link HelperUtils#getUser(ninja.Context)}.
+ * <p>
+ * The principal is written in a compact binary form: a format version, the id, the mail-address, the flags and the
+ * language.
+ * </p>
+ */
+public final class SessionUser implements Externalizable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** the version of the binary form, increment it on each change of the fields */
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final int FLAG_ADMIN = 1;
+
+    private static final int FLAG_ACTIVE = 2;
+
+    private long id;
+
+    private String mail;
+
+    private boolean admin;
+
+    private boolean active;
+
+    private String language;
+
+    /**
+     * Creates an empty principal, used by the deserialization only.
+     */
+    public SessionUser()
+    {
+    }
+
+    public SessionUser(long id, String mail, boolean admin, boolean active, String language)
+    {
+        this.id = id;
+        this.mail = mail;
+        this.admin = admin;
+        this.active = active;
+        this.language = language;
+    }
+
+    /**
+     * Creates the principal of the given user.
+     *
+     * @param user
+     *            the user
+     * @return the principal
+     */
+    public static SessionUser of(User user)
+    {
+        return new SessionUser(user.getId(), user.getMail(), user.isAdmin(), user.isActive(), user.getLanguage());
+    }
+
+    /**
+     * @return the id of the user
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return the mail-address of the user
+     */
+    public String getMail()
+    {
+        return mail;
+    }
+
+    /**
+     * @return true if the user is an admin
+     */
+    public boolean isAdmin()
+    {
+        return admin;
+    }
+
+    /**
+     * @return true if the user's account is active
+     */
+    public boolean isActive()
+    {
+        return active;
+    }
+
+    /**
+     * @return the language of the user
+     */
+    public String getLanguage()
+    {
+        return language;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+        out.writeByte(FORMAT_VERSION);
+        out.writeLong(id);
+        out.writeUTF(mail == null ? "" : mail);
+        out.writeByte((admin ? FLAG_ADMIN : 0) | (active ? FLAG_ACTIVE : 0));
+        out.writeUTF(language == null ? "" : language);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException
+    {
+        final byte version = in.readByte();
+        if (version != FORMAT_VERSION)
+        {
+            throw new InvalidClassException(SessionUser.class.getName(), "unknown format version " + version);
+        }
+        id = in.readLong();
+        mail = in.readUTF();
+        final int flags = in.readByte();
+        admin = (flags & FLAG_ADMIN) != 0;
+        active = (flags & FLAG_ACTIVE) != 0;
+        language = in.readUTF();
+    }
+}
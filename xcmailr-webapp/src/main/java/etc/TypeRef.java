@@ -1,5 +1,6 @@
 package etc;
 
+import java.util.List;
 import java.util.Map;
 
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -10,4 +11,8 @@ public abstract class TypeRef
     {
     };
 
+    public static final TypeReference<List<AttachmentEntry>> LIST_ATTACHMENT_ENTRY = new TypeReference<List<AttachmentEntry>>()
+    {
+    };
+
 }
@@ -16,7 +16,7 @@
  */
 package filters;
 
-import models.User;
+import etc.SessionUser;
 import ninja.Context;
 import ninja.Filter;
 import ninja.FilterChain;
@@ -35,7 +35,7 @@ public class AdminFilter implements Filter
     public Result filter(FilterChain chain, Context context)
     {
         // get the user-object from context (if we get to this point, the SecureFilter should have added the object)
-        User user = context.getAttribute("user", User.class);
+        SessionUser user = context.getAttribute("user", SessionUser.class);
 
         if (!(user == null) && user.isActive() && user.isAdmin())
             return chain.next(context);
@@ -16,7 +16,6 @@
  */
 package filters;
 
-import models.User;
 import ninja.Context;
 import ninja.Filter;
 import ninja.FilterChain;
@@ -26,6 +25,7 @@ import ninja.Results;
 import com.google.inject.Inject;
 
 import controllers.CachingSessionHandler;
+import etc.SessionUser;
 
 /**
  * Ensures that an user is logged in, otherwise it will redirect to the login-page
@@ -40,8 +40,8 @@ public class JsonSecureFilter implements Filter
     @Override
     public Result filter(FilterChain chain, Context context)
     {
-        // get the user-object from memcached-server
-        User usr = (User) csh.get(context.getSession().getId());
+        // get the user-object from the near-cache or memcached-server
+        SessionUser usr = csh.getSessionUser(context.getSession().getId());
 
         if ((usr != null) && usr.isActive())
         {
@@ -16,7 +16,6 @@
  */
 package filters;
 
-import models.User;
 import ninja.Context;
 import ninja.Filter;
 import ninja.FilterChain;
@@ -26,6 +25,7 @@ import ninja.Results;
 import com.google.inject.Inject;
 
 import controllers.CachingSessionHandler;
+import etc.SessionUser;
 
 /**
  * Ensures that the user is NOT logged in, otherwise it will redirect to the index-page
@@ -40,7 +40,7 @@ public class NoLoginFilter implements Filter
     @Override
     public Result filter(FilterChain chain, Context context)
     {
-        User usr = (User) csh.get(context.getSession().getId());
+        SessionUser usr = csh.getSessionUser(context.getSession().getId());
         if (usr == null)
         {
             return chain.next(context);
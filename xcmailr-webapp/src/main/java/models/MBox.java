@@ -17,12 +17,15 @@
 package models;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.persistence.Entity;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 import javax.persistence.Version;
 import javax.validation.constraints.Pattern;
 
@@ -36,7 +39,9 @@ import com.avaje.ebean.ExpressionList;
 import com.avaje.ebean.Query;
 import com.avaje.ebean.RawSql;
 import com.avaje.ebean.RawSqlBuilder;
+import com.avaje.ebean.SqlRow;
 import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -48,7 +53,7 @@ import etc.HelperUtils;
  * @author Patrick Thum, Xceptance Software Technologies GmbH, Germany
  */
 @Entity
-@Table(name = "mailboxes")
+@Table(name = "mailboxes", uniqueConstraints = @UniqueConstraint(columnNames = { "address", "domain" }))
 public class MBox extends AbstractEntity implements Serializable
 {
     /** UID to serialize this object */
@@ -387,29 +392,62 @@ public class MBox extends AbstractEntity implements Serializable
     // EBean Functions
     // ---------------------------------------------
     /**
-     * increases the forward-count directly in the database
+     * increases the forward-count directly in the database (the box may be detached, so the counter is increased
+     * relatively)
      */
     public void increaseFwd()
     {
         setForwards(getForwards() + 1);
-        Ebean.createSqlUpdate("update mailboxes set forwards = ? where id = ?;") //
-             .setParameter(1, getForwards()) //
-             .setParameter(2, getId()) //
+        Ebean.createSqlUpdate("update mailboxes set forwards = forwards + 1 where id = ?;") //
+             .setParameter(1, getId()) //
              .execute();
     }
 
     /**
-     * increases the suppression-count directly in the database
+     * increases the suppression-count directly in the database (the box may be detached, so the counter is increased
+     * relatively)
      */
     public void increaseSup()
     {
         setSuppressions(getSuppressions() + 1);
-        Ebean.createSqlUpdate("update mailboxes set suppressions = ? where id = ?;") //
-             .setParameter(1, getSuppressions()) //
-             .setParameter(2, getId()) //
+        Ebean.createSqlUpdate("update mailboxes set suppressions = suppressions + 1 where id = ?;") //
+             .setParameter(1, getId()) //
              .execute();
     }
 
+    /**
+     * Stores the Box in the Database and updates the {@link MailboxRoutingIndex} and {@link MailboxExpiryScheduler}
+     */
+    @Override
+    public void save()
+    {
+        super.save();
+        MailboxRoutingIndex.put(this);
+        MailboxExpiryScheduler.schedule(getId(), isExpired() ? 0 : getTs_Active());
+    }
+
+    /**
+     * Updates the Box in the DB and the {@link MailboxRoutingIndex} and {@link MailboxExpiryScheduler}
+     */
+    @Override
+    public void update()
+    {
+        super.update();
+        MailboxRoutingIndex.put(this);
+        MailboxExpiryScheduler.schedule(getId(), isExpired() ? 0 : getTs_Active());
+    }
+
+    /**
+     * Deletes the Box from the database and the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void delete()
+    {
+        super.delete();
+        MailboxRoutingIndex.remove(getId());
+        MailboxExpiryScheduler.schedule(getId(), 0);
+    }
+
     /**
      * Removes a Box from the DB
      * 
@@ -419,6 +457,8 @@ public class MBox extends AbstractEntity implements Serializable
     public static void delete(Long id)
     {
         Ebean.delete(MBox.class, id);
+        MailboxRoutingIndex.remove(id);
+        MailboxExpiryScheduler.schedule(id, 0);
     }
 
     /**
@@ -586,6 +626,74 @@ public class MBox extends AbstractEntity implements Serializable
                     .findList();
     }
 
+    /**
+     * Expires all boxes whose ts_Active has been reached with a single update-statement, without loading them. The
+     * affected rows are locked before, so a box which gets a new timestamp in the meantime isn't reported as expired.
+     * The version of the boxes is incremented, so an outdated instance of one of them can't reactivate it.
+     * 
+     * @param now
+     *            the current timestamp (in milliseconds)
+     * @return the IDs of the boxes which have been expired
+     */
+    public static List<Long> expireBoxes(long now)
+    {
+        return expireBoxes(" where ts_active <= :now and ts_active <> 0 and expired = false", now);
+    }
+
+    /**
+     * Expires those of the given boxes whose ts_Active has been reached, like {@link #expireBoxes(long)}.
+     * 
+     * @param boxIds
+     *            the IDs of the boxes to check
+     * @param now
+     *            the current timestamp (in milliseconds)
+     * @return the IDs of the boxes which have been expired
+     */
+    public static List<Long> expireBoxes(Collection<Long> boxIds, long now)
+    {
+        if (boxIds.isEmpty())
+        {
+            return new ArrayList<Long>();
+        }
+        StringBuilder condition = new StringBuilder(" where id in (");
+        for (Long id : boxIds)
+        {
+            condition.append(id).append(',');
+        }
+        condition.setLength(condition.length() - 1);
+        condition.append(") and ts_active <= :now and ts_active <> 0 and expired = false");
+        return expireBoxes(condition.toString(), now);
+    }
+
+    private static List<Long> expireBoxes(String condition, long now)
+    {
+        final List<Long> boxIds = new ArrayList<Long>();
+
+        Transaction transaction = Ebean.beginTransaction();
+        try
+        {
+            List<SqlRow> rows = Ebean.createSqlQuery("select id from mailboxes" + condition + " for update")
+                                     .setParameter("now", now).findList();
+            if (!rows.isEmpty())
+            {
+                for (SqlRow row : rows)
+                {
+                    boxIds.add(row.getLong("id"));
+                }
+                Ebean.createSqlUpdate("update mailboxes set expired = true, version = version + 1" + condition)
+                     .setParameter("now", now).execute();
+            }
+            transaction.commit();
+        }
+        finally
+        {
+            transaction.end();
+        }
+        MailboxRoutingIndex.expire(boxIds);
+        MailboxExpiryScheduler.cancel(boxIds);
+        return boxIds;
+    }
+
     /**
      * Sets the Box as valid (and updates the database!)
      */
@@ -593,6 +701,8 @@ public class MBox extends AbstractEntity implements Serializable
     {
         this.setExpired(false);
         Ebean.update(this);
+        MailboxRoutingIndex.put(this);
+        MailboxExpiryScheduler.schedule(getId(), getTs_Active());
     }
 
     /**
@@ -602,6 +712,8 @@ public class MBox extends AbstractEntity implements Serializable
     {
         this.setExpired(true);
         Ebean.update(this);
+        MailboxRoutingIndex.put(this);
+        MailboxExpiryScheduler.schedule(getId(), 0);
     }
 
     /**
@@ -735,7 +847,9 @@ public class MBox extends AbstractEntity implements Serializable
     {
         StringBuilder sqlSb = new StringBuilder();
         sqlSb.append("DELETE FROM MAILBOXES WHERE USR_ID=").append(userId).append(" AND (");
-        return appendIdsAndExecuteSql(sqlSb, boxIds);
+        int count = appendIdsAndExecuteSql(sqlSb, boxIds);
+        MailboxRoutingIndex.remove(userId, boxIds);
+        return count;
     }
 
     /**
@@ -772,7 +886,9 @@ public class MBox extends AbstractEntity implements Serializable
     {
         StringBuilder sqlSb = new StringBuilder();
         sqlSb.append("UPDATE MAILBOXES SET EXPIRED = TRUE WHERE USR_ID=").append(userId).append(" AND (");
-        return appendIdsAndExecuteSql(sqlSb, boxIds);
+        int count = appendIdsAndExecuteSql(sqlSb, boxIds);
+        MailboxRoutingIndex.setExpired(userId, boxIds, true, 0);
+        return count;
     }
 
     /**
@@ -788,11 +904,15 @@ public class MBox extends AbstractEntity implements Serializable
      */
     public static int enableListOfBoxesIfPossible(long userId, List<Long> boxIds)
     {
+        final long now = DateTime.now().getMillis();
         StringBuilder sqlSb = new StringBuilder();
         sqlSb.append("UPDATE MAILBOXES SET EXPIRED = FALSE WHERE USR_ID=").append(userId);
-        sqlSb.append(" AND (TS_ACTIVE > ").append(DateTime.now().getMillis()).append(" OR TS_ACTIVE = 0) ");
+        sqlSb.append(" AND (TS_ACTIVE > ").append(now).append(" OR TS_ACTIVE = 0) ");
         sqlSb.append(" AND (");
-        return appendIdsAndExecuteSql(sqlSb, boxIds);
+        int count = appendIdsAndExecuteSql(sqlSb, boxIds);
+        MailboxRoutingIndex.setExpired(userId, boxIds, false, now);
+        scheduleListOfBoxes(userId, boxIds);
+        return count;
     }
 
     /**
@@ -814,7 +934,33 @@ public class MBox extends AbstractEntity implements Serializable
         sqlSb.append("UPDATE MAILBOXES SET EXPIRED = FALSE, TS_ACTIVE =").append(ts_Active);
         sqlSb.append("WHERE USR_ID=").append(userId);
         sqlSb.append(" AND (");
-        return appendIdsAndExecuteSql(sqlSb, boxIds);
+        int count = appendIdsAndExecuteSql(sqlSb, boxIds);
+        MailboxRoutingIndex.setTsActive(userId, boxIds, ts_Active);
+        scheduleListOfBoxes(userId, boxIds);
+        return count;
+    }
+
+    /**
+     * Reads the deadlines of the given (active) boxes of the user from the database and passes them to the
+     * {@link MailboxExpiryScheduler}.
+     */
+    private static void scheduleListOfBoxes(long userId, List<Long> boxIds)
+    {
+        if (boxIds.isEmpty())
+            return;
+
+        StringBuilder sqlSb = new StringBuilder();
+        sqlSb.append("SELECT ID, TS_ACTIVE FROM MAILBOXES WHERE USR_ID=").append(userId);
+        sqlSb.append(" AND EXPIRED = FALSE AND TS_ACTIVE <> 0 AND ID IN (");
+        for (Long id : boxIds)
+        {
+            sqlSb.append(id).append(',');
+        }
+        sqlSb.setCharAt(sqlSb.length() - 1, ')');
+        for (SqlRow row : Ebean.createSqlQuery(sqlSb.toString()).findList())
+        {
+            MailboxExpiryScheduler.schedule(row.getLong("id"), row.getLong("ts_active"));
+        }
     }
 
     private static int appendIdsAndExecuteSql(StringBuilder sqlSb, List<Long> boxIds)
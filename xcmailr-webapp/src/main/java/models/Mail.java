@@ -1,17 +1,25 @@
 package models;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 
 import javax.persistence.Entity;
 import javax.persistence.JoinColumn;
 import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
+import javax.persistence.PersistenceException;
 import javax.persistence.Table;
 import javax.validation.constraints.NotNull;
 
 import org.hibernate.validator.constraints.Length;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+
 @Entity
 @Table
 public class Mail extends AbstractEntity implements Serializable
@@ -35,8 +43,29 @@ public class Mail extends AbstractEntity implements Serializable
     @NotNull
     private long receiveTime;
 
+    /**
+     * the raw bytes of the email
+     */
+    @Lob
+    private byte[] message;
+
+    /**
+     * the plain text content, parsed on receipt
+     */
+    @Lob
+    private String textContent;
+
+    /**
+     * the HTML content, parsed on receipt
+     */
     @Lob
-    private String message;
+    private String htmlContent;
+
+    /**
+     * JSON-list of the attachments (name, content-type and size), parsed on receipt
+     */
+    @Lob
+    private String attachments;
 
     @ManyToOne
     @JoinColumn(name = "mailbox_id", nullable = false)
@@ -74,16 +103,46 @@ public class Mail extends AbstractEntity implements Serializable
         this.receiveTime = receiveTime;
     }
 
-    public String getMessage()
+    public byte[] getMessage()
     {
         return message;
     }
 
-    public void setMessage(String message)
+    public void setMessage(byte[] message)
     {
         this.message = message;
     }
 
+    public String getTextContent()
+    {
+        return textContent;
+    }
+
+    public void setTextContent(String textContent)
+    {
+        this.textContent = textContent;
+    }
+
+    public String getHtmlContent()
+    {
+        return htmlContent;
+    }
+
+    public void setHtmlContent(String htmlContent)
+    {
+        this.htmlContent = htmlContent;
+    }
+
+    public String getAttachments()
+    {
+        return attachments;
+    }
+
+    public void setAttachments(String attachments)
+    {
+        this.attachments = attachments;
+    }
+
     public MBox getMailbox()
     {
         return mailbox;
@@ -103,4 +162,68 @@ public class Mail extends AbstractEntity implements Serializable
     {
         this.uuid = uuid;
     }
+
+    /**
+     * Saves the given mail and streams the raw content into the message-column, so the content doesn't have to be
+     * copied into a byte-array first.
+     * 
+     * @param mail
+     *            the mail to save (without the message)
+     * @param content
+     *            the raw content of the mail
+     * @param length
+     *            the number of bytes of the content
+     * @throws IOException
+     *             if the content can't be read
+     */
+    public static void saveWithContent(Mail mail, InputStream content, long length) throws IOException
+    {
+        Transaction transaction = Ebean.beginTransaction();
+        try
+        {
+            Ebean.save(mail);
+
+            PreparedStatement statement = transaction.getConnection()
+                                                     .prepareStatement("update mail set message = ? where id = ?");
+            try
+            {
+                statement.setBinaryStream(1, content, length);
+                statement.setLong(2, mail.getId());
+                statement.executeUpdate();
+            }
+            finally
+            {
+                statement.close();
+            }
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new PersistenceException(e);
+        }
+        finally
+        {
+            transaction.end();
+        }
+    }
+
+    /**
+     * Deletes up to the given number of mails which have been received before the given time. The mails are deleted
+     * with a single statement in its own transaction, without loading them.
+     * 
+     * @param receivedBefore
+     *            the timestamp (in milliseconds)
+     * @param limit
+     *            the maximum number of mails to delete
+     * @return the number of deleted mails
+     */
+    public static int deleteReceivedBefore(long receivedBefore, int limit)
+    {
+        return Ebean.createSqlUpdate("delete from mail where receive_time < :receivedBefore limit :limit")
+                    .setParameter("receivedBefore", receivedBefore).setParameter("limit", limit).execute();
+    }
 }
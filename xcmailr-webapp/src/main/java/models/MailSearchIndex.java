@@ -0,0 +1,180 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package models;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Full-text index over the received mails, based on the native full-text search of H2. The index covers the sender,
+ * the subject and the parsed content of the mails and the addresses of the mailboxes. It's maintained by triggers of
+ * the indexed tables, so new mails are added when they're persisted and removed when they're deleted by the
+ * retention cleanup (or together with their mailbox).
+ * <p>
+ * The search matches whole words, the words of a search-phrase are combined with AND.
+ * </p>
+ */
+public final class MailSearchIndex
+{
+    private static final Logger log = LoggerFactory.getLogger(MailSearchIndex.class);
+
+    private static final String SCHEMA = "PUBLIC";
+
+    private static final String MAIL_TABLE = "MAIL";
+
+    private static final String MAIL_COLUMNS = "SENDER,SUBJECT,TEXT_CONTENT,HTML_CONTENT";
+
+    private static final String MAILBOX_TABLE = "MAILBOXES";
+
+    private static final String MAILBOX_COLUMNS = "ADDRESS,DOMAIN";
+
+    /** selects the primary keys of the rows of a table which match a search-phrase */
+    private static final String SEARCH_KEYS = "select array_get(keys, 1) from ft_search_data(?, 0, 0) "
+                                              + "where \"TABLE\" = ?";
+
+    private static volatile boolean available;
+
+    private MailSearchIndex()
+    {
+    }
+
+    /**
+     * Initializes the full-text search of the database and creates the index if it doesn't exist. The existing mails
+     * are indexed on creation.
+     *
+     * @return true if the index can be used
+     */
+    public static boolean init()
+    {
+        Transaction transaction = Ebean.beginTransaction();
+        try
+        {
+            Connection connection = transaction.getConnection();
+            Statement statement = connection.createStatement();
+            try
+            {
+                statement.execute("CREATE ALIAS IF NOT EXISTS FT_INIT FOR \"org.h2.fulltext.FullText.init\"");
+                statement.execute("CALL FT_INIT()");
+            }
+            finally
+            {
+                statement.close();
+            }
+            createIndex(connection, MAIL_TABLE, MAIL_COLUMNS);
+            createIndex(connection, MAILBOX_TABLE, MAILBOX_COLUMNS);
+            transaction.commit();
+            available = true;
+        }
+        catch (SQLException e)
+        {
+            log.warn("Full-text search is not available, mails are searched without an index: " + e.getMessage());
+            available = false;
+        }
+        finally
+        {
+            transaction.end();
+        }
+        return available;
+    }
+
+    /**
+     * @return true if the index has been initialized
+     */
+    public static boolean isAvailable()
+    {
+        return available;
+    }
+
+    /**
+     * Restricts the given mail-query to the mails whose sender, subject, content or mailbox-address contain all words
+     * of the given phrase. Add it to a disjunction to combine it with other matches.
+     *
+     * @param where
+     *            the mail-query or a junction of it
+     * @param phrase
+     *            the search-phrase
+     */
+    public static void restrict(ExpressionList<Mail> where, String phrase)
+    {
+        where.raw("(mailbox_id in (" + SEARCH_KEYS + ") or id in (" + SEARCH_KEYS + "))", new Object[]
+            {
+              phrase, MAILBOX_TABLE, phrase, MAIL_TABLE
+            });
+    }
+
+    private static void createIndex(Connection connection, String table, String columns) throws SQLException
+    {
+        if (hasTrigger(connection, table))
+        {
+            return;
+        }
+        // the trigger is gone if the table has been re-created, drop the stale index-entries before re-creating it
+        PreparedStatement statement = connection.prepareStatement("CALL FT_DROP_INDEX(?, ?)");
+        try
+        {
+            statement.setString(1, SCHEMA);
+            statement.setString(2, table);
+            statement.execute();
+        }
+        finally
+        {
+            statement.close();
+        }
+
+        statement = connection.prepareStatement("CALL FT_CREATE_INDEX(?, ?, ?)");
+        try
+        {
+            statement.setString(1, SCHEMA);
+            statement.setString(2, table);
+            statement.setString(3, columns);
+            statement.execute();
+        }
+        finally
+        {
+            statement.close();
+        }
+        log.info("Created the full-text index of table {}", table);
+    }
+
+    private static boolean hasTrigger(Connection connection, String table) throws SQLException
+    {
+        PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TRIGGERS "
+                                                                  + "WHERE TABLE_SCHEMA = ? AND TRIGGER_NAME = ?");
+        try
+        {
+            statement.setString(1, SCHEMA);
+            // see org.h2.fulltext.FullText.TRIGGER_PREFIX
+            statement.setString(2, "FT_" + table);
+            ResultSet resultSet = statement.executeQuery();
+            return resultSet.next() && resultSet.getInt(1) > 0;
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+}
@@ -1,14 +1,29 @@
 package models;
 
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.persistence.Column;
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
+import javax.persistence.PersistenceException;
 import javax.persistence.Table;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+
+import etc.StatisticsEntry;
+
 @Entity
 @Table(name = "MAIL_STATISTICS")
 public class MailStatistics implements Serializable
@@ -18,6 +33,21 @@ public class MailStatistics implements Serializable
      */
     private static final long serialVersionUID = 6489599509883330752L;
 
+    private static final String[] KEY_COLUMNS =
+        {
+            "DATE", "QUARTER_HOUR", "FROM_DOMAIN", "TARGET_DOMAIN"
+        };
+
+    private static final String[] HOURLY_KEY_COLUMNS =
+        {
+            "DATE", "HOUR_OF_DAY"
+        };
+
+    private static final String[] DAILY_KEY_COLUMNS =
+        {
+            "DATE", "FROM_DOMAIN"
+        };
+
     @EmbeddedId
     private MailStatisticsKey key;
 
@@ -129,6 +159,109 @@ public class MailStatistics implements Serializable
                              forwardCount);
     }
 
+    /**
+     * Adds the given counts to the statistics with one batch of upserts per table in one transaction. Rows which don't
+     * exist yet are created. The {@link MailStatisticsHourly hourly} and {@link MailStatisticsDaily daily} rollups are
+     * updated in the same transaction.
+     * 
+     * @param statistics
+     *            the number of dropped and forwarded mails per key
+     */
+    public static void addCounts(Map<MailStatisticsKey, StatisticsEntry> statistics)
+    {
+        if (statistics.isEmpty())
+        {
+            return;
+        }
+
+        Map<List<Object>, StatisticsEntry> counts = new HashMap<List<Object>, StatisticsEntry>();
+        Map<List<Object>, StatisticsEntry> hourlyCounts = new HashMap<List<Object>, StatisticsEntry>();
+        Map<List<Object>, StatisticsEntry> dailyCounts = new HashMap<List<Object>, StatisticsEntry>();
+        for (Entry<MailStatisticsKey, StatisticsEntry> statistic : statistics.entrySet())
+        {
+            MailStatisticsKey key = statistic.getKey();
+            addCount(counts, statistic.getValue(), key.getDate(), key.getQuarterHour(), key.getFromDomain(),
+                     key.getTargetDomain());
+            addCount(hourlyCounts, statistic.getValue(), key.getDate(), key.getQuarterHour() / 4);
+            addCount(dailyCounts, statistic.getValue(), key.getDate(), key.getFromDomain());
+        }
+
+        Transaction transaction = Ebean.beginTransaction();
+        try
+        {
+            Connection connection = transaction.getConnection();
+            merge(connection, "MAIL_STATISTICS", KEY_COLUMNS, counts);
+            merge(connection, "MAIL_STATISTICS_HOURLY", HOURLY_KEY_COLUMNS, hourlyCounts);
+            merge(connection, "MAIL_STATISTICS_DAILY", DAILY_KEY_COLUMNS, dailyCounts);
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new PersistenceException(e);
+        }
+        finally
+        {
+            transaction.end();
+        }
+    }
+
+    private static void addCount(Map<List<Object>, StatisticsEntry> counts, StatisticsEntry count, Object... key)
+    {
+        List<Object> values = Arrays.asList(key);
+        StatisticsEntry entry = counts.get(values);
+        if (entry == null)
+        {
+            entry = new StatisticsEntry();
+            counts.put(values, entry);
+        }
+        entry.setDropCount(entry.getDropCount() + count.getDropCount());
+        entry.setForwardCount(entry.getForwardCount() + count.getForwardCount());
+    }
+
+    /**
+     * Inserts the rows of the given keys into the given table or adds the counts to the existing rows.
+     */
+    private static void merge(Connection connection, String table, String[] keyColumns,
+                              Map<List<Object>, StatisticsEntry> counts)
+        throws SQLException
+    {
+        String keys = String.join(", ", keyColumns);
+        String condition = String.join(" = ? AND ", keyColumns) + " = ?";
+        String sql = "MERGE INTO " + table + " (" + keys + ", DROP_COUNT, FORWARD_COUNT) KEY (" + keys + ") VALUES ("
+                     + String.join(", ", Collections.nCopies(keyColumns.length, "?")) + ", "
+                     + "? + COALESCE((SELECT DROP_COUNT FROM " + table + " WHERE " + condition + "), 0), "
+                     + "? + COALESCE((SELECT FORWARD_COUNT FROM " + table + " WHERE " + condition + "), 0))";
+
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try
+        {
+            for (Entry<List<Object>, StatisticsEntry> count : counts.entrySet())
+            {
+                // the key is given three times: for the row itself and for reading both current counts
+                int index = setKey(statement, 1, count.getKey());
+                statement.setInt(index++, count.getValue().getDropCount());
+                index = setKey(statement, index, count.getKey());
+                statement.setInt(index++, count.getValue().getForwardCount());
+                setKey(statement, index, count.getKey());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private static int setKey(PreparedStatement statement, int index, List<Object> key) throws SQLException
+    {
+        for (Object value : key)
+        {
+            statement.setObject(index++, value);
+        }
+        return index;
+    }
+
     public static String format(int value)
     {
         DecimalFormat formatter = new DecimalFormat("");
@@ -0,0 +1,109 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package models;
+
+import java.io.Serializable;
+import java.sql.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+import etc.StatisticsEntry;
+
+/**
+ * The number of dropped and forwarded mails per day and sender domain. The rows are maintained together with the
+ * {@link MailStatistics} (see {@link MailStatistics#addCounts(Map)}), so the sender lists of the statistics dashboard
+ * read one row per day and domain.
+ */
+@Entity
+@Table(name = "MAIL_STATISTICS_DAILY")
+public class MailStatisticsDaily implements Serializable
+{
+    private static final long serialVersionUID = -6824705963337150210L;
+
+    @EmbeddedId
+    private MailStatisticsDailyKey key;
+
+    @Column(name = "DROP_COUNT")
+    private int dropCount;
+
+    @Column(name = "FORWARD_COUNT")
+    private int forwardCount;
+
+    public MailStatisticsDailyKey getKey()
+    {
+        return key;
+    }
+
+    public void setKey(MailStatisticsDailyKey key)
+    {
+        this.key = key;
+    }
+
+    public int getDropCount()
+    {
+        return dropCount;
+    }
+
+    public void setDropCount(int dropCount)
+    {
+        this.dropCount = dropCount;
+    }
+
+    public int getForwardCount()
+    {
+        return forwardCount;
+    }
+
+    public void setForwardCount(int forwardCount)
+    {
+        this.forwardCount = forwardCount;
+    }
+
+    /**
+     * Returns the number of dropped and forwarded mails of each sender domain since the given day.
+     * 
+     * @param from
+     *            the first day
+     * @return the counts per sender domain
+     */
+    public static Map<String, StatisticsEntry> getSenderCounts(Date from)
+    {
+        List<SqlRow> rows = Ebean.createSqlQuery("select from_domain, sum(drop_count) as drop_count, "
+                                                 + "sum(forward_count) as forward_count from MAIL_STATISTICS_DAILY "
+                                                 + "where date >= :from group by from_domain")
+                                 .setParameter("from", from).findList();
+
+        Map<String, StatisticsEntry> counts = new HashMap<String, StatisticsEntry>();
+        for (SqlRow row : rows)
+        {
+            StatisticsEntry entry = new StatisticsEntry();
+            entry.setDropCount(row.getInteger("drop_count"));
+            entry.setForwardCount(row.getInteger("forward_count"));
+            counts.put(row.getString("from_domain"), entry);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package models;
+
+import java.io.Serializable;
+import java.sql.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+/**
+ * The key of the {@link MailStatisticsDaily daily statistics}.
+ */
+@Embeddable
+public class MailStatisticsDailyKey implements Serializable
+{
+    private static final long serialVersionUID = 5530611739218513847L;
+
+    @Column(nullable = false)
+    private Date date;
+
+    @Column(name = "FROM_DOMAIN", nullable = false)
+    private String fromDomain;
+
+    public MailStatisticsDailyKey(Date date, String fromDomain)
+    {
+        this.date = date;
+        this.fromDomain = fromDomain;
+    }
+
+    public Date getDate()
+    {
+        return date;
+    }
+
+    public String getFromDomain()
+    {
+        return fromDomain;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * ((date == null) ? 0 : date.hashCode()) + ((fromDomain == null) ? 0 : fromDomain.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof MailStatisticsDailyKey))
+        {
+            return false;
+        }
+        MailStatisticsDailyKey other = (MailStatisticsDailyKey) obj;
+        return (date == null ? other.date == null : date.equals(other.date))
+               && (fromDomain == null ? other.fromDomain == null : fromDomain.equals(other.fromDomain));
+    }
+}
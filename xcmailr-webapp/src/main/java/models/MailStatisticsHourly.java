@@ -0,0 +1,122 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package models;
+
+import java.io.Serializable;
+import java.sql.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+import etc.StatisticsEntry;
+
+/**
+ * The number of dropped and forwarded mails per hour over all domains. The rows are maintained together with the
+ * {@link MailStatistics} (see {@link MailStatistics#addCounts(Map)}), so the charts of the statistics dashboard read
+ * one row per hour instead of summing up the statistics of all domains per quarter-hour.
+ */
+@Entity
+@Table(name = "MAIL_STATISTICS_HOURLY")
+public class MailStatisticsHourly implements Serializable
+{
+    private static final long serialVersionUID = 2263125783196904137L;
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @EmbeddedId
+    private MailStatisticsHourlyKey key;
+
+    @Column(name = "DROP_COUNT")
+    private int dropCount;
+
+    @Column(name = "FORWARD_COUNT")
+    private int forwardCount;
+
+    public MailStatisticsHourlyKey getKey()
+    {
+        return key;
+    }
+
+    public void setKey(MailStatisticsHourlyKey key)
+    {
+        this.key = key;
+    }
+
+    public int getDropCount()
+    {
+        return dropCount;
+    }
+
+    public void setDropCount(int dropCount)
+    {
+        this.dropCount = dropCount;
+    }
+
+    public int getForwardCount()
+    {
+        return forwardCount;
+    }
+
+    public void setForwardCount(int forwardCount)
+    {
+        this.forwardCount = forwardCount;
+    }
+
+    /**
+     * Returns the number of dropped and forwarded mails of each hour since the given day.
+     * 
+     * @param from
+     *            the first day
+     * @return the counts per hour, the key is the timestamp of the start of the hour
+     */
+    public static Map<Long, StatisticsEntry> getCounts(Date from)
+    {
+        List<SqlRow> rows = Ebean.createSqlQuery("select date, hour_of_day, drop_count, forward_count "
+                                                 + "from MAIL_STATISTICS_HOURLY where date >= :from")
+                                 .setParameter("from", from).findList();
+
+        Map<Long, StatisticsEntry> counts = new HashMap<Long, StatisticsEntry>();
+        for (SqlRow row : rows)
+        {
+            StatisticsEntry entry = new StatisticsEntry();
+            entry.setDropCount(row.getInteger("drop_count"));
+            entry.setForwardCount(row.getInteger("forward_count"));
+            counts.put(getTimestamp(row.getDate("date"), row.getInteger("hour_of_day")), entry);
+        }
+        return counts;
+    }
+
+    /**
+     * @param date
+     *            the day
+     * @param hourOfDay
+     *            the hour of the day
+     * @return the timestamp of the start of the given hour
+     */
+    public static long getTimestamp(java.util.Date date, int hourOfDay)
+    {
+        return date.getTime() + hourOfDay * HOUR;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package models;
+
+import java.io.Serializable;
+import java.sql.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+/**
+ * The key of the {@link MailStatisticsHourly hourly statistics}.
+ */
+@Embeddable
+public class MailStatisticsHourlyKey implements Serializable
+{
+    private static final long serialVersionUID = -3018254409317726401L;
+
+    @Column(nullable = false)
+    private Date date;
+
+    /**
+     * The hour of the day indicated by "date" (0 to 23)
+     */
+    @Column(name = "HOUR_OF_DAY", nullable = false)
+    private int hourOfDay;
+
+    public MailStatisticsHourlyKey(Date date, int hourOfDay)
+    {
+        this.date = date;
+        this.hourOfDay = hourOfDay;
+    }
+
+    public Date getDate()
+    {
+        return date;
+    }
+
+    public int getHourOfDay()
+    {
+        return hourOfDay;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * ((date == null) ? 0 : date.hashCode()) + hourOfDay;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof MailStatisticsHourlyKey))
+        {
+            return false;
+        }
+        MailStatisticsHourlyKey other = (MailStatisticsHourlyKey) obj;
+        return hourOfDay == other.hourOfDay && (date == null ? other.date == null : date.equals(other.date));
+    }
+}
@@ -16,12 +16,17 @@
  */
 package models;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.PersistenceException;
 import javax.persistence.Table;
 
 import org.joda.time.DateTime;
@@ -32,6 +37,7 @@ import com.avaje.ebean.Query;
 import com.avaje.ebean.RawSql;
 import com.avaje.ebean.RawSqlBuilder;
 import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
 
 /**
  * This Class is used to save all Actions on the Mailserver
@@ -42,6 +48,12 @@ import com.avaje.ebean.SqlUpdate;
 @Table(name = "mailtransactions")
 public class MailTransaction
 {
+    private static final String INSERT_SQL = "insert into mailtransactions "
+                                             + "(id, ts, status, sourceaddr, relayaddr, targetaddr) "
+                                             + "values (?, ?, ?, ?, ?, ?)";
+
+    private static final String ID_RANGE_SQL = "select mailtransactions_seq.nextval from system_range(1, ?)";
+
     @Id
     private Long id;
 
@@ -322,8 +334,9 @@ public class MailTransaction
      * 
      * @param ts
      *            the Timestamp in milliseconds
+     * @return the number of deleted transactions
      */
-    public static void deleteTxInPeriod(Long ts)
+    public static int deleteTxInPeriod(Long ts)
     {
         String sql = "DELETE FROM MAILTRANSACTIONS";
         if (ts != null)
@@ -331,7 +344,7 @@ public class MailTransaction
             sql += " WHERE ts < " + ts;
         }
         SqlUpdate down = Ebean.createSqlUpdate(sql);
-        down.execute();
+        return down.execute();
     }
 
     /**
@@ -373,12 +386,78 @@ public class MailTransaction
     }
 
     /**
-     * saves multiple elements
+     * Saves multiple elements with a single JDBC batch in one transaction. The IDs are taken from the sequence in one
+     * range before, instead of one by one.
      * 
      * @param mtxList
+     *            the transactions to save, their IDs are set
      */
     public static void saveMultipleTx(List<MailTransaction> mtxList)
     {
-        Ebean.save(mtxList);
+        if (mtxList.isEmpty())
+        {
+            return;
+        }
+
+        Transaction transaction = Ebean.beginTransaction();
+        try
+        {
+            Connection connection = transaction.getConnection();
+            allocateIds(connection, mtxList);
+
+            PreparedStatement statement = connection.prepareStatement(INSERT_SQL);
+            try
+            {
+                for (MailTransaction mtx : mtxList)
+                {
+                    statement.setLong(1, mtx.getId());
+                    statement.setLong(2, mtx.getTs());
+                    statement.setInt(3, mtx.getStatus());
+                    statement.setString(4, mtx.getSourceaddr());
+                    statement.setString(5, mtx.getRelayaddr());
+                    statement.setString(6, mtx.getTargetaddr());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            finally
+            {
+                statement.close();
+            }
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new PersistenceException(e);
+        }
+        finally
+        {
+            transaction.end();
+        }
+    }
+
+    /**
+     * Sets the IDs of the given transactions to a range of values of the sequence, fetched with one query.
+     */
+    private static void allocateIds(Connection connection, List<MailTransaction> mtxList) throws SQLException
+    {
+        PreparedStatement statement = connection.prepareStatement(ID_RANGE_SQL);
+        try
+        {
+            statement.setInt(1, mtxList.size());
+            ResultSet resultSet = statement.executeQuery();
+            for (MailTransaction mtx : mtxList)
+            {
+                if (!resultSet.next())
+                {
+                    throw new SQLException("The sequence returned less than " + mtxList.size() + " IDs");
+                }
+                mtx.setId(resultSet.getLong(1));
+            }
+        }
+        finally
+        {
+            statement.close();
+        }
     }
 }
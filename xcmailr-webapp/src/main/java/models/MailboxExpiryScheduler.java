@@ -0,0 +1,324 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+
+import etc.NamedThreadFactory;
+
+/**
+ * Expires the {@link MBox mailboxes} at their ts_Active. The deadlines are kept in a hierarchical timing wheel: the
+ * inner wheel has one bucket per tick (250 ms) and covers the next 256 seconds, the outer wheel has one bucket per
+ * revolution of the inner wheel and covers about three days. A deadline is added to a bucket in constant time and
+ * cascaded from the outer to the inner wheel at most once, so a box expires at most two ticks after its deadline.
+ * <p>
+ * The scheduler is seeded on startup (see {@link #start()}) and kept current by the write paths of {@link MBox}. A
+ * deadline which is replaced by a newer one is skipped when its bucket is reached. The boxes are expired with
+ * {@link MBox#expireBoxes(Collection, long)}, which checks the deadline in the database again.
+ * </p>
+ */
+public final class MailboxExpiryScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(MailboxExpiryScheduler.class);
+
+    /** the length of a tick in milliseconds */
+    static final long TICK = 250;
+
+    private static final int WHEEL_BITS = 10;
+
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /** the current deadline of each scheduled box */
+    private static final Map<Long, Long> deadlines = new ConcurrentHashMap<Long, Long>();
+
+    private static final List<Timeout>[] innerWheel = createWheel();
+
+    private static final List<Timeout>[] outerWheel = createWheel();
+
+    private static final AtomicLong expired = new AtomicLong();
+
+    /** the last processed tick */
+    private static long currentTick;
+
+    private static ScheduledExecutorService executor;
+
+    private MailboxExpiryScheduler()
+    {
+    }
+
+    /**
+     * Loads the deadlines of all active boxes from the database and starts to expire them.
+     *
+     * @return the number of scheduled boxes
+     */
+    public static synchronized int start()
+    {
+        stop();
+        currentTick = System.currentTimeMillis() / TICK;
+
+        List<SqlRow> rows = Ebean.createSqlQuery("select id, ts_active from mailboxes "
+                                                 + "where ts_active <> 0 and expired = false").findList();
+        for (SqlRow row : rows)
+        {
+            schedule(row.getLong("id"), row.getLong("ts_active"));
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mailbox-expiry"));
+        executor.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                advance(System.currentTimeMillis());
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+        return rows.size();
+    }
+
+    /**
+     * Stops the scheduler and drops all deadlines.
+     */
+    public static synchronized void stop()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            executor = null;
+        }
+        deadlines.clear();
+        for (int i = 0; i < WHEEL_SIZE; i++)
+        {
+            innerWheel[i].clear();
+            outerWheel[i].clear();
+        }
+    }
+
+    /**
+     * @return the number of boxes with a pending deadline
+     */
+    public static int size()
+    {
+        return deadlines.size();
+    }
+
+    /**
+     * @return the number of boxes which have been expired by the scheduler
+     */
+    public static long getExpiredCount()
+    {
+        return expired.get();
+    }
+
+    /**
+     * Sets the deadline of the given box, replacing the previous one. Nothing is scheduled while the scheduler isn't
+     * running.
+     *
+     * @param boxId
+     *            the box-ID
+     * @param tsActive
+     *            the timestamp the box expires at, or 0 if the box never expires
+     */
+    static synchronized void schedule(long boxId, long tsActive)
+    {
+        if (executor == null || boxId == 0)
+        {
+            return;
+        }
+        if (tsActive == 0)
+        {
+            deadlines.remove(boxId);
+            return;
+        }
+        Long previous = deadlines.put(boxId, tsActive);
+        if (previous == null || previous.longValue() != tsActive)
+        {
+            add(new Timeout(boxId, tsActive));
+        }
+    }
+
+    /**
+     * Sets the deadlines of the given boxes. Mirrors the bulk SQL-updates of {@link MBox}.
+     *
+     * @param boxIds
+     *            the box-IDs
+     * @param tsActive
+     *            the timestamp the boxes expire at, or 0 if they never expire
+     */
+    static synchronized void schedule(Collection<Long> boxIds, long tsActive)
+    {
+        for (Long boxId : boxIds)
+        {
+            schedule(boxId, tsActive);
+        }
+    }
+
+    /**
+     * Removes the deadlines of the given boxes.
+     *
+     * @param boxIds
+     *            the box-IDs
+     */
+    static void cancel(Collection<Long> boxIds)
+    {
+        for (Long boxId : boxIds)
+        {
+            deadlines.remove(boxId);
+        }
+    }
+
+    /**
+     * Processes all ticks up to the given time and expires the boxes whose deadline has been reached.
+     *
+     * @param now
+     *            the current timestamp (in milliseconds)
+     */
+    static void advance(long now)
+    {
+        List<Long> dueBoxes = new ArrayList<Long>();
+        synchronized (MailboxExpiryScheduler.class)
+        {
+            long targetTick = now / TICK;
+            while (currentTick < targetTick)
+            {
+                currentTick++;
+                if ((currentTick & WHEEL_MASK) == 0)
+                {
+                    cascade(currentTick >> WHEEL_BITS);
+                }
+
+                List<Timeout> bucket = innerWheel[(int) (currentTick & WHEEL_MASK)];
+                for (Timeout timeout : bucket)
+                {
+                    // skip the deadlines which have been replaced or cancelled in the meantime
+                    if (deadlines.remove(timeout.boxId, timeout.deadline))
+                    {
+                        dueBoxes.add(timeout.boxId);
+                    }
+                }
+                bucket.clear();
+            }
+        }
+
+        if (!dueBoxes.isEmpty())
+        {
+            try
+            {
+                List<Long> expiredBoxes = MBox.expireBoxes(dueBoxes, now);
+                expired.addAndGet(expiredBoxes.size());
+                log.debug("Expired mailboxes: {}", expiredBoxes);
+            }
+            catch (Exception e)
+            {
+                // the boxes will be expired by the next run of the expiration task
+                log.error("Failed to expire the mailboxes " + dueBoxes, e);
+            }
+        }
+    }
+
+    /**
+     * Moves the deadlines of the given revolution from the outer to the inner wheel.
+     */
+    private static void cascade(long revolution)
+    {
+        List<Timeout> bucket = outerWheel[(int) (revolution & WHEEL_MASK)];
+        List<Timeout> remaining = new ArrayList<Timeout>();
+        for (Timeout timeout : bucket)
+        {
+            Long deadline = deadlines.get(timeout.boxId);
+            if (deadline == null || deadline.longValue() != timeout.deadline)
+            {
+                // replaced or cancelled in the meantime
+                continue;
+            }
+            if ((timeout.tick >> WHEEL_BITS) == revolution)
+            {
+                innerWheel[(int) (timeout.tick & WHEEL_MASK)].add(timeout);
+            }
+            else
+            {
+                // more than one revolution of the outer wheel ahead
+                remaining.add(timeout);
+            }
+        }
+        bucket.clear();
+        bucket.addAll(remaining);
+    }
+
+    private static void add(Timeout timeout)
+    {
+        if (timeout.tick <= currentTick)
+        {
+            // already due, expire it with the next tick
+            innerWheel[(int) ((currentTick + 1) & WHEEL_MASK)].add(timeout);
+        }
+        else if (timeout.tick - currentTick < WHEEL_SIZE)
+        {
+            innerWheel[(int) (timeout.tick & WHEEL_MASK)].add(timeout);
+        }
+        else
+        {
+            outerWheel[(int) ((timeout.tick >> WHEEL_BITS) & WHEEL_MASK)].add(timeout);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Timeout>[] createWheel()
+    {
+        List<Timeout>[] wheel = new List[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++)
+        {
+            wheel[i] = new ArrayList<Timeout>();
+        }
+        return wheel;
+    }
+
+    /**
+     * The deadline of a box
+     */
+    private static final class Timeout
+    {
+        final long boxId;
+
+        final long deadline;
+
+        /** the first tick at or after the deadline */
+        final long tick;
+
+        Timeout(long boxId, long deadline)
+        {
+            this.boxId = boxId;
+            this.deadline = deadline;
+            this.tick = (deadline + TICK - 1) / TICK;
+        }
+    }
+}
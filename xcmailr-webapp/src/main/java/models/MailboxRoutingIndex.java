@@ -0,0 +1,348 @@
+/**
+ *  Copyright 2013 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package models;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.avaje.ebean.Ebean;
+
+/**
+ * In-memory index of all {@link MBox mailboxes} keyed by their address, used to route incoming mails without a
+ * database round-trip. The index is loaded once on startup (see {@link #load()}) and kept current by the write paths
+ * of {@link MBox} and {@link User}. Reads are lock-free, writes are serialized.
+ */
+public final class MailboxRoutingIndex
+{
+    /** routes keyed by "local-part@domain" */
+    private static final Map<String, Route> routesByAddress = new ConcurrentHashMap<String, Route>();
+
+    /** routes keyed by the box-ID */
+    private static final Map<Long, Route> routesById = new ConcurrentHashMap<Long, Route>();
+
+    /** the owner state keyed by the user-ID */
+    private static final Map<Long, Owner> owners = new ConcurrentHashMap<Long, Owner>();
+
+    private static volatile boolean loaded;
+
+    private MailboxRoutingIndex()
+    {
+    }
+
+    /**
+     * (Re-)Loads the whole index from the database.
+     *
+     * @return the number of indexed boxes
+     */
+    public static synchronized int load()
+    {
+        routesByAddress.clear();
+        routesById.clear();
+        owners.clear();
+
+        for (User user : Ebean.find(User.class).select("mail, active").findList())
+        {
+            putOwner(user);
+        }
+        List<MBox> boxes = Ebean.find(MBox.class).findList();
+        for (MBox box : boxes)
+        {
+            put(box);
+        }
+        loaded = true;
+        return boxes.size();
+    }
+
+    /**
+     * @return true if the index has been loaded and can answer lookups
+     */
+    public static boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * @return the number of indexed boxes
+     */
+    public static int size()
+    {
+        return routesById.size();
+    }
+
+    /**
+     * Resolves the box for the given address. If the index has not been loaded yet, the database is queried instead.
+     * <p>
+     * <b>NOTE:</b> the returned box is detached and only carries the routing-relevant fields (ID, address, domain,
+     * ts_Active, expired, forwardEmails and the owner's ID, mail and active-flag). Use it for routing and the
+     * counter-methods only, never to update the box.
+     * </p>
+     *
+     * @param mail
+     *            the Local-Part of the virtual Mailbox
+     * @param domain
+     *            the Domain-Part of the virtual Mailbox
+     * @return the box or null if there's no box with this address
+     */
+    public static MBox resolve(String mail, String domain)
+    {
+        if (!loaded)
+        {
+            return MBox.getByName(mail, domain);
+        }
+
+        Route route = routesByAddress.get(key(mail, domain));
+        if (route == null)
+        {
+            return null;
+        }
+        Owner owner = owners.get(route.ownerId);
+
+        MBox box = new MBox(route.address, route.domain, route.tsActive, route.expired,
+                            owner == null ? null : owner.toUser(route.ownerId));
+        box.setId(route.id);
+        box.setForwardEmails(route.forwardEmails);
+        return box;
+    }
+
+    /**
+     * Adds or replaces the route of the given box.
+     *
+     * @param box
+     *            the (persisted) box
+     */
+    static synchronized void put(MBox box)
+    {
+        User usr = box.getUsr();
+        long ownerId = (usr == null) ? 0 : usr.getId();
+        if (usr != null && !owners.containsKey(ownerId))
+        {
+            putOwner(usr);
+        }
+        store(new Route(box.getId(), box.getAddress(), box.getDomain(), box.getTs_Active(), box.isExpired(),
+                        box.isForwardEmails(), ownerId));
+    }
+
+    /**
+     * Removes the route of the box with the given ID.
+     *
+     * @param boxId
+     *            the box-ID
+     */
+    static synchronized void remove(long boxId)
+    {
+        Route route = routesById.remove(boxId);
+        if (route != null)
+        {
+            routesByAddress.remove(key(route.address, route.domain));
+        }
+    }
+
+    /**
+     * Removes the routes of the given boxes if they belong to the given user.
+     *
+     * @param userId
+     *            the owner's ID
+     * @param boxIds
+     *            the box-IDs
+     */
+    static synchronized void remove(long userId, Collection<Long> boxIds)
+    {
+        for (Long boxId : boxIds)
+        {
+            Route route = routesById.get(boxId);
+            if (route != null && route.ownerId == userId)
+            {
+                remove(boxId);
+            }
+        }
+    }
+
+    /**
+     * Sets the expiration-flag of the given boxes if they belong to the given user. Mirrors the bulk SQL-updates of
+     * {@link MBox}.
+     *
+     * @param userId
+     *            the owner's ID
+     * @param boxIds
+     *            the box-IDs
+     * @param expired
+     *            the expiration-flag to set
+     * @param validAfter
+     *            only boxes with a ts_Active after this timestamp (or unlimited boxes) will be changed, use 0 to
+     *            change all boxes
+     */
+    static synchronized void setExpired(long userId, Collection<Long> boxIds, boolean expired, long validAfter)
+    {
+        for (Long boxId : boxIds)
+        {
+            Route route = routesById.get(boxId);
+            if (route != null && route.ownerId == userId
+                && (validAfter == 0 || route.tsActive == 0 || route.tsActive > validAfter))
+            {
+                store(new Route(route.id, route.address, route.domain, route.tsActive, expired, route.forwardEmails,
+                                route.ownerId));
+            }
+        }
+    }
+
+    /**
+     * Marks the given boxes as expired, regardless of their owner. Mirrors {@link MBox#expireBoxes(long)}.
+     *
+     * @param boxIds
+     *            the box-IDs
+     */
+    static synchronized void expire(Collection<Long> boxIds)
+    {
+        for (Long boxId : boxIds)
+        {
+            Route route = routesById.get(boxId);
+            if (route != null && !route.expired)
+            {
+                store(new Route(route.id, route.address, route.domain, route.tsActive, true, route.forwardEmails,
+                                route.ownerId));
+            }
+        }
+    }
+
+    /**
+     * Sets a new ts_Active and activates the given boxes if they belong to the given user. Mirrors the bulk
+     * SQL-updates of {@link MBox}.
+     *
+     * @param userId
+     *            the owner's ID
+     * @param boxIds
+     *            the box-IDs
+     * @param tsActive
+     *            the new timestamp
+     */
+    static synchronized void setTsActive(long userId, Collection<Long> boxIds, long tsActive)
+    {
+        for (Long boxId : boxIds)
+        {
+            Route route = routesById.get(boxId);
+            if (route != null && route.ownerId == userId)
+            {
+                store(new Route(route.id, route.address, route.domain, tsActive, false, route.forwardEmails,
+                                route.ownerId));
+            }
+        }
+    }
+
+    /**
+     * Adds or replaces the owner state of the given user.
+     *
+     * @param user
+     *            the user
+     */
+    static void putOwner(User user)
+    {
+        owners.put(user.getId(), new Owner(user.getMail(), user.isActive()));
+    }
+
+    /**
+     * Removes the given user and the routes of all boxes owned by this user.
+     *
+     * @param userId
+     *            the user-ID
+     */
+    static synchronized void removeOwner(long userId)
+    {
+        owners.remove(userId);
+        for (Route route : routesById.values())
+        {
+            if (route.ownerId == userId)
+            {
+                remove(route.id);
+            }
+        }
+    }
+
+    private static void store(Route route)
+    {
+        Route old = routesById.put(route.id, route);
+        if (old != null)
+        {
+            // the address may have been changed
+            routesByAddress.remove(key(old.address, old.domain));
+        }
+        routesByAddress.put(key(route.address, route.domain), route);
+    }
+
+    private static String key(String mail, String domain)
+    {
+        return mail.toLowerCase() + "@" + domain;
+    }
+
+    /**
+     * Immutable routing data of a single box
+     */
+    private static final class Route
+    {
+        final long id;
+
+        final String address;
+
+        final String domain;
+
+        final long tsActive;
+
+        final boolean expired;
+
+        final boolean forwardEmails;
+
+        final long ownerId;
+
+        Route(long id, String address, String domain, long tsActive, boolean expired, boolean forwardEmails,
+              long ownerId)
+        {
+            this.id = id;
+            this.address = address;
+            this.domain = domain;
+            this.tsActive = tsActive;
+            this.expired = expired;
+            this.forwardEmails = forwardEmails;
+            this.ownerId = ownerId;
+        }
+    }
+
+    /**
+     * Immutable state of a box owner
+     */
+    private static final class Owner
+    {
+        final String mail;
+
+        final boolean active;
+
+        Owner(String mail, boolean active)
+        {
+            this.mail = mail;
+            this.active = active;
+        }
+
+        User toUser(long id)
+        {
+            User user = new User();
+            user.setId(id);
+            user.setMail(mail);
+            user.setActive(active);
+            return user;
+        }
+    }
+}
@@ -64,6 +64,7 @@ public class User extends AbstractEntity implements Serializable
      * Email-address
      */
     @Email
+    @Column(unique = true)
     private String mail;
 
     /**
@@ -109,7 +110,7 @@ public class User extends AbstractEntity implements Serializable
     @JsonManagedReference
     public List<MBox> boxes;
 
-    @Column(name = "apitoken")
+    @Column(name = "apitoken", unique = true)
     private String apiToken;
 
     /**
@@ -487,6 +488,37 @@ public class User extends AbstractEntity implements Serializable
     public static void delete(Long id)
     {
         Ebean.delete(User.class, id);
+        MailboxRoutingIndex.removeOwner(id);
+    }
+
+    /**
+     * Stores the User in the Database and updates the owner state in the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void save()
+    {
+        super.save();
+        MailboxRoutingIndex.putOwner(this);
+    }
+
+    /**
+     * Updates the User in the DB and the owner state in the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void update()
+    {
+        super.update();
+        MailboxRoutingIndex.putOwner(this);
+    }
+
+    /**
+     * Deletes the User (and the boxes) from the database and the {@link MailboxRoutingIndex}
+     */
+    @Override
+    public void delete()
+    {
+        super.delete();
+        MailboxRoutingIndex.removeOwner(getId());
     }
 
     /**
@@ -513,6 +545,7 @@ public class User extends AbstractEntity implements Serializable
         User usr = User.getById(id);
         usr.setActive(!usr.isActive());
         Ebean.update(usr);
+        MailboxRoutingIndex.putOwner(usr);
         return usr.isActive();
 
     }
@@ -537,7 +570,12 @@ public class User extends AbstractEntity implements Serializable
      */
     public static void deleteUsersOfDomain(String domainName)
     {
-        Ebean.delete(getUsersOfDomain(domainName));
+        List<User> users = getUsersOfDomain(domainName);
+        Ebean.delete(users);
+        for (User user : users)
+        {
+            MailboxRoutingIndex.removeOwner(user.getId());
+        }
     }
 
     /**
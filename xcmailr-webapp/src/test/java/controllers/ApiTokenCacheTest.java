@@ -0,0 +1,53 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import models.User;
+import ninja.NinjaTest;
+
+public class ApiTokenCacheTest extends NinjaTest
+{
+    private ApiTokenCache apiTokenCache;
+
+    private User user;
+
+    @Before
+    public void setUp()
+    {
+        apiTokenCache = getInjector().getInstance(ApiTokenCache.class);
+        user = new User("token", "user", "tokenuser@xcmailr.test", "1234", "en");
+        user.setActive(true);
+        user.setApiToken("cachedToken");
+        user.save();
+    }
+
+    @Test
+    public void testTokenIsCachedUntilInvalidated()
+    {
+        assertNull(apiTokenCache.getUser("unknownToken"));
+        assertEquals(user.getId(), apiTokenCache.getUser("cachedToken").getId());
+
+        // the cached user is returned without asking the database
+        user.setApiToken("newToken");
+        user.save();
+        assertEquals(user.getId(), apiTokenCache.getUser("cachedToken").getId());
+
+        apiTokenCache.invalidate("cachedToken");
+        assertNull(apiTokenCache.getUser("cachedToken"));
+        assertEquals(user.getId(), apiTokenCache.getUser("newToken").getId());
+    }
+
+    @Test
+    public void testDeletingTheSessionsInvalidatesTheToken()
+    {
+        assertEquals(user.getId(), apiTokenCache.getUser("cachedToken").getId());
+
+        User.activate(user.getId());
+        getInjector().getInstance(CachingSessionHandler.class).deleteUsersSessions(user);
+        assertNull(apiTokenCache.getUser("cachedToken"));
+    }
+}
@@ -7,11 +7,18 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.junit.After;
@@ -26,6 +33,7 @@ import models.MBox;
 import models.Mail;
 import models.User;
 import ninja.NinjaTest;
+import ninja.utils.NinjaTestBrowser;
 
 public class BoxHandlerTest extends NinjaTest
 {
@@ -486,7 +494,7 @@ public class BoxHandlerTest extends NinjaTest
          */
         // create a new mail address(mbox) to expire
         DateTime dt = DateTime.now().minusHours(2);
-        MBox mailbox2 = new MBox("abcdefg", "xcmailr.test", dt.getMillis(), false, user);
+        MBox mailbox2 = new MBox("abcdefgh", "xcmailr.test", dt.getMillis(), false, user);
         mailbox2.save();
         formParams.clear();
         // we want to reactivate the box and expect the edit-page then (because its expired)
@@ -930,7 +938,22 @@ public class BoxHandlerTest extends NinjaTest
          */
         result = ninjaTestBrowser.makeRequest(ninjaTestServer.getServerAddress()
                                               + "mails?format=json&search=something");
-        assertTrue(result.equals("{\"total\":1,\"rows\":[]}"));
+        assertEquals("{\"total\":0,\"rows\":[]}", result);
+
+        result = ninjaTestBrowser.makeRequest(ninjaTestServer.getServerAddress()
+                                              + "mails?format=json&search=NOTYOU");
+        assertEquals("{\"total\":1,\"rows\":[]}", result);
+
+        result = ninjaTestBrowser.makeRequest(ninjaTestServer.getServerAddress()
+                                              + "mails?format=json&search=allmails@xcmailr");
+        assertEquals("{\"total\":1,\"rows\":[]}", result);
+
+        /*
+         * TEST: the offset is behind the last mail
+         */
+        result = ninjaTestBrowser.makeRequest(ninjaTestServer.getServerAddress()
+                                              + "mails?format=json&offset=1&limit=1");
+        assertEquals("{\"total\":1,\"rows\":[]}", result);
     }
 
     @Test
@@ -949,7 +972,7 @@ public class BoxHandlerTest extends NinjaTest
         Assert.assertNotNull("Failed to load 'multiPart.eml'", is);
 
         final Mail mail = createMail(tempMBox, "spamme@org.com", "Multipart HTML",
-                                     MessageListener.readLimitedAmount(is, 500_000));
+                                     IOUtils.toString(is, StandardCharsets.US_ASCII));
 
         final String uri = ninjaTestServer.getBaseUrl() + "/mailbox/mailboxquery@xcmailr.test/validToken";
 
@@ -970,8 +993,126 @@ public class BoxHandlerTest extends NinjaTest
          */
         result = ninjaTestBrowser.makeRequest(uri + "?format=plain");
         // NinjaTestBrowser#makeRequest() removes all line terminators from received response
-        assertEquals(mail.getMessage().replaceAll("[\r\n]+", ""), result);
+        assertEquals(new String(mail.getMessage(), StandardCharsets.US_ASCII).replaceAll("[\r\n]+", ""), result);
+
+    }
+
+    @Test
+    public void testQueryMailboxWait() throws Exception
+    {
+        user.setApiToken("validToken");
+        user.save();
+        ninjaTestBrowser.makeRequest(ninjaTestServer.getServerAddress() + "create/temporaryMail/" + user.getApiToken()
+                                     + "/mailboxwait@xcmailr.test/10");
+        user = User.getById(user.getId());
+        final MBox tempMBox = user.getBoxes().get(0);
+        final MailboxWaiters mailboxWaiters = getInjector().getInstance(MailboxWaiters.class);
+
+        final String uri = ninjaTestServer.getBaseUrl() + "/mailbox/mailboxwait@xcmailr.test/validToken";
+
+        /*
+         * TEST: no mail is received in time
+         */
+        long start = System.currentTimeMillis();
+        result = ninjaTestBrowser.makeRequest(uri + "?format=json&wait=1");
+        assertEquals("[]", result);
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        assertEquals(0, mailboxWaiters.getWaitingCount());
+
+        /*
+         * TEST: the query is answered when a matching mail is received
+         */
+        final String[] waitResult = new String[1];
+        Thread waitingClient = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                waitResult[0] = new NinjaTestBrowser().makeRequest(uri + "?format=json&wait=20&subject=Verification");
+            }
+        };
+        start = System.currentTimeMillis();
+        waitingClient.start();
+        while (mailboxWaiters.getWaitingCount() == 0 && System.currentTimeMillis() - start < 10000)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mailboxWaiters.getWaitingCount());
+
+        // a mail which doesn't match the filter
+        mailboxWaiters.mailArrived(createMail(tempMBox, null, "Newsletter", null));
+        Thread.sleep(200);
+        assertEquals(1, mailboxWaiters.getWaitingCount());
+
+        mailboxWaiters.mailArrived(createMail(tempMBox, null, "Verification", null));
+        waitingClient.join(10000);
+        assertTrue(waitResult[0].contains("\"subject\":\"Verification\""));
+        assertFalse(waitResult[0].contains("Newsletter"));
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(0, mailboxWaiters.getWaitingCount());
+    }
+
+    @Test
+    public void testStreamMailboxEvents() throws Exception
+    {
+        user.setApiToken("validToken");
+        user.save();
+        ninjaTestBrowser.makeRequest(ninjaTestServer.getServerAddress() + "create/temporaryMail/" + user.getApiToken()
+                                     + "/mailboxevents@xcmailr.test/10");
+        user = User.getById(user.getId());
+        final MBox tempMBox = user.getBoxes().get(0);
+        final MailboxEventStream eventStream = getInjector().getInstance(MailboxEventStream.class);
+
+        /*
+         * TEST: invalid token and foreign mailbox
+         */
+        HttpURLConnection connection = openConnection("mailbox/events/invalidToken");
+        assertEquals(401, connection.getResponseCode());
+        connection = openConnection("mailbox/events/validToken?mailAddress=unknown@xcmailr.test");
+        assertEquals(400, connection.getResponseCode());
 
+        /*
+         * TEST: a received mail is pushed to the client
+         */
+        connection = openConnection("mailbox/events/validToken?mailAddress=mailboxevents@xcmailr.test");
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/event-stream"));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                                                                         StandardCharsets.UTF_8));
+
+        long start = System.currentTimeMillis();
+        while (eventStream.getSubscriberCount() == 0 && System.currentTimeMillis() - start < 10000)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(1, eventStream.getSubscriberCount());
+
+        Mail mail = createMail(tempMBox, null, "Streamed", null);
+        eventStream.mailArrived(mail);
+
+        assertEquals("event: mail", reader.readLine());
+        assertEquals("id: " + mail.getId(), reader.readLine());
+        String data = reader.readLine();
+        assertTrue(data.startsWith("data: {\"mailAddress\":\"mailboxevents@xcmailr.test\""));
+        assertTrue(data.contains("\"subject\":\"Streamed\""));
+        assertEquals("", reader.readLine());
+
+        /*
+         * TEST: the stream is closed when the clients of the user are disconnected (e.g. the token has been revoked)
+         */
+        eventStream.closeUser(user.getId());
+        assertNull(reader.readLine());
+        assertEquals(0, eventStream.getSubscriberCount());
+
+        connection.disconnect();
+    }
+
+    private HttpURLConnection openConnection(String path) throws IOException
+    {
+        URL url = new URL(ninjaTestServer.getServerAddress() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(10000);
+        return connection;
     }
 
     private Mail createMail(MBox mailbox)
@@ -983,7 +1124,7 @@ public class BoxHandlerTest extends NinjaTest
     {
         Mail mail = new Mail();
         mail.setMailbox(mailbox);
-        mail.setMessage(StringUtils.defaultString(message));
+        mail.setMessage(StringUtils.defaultString(message).getBytes(StandardCharsets.US_ASCII));
         mail.setSubject(StringUtils.defaultString(subject, "No Subject"));
         mail.setReceiveTime(1546300800);
         mail.setSender(StringUtils.defaultString(from, "someone@notyou.net"));
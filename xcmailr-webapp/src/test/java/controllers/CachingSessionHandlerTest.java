@@ -0,0 +1,107 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import conf.XCMailrConf;
+import models.User;
+import ninja.NinjaTest;
+
+public class CachingSessionHandlerTest extends NinjaTest
+{
+    private CachingSessionHandler handler;
+
+    private User user;
+
+    @Before
+    public void setUp()
+    {
+        handler = getInjector().getInstance(CachingSessionHandler.class);
+        user = new User("session", "user", "sessionuser@xcmailr.test", "1234", "en");
+        user.setActive(true);
+        user.save();
+    }
+
+    private void login(String sessionId)
+    {
+        handler.setSession(sessionId, user);
+        handler.setSessionUser(user, sessionId, 60);
+    }
+
+    @Test
+    public void testConcurrentLoginsKeepAllSessions() throws Exception
+    {
+        final int sessions = 40;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<Object>> logins = new ArrayList<Future<Object>>();
+            for (int i = 0; i < sessions; i++)
+            {
+                final String sessionId = "concurrent-" + i;
+                logins.add(executor.submit(new Callable<Object>()
+                {
+                    @Override
+                    public Object call()
+                    {
+                        login(sessionId);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> login : logins)
+            {
+                login.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        assertEquals(sessions, ((SessionIndex) handler.get(user.getMail())).size());
+
+        handler.deleteUsersSessions(user);
+        assertNull(handler.get(user.getMail()));
+        assertNull(handler.getSessionUser("concurrent-0"));
+    }
+
+    @Test
+    public void testOldestSessionIsEvicted()
+    {
+        final int maxSessions = getInjector().getInstance(XCMailrConf.class).SESSION_MAX_PER_USER;
+        for (int i = 0; i <= maxSessions; i++)
+        {
+            login("evict-" + i);
+        }
+
+        assertEquals(maxSessions, ((SessionIndex) handler.get(user.getMail())).size());
+        assertNull(handler.getSessionUser("evict-0"));
+        assertNotNull(handler.getSessionUser("evict-1"));
+    }
+
+    @Test
+    public void testDeleteSession()
+    {
+        login("logout-1");
+        login("logout-2");
+
+        handler.deleteSession("logout-1");
+        assertNull(handler.getSessionUser("logout-1"));
+        assertEquals(1, ((SessionIndex) handler.get(user.getMail())).size());
+
+        handler.deleteSession("logout-2");
+        assertNull(handler.get(user.getMail()));
+    }
+}
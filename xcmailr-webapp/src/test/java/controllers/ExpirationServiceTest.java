@@ -0,0 +1,237 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.avaje.ebean.Ebean;
+
+import conf.XCMailrConf;
+import etc.StatisticsEntry;
+import models.MBox;
+import models.Mail;
+import models.MailStatistics;
+import models.MailStatisticsDaily;
+import models.MailTransaction;
+import models.MailboxExpiryScheduler;
+import models.User;
+import ninja.NinjaTest;
+import ninja.utils.NinjaMode;
+import ninja.utils.NinjaProperties;
+import ninja.utils.NinjaPropertiesImpl;
+
+public class ExpirationServiceTest extends NinjaTest
+{
+    MBox mailbox;
+
+    @Before
+    public void setUp()
+    {
+        User user = new User("forename", "surname", "expiration@localhost.com", "1234", "en");
+        user.setActive(true);
+        user.save();
+        mailbox = new MBox("expiration", "xcmailr.test", 0, false, user);
+        mailbox.save();
+    }
+
+    @Test
+    public void testDeleteExpiredMailsInChunks()
+    {
+        final NinjaProperties ninjaProperties = spy(new NinjaPropertiesImpl(NinjaMode.test));
+        doReturn(2).when(ninjaProperties).getIntegerWithDefault("mbox.mail.deletechunksize", 500);
+        final XCMailrConf xcmConfiguration = new XCMailrConf(ninjaProperties);
+        final ExpirationService expirationService = new ExpirationService(new MailTransactionBuffer(xcmConfiguration),
+                                                                          new MailStatisticsCounter(),
+                                                                          new MailStatisticsCache(false), false,
+                                                                          xcmConfiguration,
+                                                                          new ApiTokenCache(xcmConfiguration));
+
+        for (int i = 0; i < 5; i++)
+        {
+            createMail(1000 + i);
+        }
+        createMail(5000);
+
+        expirationService.deleteExpiredMails(2000);
+
+        // the mail which has been received after the given time is kept
+        assertEquals(1, Ebean.find(Mail.class).where().eq("mailbox_id", mailbox.getId()).findRowCount());
+
+        Map<String, Number> metrics = expirationService.getRetentionMetrics();
+        assertEquals(5L, metrics.get("deletedMails"));
+        assertEquals(3L, metrics.get("deletedChunks"));
+        assertEquals(5, metrics.get("lastRunDeletedMails"));
+
+        expirationService.deleteExpiredMails(2000);
+        metrics = expirationService.getRetentionMetrics();
+        assertEquals(5L, metrics.get("deletedMails"));
+        assertEquals(0, metrics.get("lastRunDeletedMails"));
+    }
+
+    @Test
+    public void testExpireMailboxes()
+    {
+        final XCMailrConf xcmConfiguration = new XCMailrConf(new NinjaPropertiesImpl(NinjaMode.test));
+        final ExpirationService expirationService = new ExpirationService(new MailTransactionBuffer(xcmConfiguration),
+                                                                          new MailStatisticsCounter(),
+                                                                          new MailStatisticsCache(false), false,
+                                                                          xcmConfiguration,
+                                                                          new ApiTokenCache(xcmConfiguration));
+        // expire the boxes with the periodic task only
+        MailboxExpiryScheduler.stop();
+        final long now = System.currentTimeMillis();
+        MBox expiring = new MBox("expiring", "xcmailr.test", now - 1000, false, mailbox.getUsr());
+        expiring.save();
+        MBox active = new MBox("active", "xcmailr.test", now + 60000, false, mailbox.getUsr());
+        active.save();
+
+        expirationService.expireMailboxes(now);
+
+        assertTrue(MBox.getById(expiring.getId()).isExpired());
+        assertFalse(MBox.getById(active.getId()).isExpired());
+        // the unlimited box isn't touched
+        assertFalse(MBox.getById(mailbox.getId()).isExpired());
+        // the version has been incremented, so the outdated instance can't be saved anymore
+        assertEquals(expiring.getVersion() + 1, (long) MBox.getById(expiring.getId()).getVersion());
+
+        Map<String, Number> metrics = expirationService.getRetentionMetrics();
+        assertEquals(1L, metrics.get("expiredMailboxes"));
+        assertEquals(1, metrics.get("lastRunExpiredMailboxes"));
+
+        expirationService.expireMailboxes(now);
+        metrics = expirationService.getRetentionMetrics();
+        assertEquals(1L, metrics.get("expiredMailboxes"));
+        assertEquals(0, metrics.get("lastRunExpiredMailboxes"));
+    }
+
+    @Test
+    public void testProcessMailTransactionsInBatches()
+    {
+        final NinjaProperties ninjaProperties = spy(new NinjaPropertiesImpl(NinjaMode.test));
+        doReturn(2).when(ninjaProperties).getIntegerWithDefault("mailtransaction.batchsize", 500);
+        final XCMailrConf xcmConfiguration = new XCMailrConf(ninjaProperties);
+        final MailTransactionBuffer mtxQueue = new MailTransactionBuffer(xcmConfiguration);
+        final MailStatisticsCounter statisticsCounter = new MailStatisticsCounter();
+        final ExpirationService expirationService = new ExpirationService(mtxQueue, statisticsCounter,
+                                                                          new MailStatisticsCache(false), false,
+                                                                          xcmConfiguration,
+                                                                          new ApiTokenCache(xcmConfiguration));
+
+        for (int i = 0; i < 5; i++)
+        {
+            mtxQueue.offer(500, "batch@localhost", null, "relay" + i + "@localhost");
+        }
+        // counted in the statistics only
+        mtxQueue.offer(300, "batch@localhost", "expiration@xcmailr.test", "target@localhost");
+
+        assertEquals(6, expirationService.processMailTransactions(Long.MAX_VALUE));
+        assertEquals(0, mtxQueue.size());
+        assertEquals(1, statisticsCounter.size());
+
+        List<MailTransaction> transactions = MailTransaction.getForSource("batch@localhost");
+        assertEquals(5, transactions.size());
+        Set<Long> ids = new HashSet<Long>();
+        for (MailTransaction mtx : transactions)
+        {
+            assertEquals(500, mtx.getStatus());
+            ids.add(mtx.getId());
+        }
+        assertEquals(5, ids.size());
+    }
+
+    @Test
+    public void testWriteMailStatistics()
+    {
+        final XCMailrConf xcmConfiguration = new XCMailrConf(new NinjaPropertiesImpl(NinjaMode.test));
+        final MailStatisticsCounter statisticsCounter = new MailStatisticsCounter();
+        final MailStatisticsCache statisticsCache = new MailStatisticsCache(true);
+        final ExpirationService expirationService = new ExpirationService(new MailTransactionBuffer(xcmConfiguration),
+                                                                          statisticsCounter, statisticsCache, false,
+                                                                          xcmConfiguration,
+                                                                          new ApiTokenCache(xcmConfiguration));
+
+        statisticsCounter.count(100, "sender@statistics.test", "drop@xcmailr.test");
+        statisticsCounter.count(100, "sender@statistics.test", "drop@xcmailr.test");
+        statisticsCounter.count(300, "sender@statistics.test", "forward@xcmailr.test");
+        // no domain, not counted
+        statisticsCounter.count(300, "sender", "forward@xcmailr.test");
+        assertEquals(1, statisticsCounter.size());
+
+        assertEquals(1, expirationService.writeMailStatistics());
+        assertEquals(0, statisticsCounter.size());
+        MailStatistics statistics = Ebean.find(MailStatistics.class).where()
+                                         .eq("FROM_DOMAIN", "statistics.test").findUnique();
+        assertEquals(2, statistics.getDropCount());
+        assertEquals(1, statistics.getForwardCount());
+        assertRollups(statisticsCache, 2, 1);
+
+        // the counts are added to the existing row
+        statisticsCounter.count(100, "sender@statistics.test", "drop@xcmailr.test");
+        assertEquals(1, expirationService.writeMailStatistics());
+        statistics = Ebean.find(MailStatistics.class).where().eq("FROM_DOMAIN", "statistics.test").findUnique();
+        assertEquals(3, statistics.getDropCount());
+        assertEquals(1, statistics.getForwardCount());
+        assertRollups(statisticsCache, 3, 1);
+
+        assertEquals(0, expirationService.writeMailStatistics());
+    }
+
+    @Test
+    public void testExpireApiTokensInvalidatesCache()
+    {
+        final XCMailrConf xcmConfiguration = new XCMailrConf(new NinjaPropertiesImpl(NinjaMode.test));
+        final ApiTokenCache apiTokenCache = new ApiTokenCache(xcmConfiguration);
+        final ExpirationService expirationService = new ExpirationService(new MailTransactionBuffer(xcmConfiguration),
+                                                                          new MailStatisticsCounter(),
+                                                                          new MailStatisticsCache(false), false,
+                                                                          xcmConfiguration, apiTokenCache);
+
+        User user = new User("forename", "surname", "apitoken@localhost.com", "1234", "en");
+        user.setActive(true);
+        user.setApiToken("expiredToken");
+        user.setApiTokenCreationTimestamp(1);
+        user.save();
+        // the token is cached now
+        assertEquals(user.getId(), apiTokenCache.getUser("expiredToken").getId());
+
+        assertEquals(1, expirationService.expireApiTokens(Long.MAX_VALUE));
+        assertEquals(null, User.getById(user.getId()).getApiToken());
+        assertEquals(null, apiTokenCache.getUser("expiredToken"));
+    }
+
+    private void assertRollups(MailStatisticsCache statisticsCache, int dropCount, int forwardCount)
+    {
+        MailStatisticsDaily daily = Ebean.find(MailStatisticsDaily.class).where()
+                                         .eq("FROM_DOMAIN", "statistics.test").findUnique();
+        assertEquals(dropCount, daily.getDropCount());
+        assertEquals(forwardCount, daily.getForwardCount());
+
+        // the cache has been refreshed by the statistics job
+        Collection<StatisticsEntry> hourly = statisticsCache.getHourlyCounts(LocalDate.now()).values();
+        assertEquals(1, hourly.size());
+        assertEquals(dropCount, hourly.iterator().next().getDropCount());
+        assertEquals(forwardCount, hourly.iterator().next().getForwardCount());
+    }
+
+    private void createMail(long receiveTime)
+    {
+        Mail mail = new Mail();
+        mail.setMailbox(mailbox);
+        mail.setSender("sender@localhost");
+        mail.setSubject("expiring mail");
+        mail.setReceiveTime(receiveTime);
+        mail.save();
+    }
+}
@@ -0,0 +1,194 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests the retry- and rejection-handling of the {@link MailForwardingService}.
+ */
+public class MailForwardingServiceTest
+{
+    private MailForwardingService service;
+
+    @After
+    public void tearDown()
+    {
+        if (service != null)
+        {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testRetryTransientError() throws Exception
+    {
+        service = new MailForwardingService(2, 10, 100, 3, 10, LoggerFactory.getLogger(getClass()));
+        CountingTask task = new CountingTask(2, new MessagingException("connect failed", new ConnectException()));
+
+        assertTrue(service.submit(task));
+        assertTrue(task.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(3, task.attempts.get());
+        assertFalse(task.failed);
+        assertEquals(2, service.getRetriedCount());
+        assertEquals(0, service.getFailedCount());
+    }
+
+    @Test
+    public void testGiveUpAfterMaxRetries() throws Exception
+    {
+        service = new MailForwardingService(2, 10, 100, 2, 10, LoggerFactory.getLogger(getClass()));
+        CountingTask task = new CountingTask(10, new MessagingException("connect failed", new ConnectException()));
+
+        assertTrue(service.submit(task));
+        assertTrue(task.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(3, task.attempts.get());
+        assertTrue(task.failed);
+        assertEquals(1, service.getFailedCount());
+    }
+
+    @Test
+    public void testNoRetryOnPermanentError() throws Exception
+    {
+        service = new MailForwardingService(2, 10, 100, 3, 10, LoggerFactory.getLogger(getClass()));
+        CountingTask task = new CountingTask(10, new SendFailedException("invalid address"));
+
+        assertTrue(service.submit(task));
+        assertTrue(task.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, task.attempts.get());
+        assertTrue(task.failed);
+        assertEquals(0, service.getRetriedCount());
+    }
+
+    @Test
+    public void testFailOnRuntimeException() throws Exception
+    {
+        service = new MailForwardingService(2, 10, 100, 3, 10, LoggerFactory.getLogger(getClass()));
+        CountingTask task = new CountingTask(0, null)
+        {
+            @Override
+            public void send() throws MessagingException
+            {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("database is gone");
+            }
+        };
+
+        assertTrue(service.submit(task));
+        assertTrue(task.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, task.attempts.get());
+        assertTrue(task.failed);
+        assertEquals(0, service.getRetriedCount());
+        assertEquals(1, service.getFailedCount());
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull() throws Exception
+    {
+        service = new MailForwardingService(1, 1, 50, 0, 10, LoggerFactory.getLogger(getClass()));
+        final CountDownLatch release = new CountDownLatch(1);
+        MailForwardingService.SendTask blocking = new CountingTask(0, null)
+        {
+            @Override
+            public void send() throws MessagingException
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        // one task is running, one is waiting in the queue
+        assertTrue(service.submit(blocking));
+        assertTrue(service.submit(new CountingTask(0, null)));
+
+        CountingTask rejected = new CountingTask(0, null);
+        assertFalse(service.submit(rejected));
+        assertTrue(rejected.failed);
+        assertEquals(1, service.getRejectedCount());
+        assertEquals(1, service.getQueueDepth());
+
+        release.countDown();
+    }
+
+    @Test
+    public void testFailPendingRetryOnShutdown() throws Exception
+    {
+        service = new MailForwardingService(1, 10, 100, 3, 60000, LoggerFactory.getLogger(getClass()));
+        CountingTask task = new CountingTask(10, new MessagingException("connect failed", new ConnectException()));
+
+        assertTrue(service.submit(task));
+        long end = System.currentTimeMillis() + 5000;
+        while (service.getRetriedCount() == 0 && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(1, service.getRetriedCount());
+
+        // the retry is waiting for its backoff
+        service.shutdown();
+        assertTrue(task.failed);
+        assertEquals(1, task.attempts.get());
+        assertEquals(1, service.getFailedCount());
+    }
+
+    /**
+     * Fails the given number of times with the given exception before it succeeds.
+     */
+    private static class CountingTask implements MailForwardingService.SendTask
+    {
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final int failures;
+
+        final MessagingException error;
+
+        volatile boolean failed;
+
+        CountingTask(int failures, MessagingException error)
+        {
+            this.failures = failures;
+            this.error = error;
+        }
+
+        @Override
+        public void send() throws MessagingException
+        {
+            if (attempts.incrementAndGet() <= failures)
+            {
+                throw error;
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Exception e)
+        {
+            failed = true;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import etc.StatisticsEntry;
+import models.MailStatistics;
+
+public class MailStatisticsCacheTest
+{
+    @Test
+    public void testSenderRanking()
+    {
+        Map<String, StatisticsEntry> counts = new HashMap<>();
+        counts.put("b.test", createEntry(5, 1));
+        counts.put("a.test", createEntry(2, 7));
+        counts.put("c.test", createEntry(5, 3));
+        counts.put("d.test", createEntry(0, 0));
+        MailStatisticsCache.SenderRanking ranking = new MailStatisticsCache.SenderRanking(counts);
+
+        assertEquals(4, ranking.size());
+        assertDomains(ranking.getPage("droppedCount", true, 0, 10), "c.test", "b.test", "a.test", "d.test");
+        assertDomains(ranking.getPage("droppedCount", false, 0, 10), "d.test", "a.test", "b.test", "c.test");
+        assertDomains(ranking.getPage("forwardedCount", true, 0, 2), "a.test", "c.test");
+        assertDomains(ranking.getPage("forwardedCount", true, 2, 2), "b.test", "d.test");
+        assertDomains(ranking.getPage("fromDomain", false, 1, 2), "b.test", "c.test");
+        assertDomains(ranking.getPage("fromDomain", true, 3, 10), "a.test");
+        assertDomains(ranking.getPage("fromDomain", true, 10, 10));
+    }
+
+    private StatisticsEntry createEntry(int dropCount, int forwardCount)
+    {
+        StatisticsEntry entry = new StatisticsEntry();
+        entry.setDropCount(dropCount);
+        entry.setForwardCount(forwardCount);
+        return entry;
+    }
+
+    private void assertDomains(List<MailStatistics> page, String... domains)
+    {
+        assertEquals(domains.length, page.size());
+        for (int i = 0; i < domains.length; i++)
+        {
+            assertEquals(domains[i], page.get(i).getKey().getFromDomain());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import controllers.MailTransactionBuffer.OverflowPolicy;
+import models.MailTransaction;
+
+public class MailTransactionBufferTest
+{
+    @Test
+    public void testOfferAndPoll()
+    {
+        MailTransactionBuffer buffer = new MailTransactionBuffer(4, OverflowPolicy.DROP, 1);
+        assertEquals(4, buffer.getCapacity());
+        assertNull(buffer.poll());
+
+        // the slots are reused in several rounds
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(buffer.offer(300, "from" + i + "@localhost", "box@xcmailr.test", "target@localhost"));
+            MailTransaction mtx = buffer.poll();
+            assertEquals(300, mtx.getStatus());
+            assertEquals("from" + i + "@localhost", mtx.getSourceaddr());
+            assertEquals("box@xcmailr.test", mtx.getRelayaddr());
+            assertEquals("target@localhost", mtx.getTargetaddr());
+            assertTrue(mtx.getTs() > 0);
+            assertNull(buffer.poll());
+        }
+    }
+
+    @Test
+    public void testDropOnOverflow()
+    {
+        MailTransactionBuffer buffer = new MailTransactionBuffer(4, OverflowPolicy.DROP, 1);
+        for (int i = 0; i < 6; i++)
+        {
+            assertEquals(i < 4, buffer.offer(500, "from@localhost", null, "to" + i + "@localhost"));
+        }
+        assertEquals(4, buffer.size());
+        assertEquals(2L, buffer.getMetrics().get("dropped"));
+
+        // the oldest transactions are kept
+        for (int i = 0; i < 4; i++)
+        {
+            assertEquals("to" + i + "@localhost", buffer.poll().getTargetaddr());
+        }
+        assertNull(buffer.poll());
+        assertTrue(buffer.offer(500, "from@localhost", null, "to@localhost"));
+    }
+
+    @Test
+    public void testSampleOnOverflow()
+    {
+        MailTransactionBuffer buffer = new MailTransactionBuffer(8, OverflowPolicy.SAMPLE, 2);
+        int accepted = 0;
+        for (int i = 0; i < 20; i++)
+        {
+            if (buffer.offer(500, "from@localhost", null, "to@localhost"))
+            {
+                accepted++;
+            }
+        }
+        // the first half is filled completely, then every second transaction is kept until the buffer is full
+        assertEquals(8, accepted);
+        assertEquals(8, buffer.size());
+        assertEquals(8L, buffer.getMetrics().get("sampledOut"));
+        assertEquals(4L, buffer.getMetrics().get("dropped"));
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception
+    {
+        final MailTransactionBuffer buffer = new MailTransactionBuffer(4096, OverflowPolicy.DROP, 1);
+        final int producers = 4;
+        final int count = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++)
+        {
+            final int producer = p;
+            threads[p] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < count; i++)
+                    {
+                        buffer.offer(500, producer + "@localhost", null, i + "@localhost");
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        Set<String> transactions = new HashSet<String>();
+        MailTransaction mtx;
+        while ((mtx = buffer.poll()) != null)
+        {
+            transactions.add(mtx.getSourceaddr() + mtx.getTargetaddr());
+        }
+        assertEquals(producers * count, transactions.size());
+    }
+}
@@ -0,0 +1,130 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import models.MBox;
+import models.Mail;
+
+/**
+ * Tests the answering of waiting mailbox-queries by the {@link MailboxWaiters}.
+ */
+public class MailboxWaitersTest
+{
+    private MailboxWaiters waiters;
+
+    @After
+    public void tearDown()
+    {
+        if (waiters != null)
+        {
+            waiters.shutdown();
+        }
+    }
+
+    @Test
+    public void testSlowCheckDoesNotDelayOtherQueries() throws Exception
+    {
+        waiters = new MailboxWaiters(2, LoggerFactory.getLogger(getClass()));
+        final CountDownLatch release = new CountDownLatch(1);
+        CountingWaiter slow = new CountingWaiter()
+        {
+            @Override
+            public boolean check(Mail mail)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return super.check(mail);
+            }
+        };
+        CountingWaiter fast = new CountingWaiter();
+
+        waiters.await(1, slow, 10000);
+        waiters.await(2, fast, 10000);
+        waiters.mailArrived(createMail(2));
+
+        // the query of mailbox 2 is answered while the check of mailbox 1 is still running
+        assertTrue(fast.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, fast.answers.get());
+        assertEquals(1, waiters.getWaitingCount());
+
+        release.countDown();
+        waiters.mailArrived(createMail(1));
+        assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, slow.answers.get());
+        assertEquals(0, waiters.getWaitingCount());
+    }
+
+    @Test
+    public void testAnswerOnlyOnce() throws Exception
+    {
+        waiters = new MailboxWaiters(4, LoggerFactory.getLogger(getClass()));
+        CountingWaiter waiter = new CountingWaiter();
+
+        waiters.await(1, waiter, 200);
+        for (int i = 0; i < 20; i++)
+        {
+            waiters.mailArrived(createMail(1));
+        }
+
+        assertTrue(waiter.done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(400);
+        assertEquals(1, waiter.answers.get() + waiter.timeouts.get());
+        assertEquals(0, waiters.getWaitingCount());
+    }
+
+    private static Mail createMail(long mailboxId)
+    {
+        MBox mailbox = new MBox();
+        mailbox.setId(mailboxId);
+        Mail mail = new Mail();
+        mail.setMailbox(mailbox);
+        return mail;
+    }
+
+    /**
+     * Matches every received mail (but not the initial check without a mail).
+     */
+    private static class CountingWaiter implements MailboxWaiters.Waiter
+    {
+        final AtomicInteger answers = new AtomicInteger();
+
+        final AtomicInteger timeouts = new AtomicInteger();
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public boolean check(Mail mail)
+        {
+            return mail != null;
+        }
+
+        @Override
+        public void answer()
+        {
+            answers.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void timedOut()
+        {
+            timeouts.incrementAndGet();
+            done.countDown();
+        }
+    }
+}
@@ -1,17 +1,22 @@
 package controllers;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.spy;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Test;
 
+import com.avaje.ebean.Ebean;
+
 import conf.XCMailrConf;
 import models.MBox;
-import models.MailTransaction;
+import models.Mail;
 import models.User;
 import ninja.NinjaTest;
 import ninja.utils.NinjaMode;
@@ -47,7 +52,9 @@ public class MessageListenerDeliverTest extends NinjaTest
         final MessageListener ml = new MessageListener();
         ml.xcmConfiguration = xcmConf;
         ml.jobController = new JobController();
-        final ConcurrentLinkedQueue<MailTransaction> clq = ml.jobController.mtxQueue;
+        ml.jobController.mtxQueue = new MailTransactionBuffer(xcmConf);
+        final MailTransactionBuffer clq = ml.jobController.mtxQueue;
+        ml.mailStatisticsCounter = new MailStatisticsCounter();
 
         // create an user
         final String usrLocalMailPart = RandomStringUtils.randomAlphabetic(10);
@@ -64,8 +71,9 @@ public class MessageListenerDeliverTest extends NinjaTest
         // check unexisting mbox
         result = ml.doMboxPreconditionChecks(local, testAddress);
         assertNull(result);
-        assertEquals(1, clq.size());
-        assertEquals(100, clq.poll().getStatus());
+        // the dropped mail goes to the statistics only (and isn't counted as the sender has no domain)
+        assertEquals(0, clq.size());
+        assertEquals(0, ml.mailStatisticsCounter.size());
 
         // create an expired mbox
         MBox mbx = new MBox(local, domain, 0, true, user);
@@ -97,4 +105,68 @@ public class MessageListenerDeliverTest extends NinjaTest
         result = ml.doMboxPreconditionChecks(local, testAddress);
         assertEquals(result.getUsr(), user);
     }
+
+    /**
+     * Test that the raw bytes of a delivered mail are stored unchanged (including 8-bit content)
+     */
+    @Test
+    public void testDeliveryStoresRawBytes() throws Exception
+    {
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+
+        final String local = RandomStringUtils.randomAlphabetic(10).toLowerCase();
+        final MBox mbx = new MBox(local, "xcmailr.test", 0, false, user);
+        mbx.setForwardEmails(false);
+        mbx.save();
+
+        final byte[] rawMail = ("From: sender@example.com\r\nTo: " + local + "@xcmailr.test\r\n"
+                                + "Subject: 8bit\r\nContent-Type: text/plain; charset=UTF-8\r\n"
+                                + "Content-Transfer-Encoding: 8bit\r\n\r\nGr\u00fc\u00dfe\r\n")
+                                                                                   .getBytes(StandardCharsets.UTF_8);
+
+        final MessageListener ml = getInjector().getInstance(MessageListener.class);
+        ml.deliver("sender@example.com", local + "@xcmailr.test", new ByteArrayInputStream(rawMail));
+
+        final List<Mail> mails = Ebean.find(Mail.class).where().eq("mailbox_id", mbx.getId()).findList();
+        assertEquals(1, mails.size());
+        assertEquals("8bit", mails.get(0).getSubject());
+        assertArrayEquals(rawMail, mails.get(0).getMessage());
+
+        // the content is parsed on receipt
+        assertEquals("Gr\u00fc\u00dfe\r\n", mails.get(0).getTextContent());
+        assertEquals("", mails.get(0).getHtmlContent());
+        assertEquals("[]", mails.get(0).getAttachments());
+    }
+
+    /**
+     * Test that a mail with a To header which can't be parsed for the loop check is still stored (but not forwarded)
+     */
+    @Test
+    public void testDeliveryWithUnparsableToHeader() throws Exception
+    {
+        final User user = new User("John", "Doe", RandomStringUtils.randomAlphabetic(10) + "@ccmailr.test", "1234",
+                                   "en");
+        user.setActive(true);
+        user.save();
+
+        final String local = RandomStringUtils.randomAlphabetic(10).toLowerCase();
+        final MBox mbx = new MBox(local, "xcmailr.test", 0, false, user);
+        mbx.setForwardEmails(true);
+        mbx.save();
+
+        final byte[] rawMail = ("From: sender@example.com\r\nTo: <" + local + "@xcmailr.test\r\n"
+                                + MessageListener.LOOP_HEADER_NAME + ": " + MessageListener.LOOP_HEADER_VALUE_PREFIX
+                                + "someone@example.com\r\nSubject: broken\r\n\r\nHello\r\n")
+                                                                                     .getBytes(StandardCharsets.UTF_8);
+
+        final MessageListener ml = getInjector().getInstance(MessageListener.class);
+        ml.deliver("sender@example.com", local + "@xcmailr.test", new ByteArrayInputStream(rawMail));
+
+        final List<Mail> mails = Ebean.find(Mail.class).where().eq("mailbox_id", mbx.getId()).findList();
+        assertEquals(1, mails.size());
+        assertEquals("broken", mails.get(0).getSubject());
+    }
 }
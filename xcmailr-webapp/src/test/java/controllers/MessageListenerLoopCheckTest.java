@@ -1,7 +1,10 @@
 package controllers;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
 import java.util.Properties;
 
 import javax.mail.MessagingException;
@@ -12,6 +15,8 @@ import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import etc.MailHeaderScan;
+
 /**
  * Should test the way the MessageListener Class checks for email loops. It does not use a server and it doesn't check
  * what happens if a loop was detected. Includes tests for the Return-Path Header, a custom Header, the References and
@@ -40,14 +45,14 @@ public class MessageListenerLoopCheckTest
 
         // test if a loop is detected if the Return-Path is empty
         // It should
-        String result = messageListener.checkForLoop(mail);
+        String result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
         Assert.assertEquals(expectedMessage, result);
 
         // tests if a loop is detected with a normal Return-Path
         // it shouldn't
         mail.setHeader("Return-Path", "<23avjkhsb25s@gmail.com>");
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
     }
 
@@ -76,26 +81,26 @@ public class MessageListenerLoopCheckTest
         // tests if a mail without the custom header goes through
         // It should
         mail.removeHeader(MessageListener.LOOP_HEADER_NAME);
-        String result = messageListener.checkForLoop(mail);
+        String result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
 
         // test if a loop is detected if the a different header has the same content
         mail.setHeader("X-BreakLoop", loopHeaderContent);
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
         mail.removeHeader("X-BreakLoop");
 
         // Tests if the correct custom header with the wrong content goes through.
         // It should
         mail.setHeader(MessageListener.LOOP_HEADER_NAME, recipient);
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
 
         // Tests if the message goes through (= no loop is detected) with the correct custom header and
         // the correct custom header content
         // it should
         mail.setHeader(MessageListener.LOOP_HEADER_NAME, loopHeaderContent);
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
         Assert.assertEquals(expectedMessage, result);
 
@@ -105,7 +110,7 @@ public class MessageListenerLoopCheckTest
         mail.setHeader(MessageListener.LOOP_HEADER_NAME, "Wrong Content");
         mail.addHeader(MessageListener.LOOP_HEADER_NAME, loopHeaderContent);
         mail.addHeader(MessageListener.LOOP_HEADER_NAME, "Wrong Content");
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
         Assert.assertEquals(expectedMessage, result);
 
@@ -114,7 +119,7 @@ public class MessageListenerLoopCheckTest
         // it should
         mail.removeHeader(MessageListener.LOOP_HEADER_NAME);
         mail.setText(MessageListener.LOOP_HEADER_NAME + ": " + loopHeaderContent);
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
     }
 
@@ -141,28 +146,28 @@ public class MessageListenerLoopCheckTest
 
         // tests if it detects a loop if no Reference Header is there. It shoudn't
         mail.removeHeader("References");
-        String result = messageListener.checkForLoop(mail);
+        String result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
 
         // tests if it detects a loop if only a single message id is in the References Header and
         // that message id has the same domain as the id of the mail.
         // It should.
         mail.setHeader("References", "<2345j.a2s3dfgh8j98kmail@" + domain);
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
         Assert.assertEquals(expectedMessage, result);
 
         // tests if it detects a loop if the Reference Header contains an unrelated message id.
         // It shoudn't
         mail.setHeader("References", "<2345r6.mailx4cvb@mail.xcmailr.com>");
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
 
         // tests if it detects a loop if the Reference Header contains two message ids and the first
         // of them has the same domain as the id of the mail while the second does not.
         // It should.
         mail.setHeader("References", "<2345r6.mailx4cvb@" + domain + "   " + "<2345r6.mailxjavamail@021465>");
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
         Assert.assertEquals(expectedMessage, result);
 
@@ -170,7 +175,7 @@ public class MessageListenerLoopCheckTest
         // of them has the same domain as the id of the mail while the first does not.
         // It should.
         mail.setHeader("References", "<2345r6.mailxjavamail@021465>" + "   " + "<2345r6.mailx4cvb@" + domain);
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
         Assert.assertEquals(expectedMessage, result);
     }
@@ -197,20 +202,20 @@ public class MessageListenerLoopCheckTest
         // test if an email without an In-Reply-To header goes through.
         // it should
         mail.removeHeader("In-Reply-To");
-        String result = messageListener.checkForLoop(mail);
+        String result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
 
         // test if an email with an In-Reply-To header containing an unrelated message id goes through.
         // it should
         mail.setHeader("In-Reply-To", "<2345j.a2s3dfgh8j98kmail@googlemail.com");
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertEquals("A loop was detected when none was there", null, result);
 
         // tests if an email with an In-Reply-To header containing a message id with the same @domain as
         // the message id of this very email goes through.
         // it shoudn't.
         mail.setHeader("In-Reply-To", "<2345j.a2s3dfgh8j98kmail@" + domain);
-        result = messageListener.checkForLoop(mail);
+        result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
         Assert.assertEquals(expectedMessage, result);
     }
@@ -227,7 +232,7 @@ public class MessageListenerLoopCheckTest
     {
         MimeMessage mail = loadMailFromFile("outofoffice.eml");
 
-        String result = messageListener.checkForLoop(mail);
+        String result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
     }
 
@@ -243,7 +248,7 @@ public class MessageListenerLoopCheckTest
     {
         MimeMessage mail = loadMailFromFile("bouncemail.eml");
 
-        String result = messageListener.checkForLoop(mail);
+        String result = checkForLoop(mail);
         Assert.assertNotNull("A possible loop went undetected", result);
     }
 
@@ -258,7 +263,7 @@ public class MessageListenerLoopCheckTest
     {
         MimeMessage mail = loadMailFromFile("noHeaders.eml");
 
-        String result = messageListener.checkForLoop(mail);
+        String result = checkForLoop(mail);
         Assert.assertNotEquals("A possible loop went undetected", null, result);
     }
 
@@ -279,4 +284,26 @@ public class MessageListenerLoopCheckTest
         final MimeMessage mail = new MimeMessage(session, inputStream);
         return mail;
     }
+
+    /**
+     * Checks the mail like the MessageListener does: by the headers scanned from its raw bytes. The headers are
+     * written without saving the changes of the mail, which would replace its Message-ID.
+     */
+    private String checkForLoop(MimeMessage mail) throws IOException, MessagingException
+    {
+        final StringBuilder raw = new StringBuilder();
+        final Enumeration<String> headerLines = mail.getAllHeaderLines();
+        while (headerLines.hasMoreElements())
+        {
+            raw.append(headerLines.nextElement()).append("\r\n");
+        }
+        raw.append("\r\n");
+        final Object content = mail.getContent();
+        if (content instanceof String)
+        {
+            raw.append(content);
+        }
+        final byte[] bytes = raw.toString().getBytes(StandardCharsets.ISO_8859_1);
+        return messageListener.checkForLoop(MailHeaderScan.scan(new ByteArrayInputStream(bytes)));
+    }
 }
@@ -2,12 +2,21 @@ package controllers;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import etc.RawMailBuffer;
+
 public class MessageListenerRawContentTest
 {
     @Test
@@ -16,19 +25,54 @@ public class MessageListenerRawContentTest
         final InputStream is = getClass().getResourceAsStream("multiPart.eml");
         Assert.assertNotNull("Failed to load 'multiPart.eml'", is);
 
-        final String rawContent = MessageListener.readLimitedAmount(is, 25_000_000);
+        final RawMailBuffer buffer = MessageListener.readLimitedAmount(is, 25_000_000, 1_000_000);
+        Assert.assertFalse("Content has been spilled", buffer.isSpilled());
+
+        final String rawContent = new String(IOUtils.toByteArray(buffer.getInputStream()), StandardCharsets.US_ASCII);
         Assert.assertNotNull("RAW content is null", rawContent);
         Assert.assertTrue("CRLF not found", rawContent.indexOf("\r\n") > -1);
         Assert.assertTrue("'Content-Type' header not found",
                           Pattern.compile("\r\nContent-Type:\\s*multipart/\\S+;").matcher(rawContent).find());
         Assert.assertTrue("'Subject' header not found",
                           Pattern.compile("\r\nSubject:\\s*\\S+").matcher(rawContent).find());
+        buffer.release();
     }
 
     @Test(expected = MessageListener.SizeLimitExceededException.class)
     public void testReadRawContent_LimitExceeded() throws Exception
     {
         final InputStream is = new ByteArrayInputStream(RandomUtils.nextBytes(30));
-        MessageListener.readLimitedAmount(is, 25);
+        MessageListener.readLimitedAmount(is, 25, 1_000_000);
+    }
+
+    @Test
+    public void testReadRawContent_Spilled() throws Exception
+    {
+        final InputStream is = getClass().getResourceAsStream("multiPart.eml");
+        final byte[] expected = IOUtils.toByteArray(getClass().getResourceAsStream("multiPart.eml"));
+
+        final RawMailBuffer buffer = MessageListener.readLimitedAmount(is, 25_000_000, 100);
+        Assert.assertTrue("Content has not been spilled", buffer.isSpilled());
+        Assert.assertEquals(expected.length, buffer.size());
+
+        final InputStream content = buffer.getInputStream();
+        Assert.assertTrue(content instanceof SharedInputStream);
+        Assert.assertArrayEquals(expected, IOUtils.toByteArray(content));
+
+        final MimeMessage mail = new MimeMessage(Session.getInstance(System.getProperties()),
+                                                 buffer.getInputStream());
+        Assert.assertNotNull(mail.getSubject());
+        buffer.release();
+    }
+
+    @Test
+    public void testReadRawContent_8bit() throws Exception
+    {
+        final byte[] expected = "Subject: Grüße\r\n\r\näöü\r\n".getBytes(StandardCharsets.UTF_8);
+
+        final RawMailBuffer buffer = MessageListener.readLimitedAmount(new ByteArrayInputStream(expected),
+                                                                       expected.length, 1_000_000);
+        Assert.assertTrue(Arrays.equals(expected, IOUtils.toByteArray(buffer.getInputStream())));
+        buffer.release();
     }
 }
@@ -0,0 +1,82 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ScheduledJobTest
+{
+    @Test
+    public void testFailureDoesNotStopSchedule() throws Exception
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        ScheduledJob job = new ScheduledJob("failing", 1, 30)
+        {
+            @Override
+            protected int execute()
+            {
+                if (runs.incrementAndGet() % 2 == 1)
+                {
+                    throw new IllegalStateException("failed run");
+                }
+                return 5;
+            }
+        };
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try
+        {
+            executor.scheduleWithFixedDelay(job, 0, 10, TimeUnit.MILLISECONDS);
+            final long end = System.currentTimeMillis() + 5000;
+            while (runs.get() < 4 && System.currentTimeMillis() < end)
+            {
+                Thread.sleep(10);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        Map<String, Number> metrics = job.getMetrics();
+        assertTrue(metrics.get("runs").longValue() >= 4);
+        assertTrue(metrics.get("failures").longValue() >= 2);
+        assertTrue(metrics.get("processedItems").longValue() >= 10);
+        assertTrue(metrics.get("lastSuccess").longValue() > 0);
+    }
+
+    @Test
+    public void testBudget()
+    {
+        ScheduledJob job = new ScheduledJob("slow", 1, 0)
+        {
+            @Override
+            protected int execute() throws Exception
+            {
+                int items = 0;
+                // the budget of 0 seconds is exhausted after the first item
+                do
+                {
+                    Thread.sleep(5);
+                    items++;
+                }
+                while (System.currentTimeMillis() < getDeadline());
+                return items;
+            }
+        };
+        job.run();
+
+        Map<String, Number> metrics = job.getMetrics();
+        assertEquals(1, metrics.get("lastRunItems"));
+        assertEquals(1L, metrics.get("overBudgetRuns"));
+        assertEquals(0L, metrics.get("failures"));
+    }
+}
@@ -0,0 +1,56 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SessionIndexTest
+{
+    @Test
+    public void testEvictsOldestSession()
+    {
+        SessionIndex index = new SessionIndex();
+        assertEquals(Collections.emptyList(), index.add("a", 1000, 0, 2));
+        assertEquals(Collections.emptyList(), index.add("b", 1000, 0, 2));
+        // adding a again makes it the newest session
+        assertEquals(Collections.emptyList(), index.add("a", 2000, 1, 2));
+        assertEquals(Arrays.asList("b"), index.add("c", 2000, 1, 2));
+
+        assertEquals(Arrays.asList("a", "c"), new ArrayList<String>(index.getSessions().keySet()));
+        assertEquals(2000, index.getLastExpiration());
+    }
+
+    @Test
+    public void testPrunesExpiredSessions()
+    {
+        SessionIndex index = new SessionIndex();
+        index.add("a", 1000, 0, 10);
+        index.add("b", 3000, 0, 10);
+        index.add("c", 2000, 1000, 10);
+
+        assertEquals(Arrays.asList("b", "c"), new ArrayList<String>(index.getSessions().keySet()));
+        index.prune(2000);
+        assertEquals(Arrays.asList("b"), new ArrayList<String>(index.getSessions().keySet()));
+    }
+
+    @Test
+    public void testAddAllAndRemove()
+    {
+        SessionIndex index = new SessionIndex();
+        index.add("a", 1000, 0, 10);
+        SessionIndex other = new SessionIndex();
+        other.add("b", 1000, 0, 10);
+        other.add("c", 1000, 0, 10);
+
+        assertEquals(Arrays.asList("a"), index.addAll(other, 0, 2));
+        assertTrue(index.remove("b"));
+        assertFalse(index.remove("b"));
+        assertEquals(1, index.size());
+    }
+}
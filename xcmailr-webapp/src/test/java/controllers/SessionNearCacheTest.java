@@ -0,0 +1,67 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import etc.SessionUser;
+
+public class SessionNearCacheTest
+{
+    private static SessionUser user(long id)
+    {
+        return new SessionUser(id, "user" + id + "@xcmailr.test", false, true, "en");
+    }
+
+    @Test
+    public void testExpiration()
+    {
+        SessionNearCache cache = new SessionNearCache(10, 5000);
+        SessionUser user = user(1);
+        cache.put("key", user, 1000);
+        assertSame(user, cache.get("key", 5999));
+        assertNull(cache.get("key", 6000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed()
+    {
+        SessionNearCache cache = new SessionNearCache(2, 5000);
+        cache.put("a", user(1), 0);
+        cache.put("b", user(2), 0);
+        // touch a, so b is the least recently used entry
+        assertEquals(1, cache.get("a", 1).getId());
+        cache.put("c", user(3), 1);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.get("a", 2).getId());
+        assertNull(cache.get("b", 2));
+        assertEquals(3, cache.get("c", 2).getId());
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        SessionNearCache cache = new SessionNearCache(10, 5000);
+        cache.put("key", user(1), 0);
+        cache.invalidate("key");
+        assertNull(cache.get("key", 1));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        SessionNearCache cache = new SessionNearCache(0, 5000);
+        assertFalse(cache.isEnabled());
+        cache.put("key", user(1), 0);
+        assertNull(cache.get("key", 1));
+        assertEquals(0, cache.size());
+
+        assertTrue(new SessionNearCache(1, 1).isEnabled());
+    }
+}
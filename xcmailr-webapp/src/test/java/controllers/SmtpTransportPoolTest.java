@@ -0,0 +1,133 @@
+package controllers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.subethamail.wiser.Wiser;
+
+/**
+ * Tests the {@link SmtpTransportPool} against a local SMTP sink.
+ */
+public class SmtpTransportPoolTest
+{
+    private Wiser wiser;
+
+    private int port;
+
+    private Session session;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+
+        wiser = startWiser();
+
+        Properties properties = new Properties();
+        properties.put("mail.smtp.host", "localhost");
+        properties.put("mail.smtp.port", port);
+        session = Session.getInstance(properties);
+    }
+
+    @After
+    public void tearDown()
+    {
+        wiser.stop();
+    }
+
+    @Test
+    public void testReuseConnection() throws Exception
+    {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 100, 60000, LoggerFactory.getLogger(getClass()));
+        for (int i = 0; i < 3; i++)
+        {
+            pool.send(session, createMail(i));
+        }
+
+        assertEquals(3, wiser.getMessages().size());
+        assertEquals(1, pool.getOpenedConnections());
+        assertEquals(2, pool.getReusedConnections());
+        assertEquals(1, pool.getIdleConnections());
+
+        pool.closeAll();
+        assertEquals(0, pool.getIdleConnections());
+    }
+
+    @Test
+    public void testMessageLimit() throws Exception
+    {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 2, 60000, LoggerFactory.getLogger(getClass()));
+        for (int i = 0; i < 5; i++)
+        {
+            pool.send(session, createMail(i));
+        }
+
+        assertEquals(5, wiser.getMessages().size());
+        assertEquals(3, pool.getOpenedConnections());
+        pool.closeAll();
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception
+    {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 100, 0, LoggerFactory.getLogger(getClass()));
+        pool.send(session, createMail(0));
+        Thread.sleep(10);
+        pool.send(session, createMail(1));
+
+        assertEquals(2, wiser.getMessages().size());
+        assertEquals(2, pool.getOpenedConnections());
+        pool.closeAll();
+    }
+
+    @Test
+    public void testReconnect() throws Exception
+    {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 100, 60000, LoggerFactory.getLogger(getClass()));
+        pool.send(session, createMail(0));
+
+        // restart the server, the pooled connection is broken now
+        wiser.stop();
+        wiser = startWiser();
+
+        pool.send(session, createMail(1));
+
+        assertEquals(1, wiser.getMessages().size());
+        assertEquals(2, pool.getOpenedConnections());
+        pool.closeAll();
+    }
+
+    private Wiser startWiser()
+    {
+        Wiser server = new Wiser();
+        server.setHostname("localhost");
+        server.setPort(port);
+        server.start();
+        return server;
+    }
+
+    private MimeMessage createMail(int i) throws MessagingException
+    {
+        MimeMessage mail = new MimeMessage(session);
+        mail.setFrom(new InternetAddress("sender@localhost"));
+        mail.setRecipient(Message.RecipientType.TO, new InternetAddress("recipient@localhost"));
+        mail.setSubject("mail " + i);
+        mail.setText("content " + i);
+        return mail;
+    }
+}
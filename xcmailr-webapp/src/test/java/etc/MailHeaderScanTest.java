@@ -0,0 +1,60 @@
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MailHeaderScanTest
+{
+    @Test
+    public void testScanHeaders() throws IOException
+    {
+        MailHeaderScan scan = scan("Message-ID: <1@sender.test>\r\n" //
+                                   + "message-id: <2@sender.test>\r\n" //
+                                   + "To: a@xcmailr.test\r\n" //
+                                   + "X-Loop: first\r\n" //
+                                   + "References: <3@sender.test>\r\n" //
+                                   + "\t<4@xcmailr.test>\r\n" //
+                                   + "x-loop: second\r\n" //
+                                   + "In-Reply-To: <5@sender.test>\r\n" //
+                                   + "TO: b@xcmailr.test\r\n" //
+                                   + "\r\n" //
+                                   + "X-Loop: in the body\r\n");
+
+        assertEquals("<1@sender.test>", scan.getMessageId());
+        assertEquals("a@xcmailr.test,b@xcmailr.test", scan.getTo());
+        assertEquals(Arrays.asList("first", "second"), scan.getLoopHeaders());
+        assertEquals(Arrays.asList("<3@sender.test>\t<4@xcmailr.test>"), scan.getReferences());
+        assertEquals(Arrays.asList("<5@sender.test>"), scan.getInReplyTo());
+    }
+
+    @Test
+    public void testScanHeadersWithLineFeeds() throws IOException
+    {
+        MailHeaderScan scan = scan("Subject: test\nIn-Reply-To:\n <1@sender.test>\n\nMessage-ID: <2@sender.test>\n");
+
+        assertNull(scan.getMessageId());
+        assertNull(scan.getTo());
+        assertTrue(scan.getLoopHeaders().isEmpty());
+        assertEquals(Arrays.asList("<1@sender.test>"), scan.getInReplyTo());
+    }
+
+    @Test
+    public void testScanHeadersWithoutBody() throws IOException
+    {
+        assertEquals("<1@sender.test>", scan("Subject: test\r\nMessage-ID: <1@sender.test>").getMessageId());
+        assertNull(scan("").getMessageId());
+    }
+
+    private MailHeaderScan scan(String mail) throws IOException
+    {
+        return MailHeaderScan.scan(new ByteArrayInputStream(mail.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+}
@@ -0,0 +1,78 @@
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.junit.Test;
+
+import models.Mail;
+
+public class MailProjectionTest
+{
+    @Test
+    public void testProjection() throws Exception
+    {
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("plain text", "UTF-8");
+
+        MimeBodyPart html = new MimeBodyPart();
+        html.setContent("<b>html text</b>", "text/html; charset=UTF-8");
+
+        MimeBodyPart attachment = new MimeBodyPart();
+        byte[] content = "0123456789".getBytes(StandardCharsets.US_ASCII);
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+        attachment.setFileName("numbers.bin");
+
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(text);
+        alternative.addBodyPart(html);
+        MimeBodyPart alternativePart = new MimeBodyPart();
+        alternativePart.setContent(alternative);
+
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(alternativePart);
+        mixed.addBodyPart(attachment);
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject("projection");
+        message.setContent(mixed);
+        message.saveChanges();
+
+        Mail mail = new Mail();
+        MailProjection.project(mail, message);
+
+        assertEquals("plain text", mail.getTextContent());
+        assertEquals("<b>html text</b>", mail.getHtmlContent());
+
+        List<AttachmentEntry> attachments = MailProjection.getAttachments(mail);
+        assertEquals(1, attachments.size());
+        assertEquals("numbers.bin", attachments.get(0).name);
+        assertTrue(attachments.get(0).contentType.startsWith("application/octet-stream"));
+        assertEquals(10, attachments.get(0).size);
+    }
+
+    @Test
+    public void testUnparsableContent() throws Exception
+    {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setContent("broken", "multipart/mixed; boundary=none");
+
+        Mail mail = new Mail();
+        MailProjection.project(mail, message);
+
+        assertEquals("", mail.getTextContent());
+        assertEquals("", mail.getHtmlContent());
+        assertTrue(MailProjection.getAttachments(mail).isEmpty());
+    }
+}
@@ -0,0 +1,123 @@
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+public class RawMimeMessageTest
+{
+    /** a body which would be encoded differently by JavaMail (short base64 lines, no trailing line break) */
+    private static final String BODY = "--boundary\r\n" //
+                                       + "Content-Type: text/plain; charset=us-ascii\r\n" //
+                                       + "\r\n" //
+                                       + "some text\r\n" //
+                                       + "--boundary\r\n" //
+                                       + "Content-Type: application/octet-stream; name=data.bin\r\n" //
+                                       + "Content-Transfer-Encoding: base64\r\n" //
+                                       + "\r\n" //
+                                       + "AAECAwQFBgcICQoL\r\n" //
+                                       + "DA0ODxAREhMUFRYX\r\n" //
+                                       + "--boundary--";
+
+    private static final String MAIL = "Message-ID: <1@sender.test>\r\n" //
+                                       + "From: sender@sender.test\r\n" //
+                                       + "To: box@xcmailr.test\r\n" //
+                                       + "Cc: other@sender.test\r\n" //
+                                       + "Subject: test\r\n" //
+                                       + "MIME-Version: 1.0\r\n" //
+                                       + "Content-Type: multipart/mixed; boundary=\"boundary\"\r\n" //
+                                       + "\r\n" //
+                                       + BODY;
+
+    @Test
+    public void testForwardBodyAsReceived() throws Exception
+    {
+        assertForwardedAsReceived(1024 * 1024);
+    }
+
+    @Test
+    public void testForwardSpilledBodyAsReceived() throws Exception
+    {
+        assertForwardedAsReceived(16);
+    }
+
+    @Test
+    public void testReplacedContent() throws Exception
+    {
+        RawMailBuffer rawContent = createBuffer(1024 * 1024);
+        try
+        {
+            RawMimeMessage mail = new RawMimeMessage(Session.getInstance(new Properties()), rawContent);
+            mail.setText("new text");
+            mail.saveChanges();
+
+            String written = write(mail);
+            assertTrue(written.endsWith("new text"));
+            assertFalse(written.contains("AAECAwQFBgcICQoL"));
+        }
+        finally
+        {
+            rawContent.release();
+        }
+    }
+
+    private void assertForwardedAsReceived(int memoryThreshold) throws Exception
+    {
+        RawMailBuffer rawContent = createBuffer(memoryThreshold);
+        try
+        {
+            RawMimeMessage mail = new RawMimeMessage(Session.getInstance(new Properties()), rawContent);
+            // the content is parsed when the mail is stored
+            mail.getContent();
+
+            // the changes of the forwarding
+            mail.setRecipient(Message.RecipientType.TO, new InternetAddress("user@localhost"));
+            mail.removeHeader("Cc");
+            mail.setFrom(new InternetAddress("box@xcmailr.test"));
+            mail.addHeader("X-Loop", "loopbreakerbox@xcmailr.test");
+            mail.saveChanges();
+
+            String written = write(mail);
+            int headerEnd = written.indexOf("\r\n\r\n");
+            String headers = written.substring(0, headerEnd + 2);
+            assertEquals(BODY, written.substring(headerEnd + 4));
+            assertTrue(headers.contains("To: user@localhost\r\n"));
+            assertTrue(headers.contains("From: box@xcmailr.test\r\n"));
+            assertTrue(headers.contains("X-Loop: loopbreakerbox@xcmailr.test\r\n"));
+            assertFalse(headers.contains("Cc:"));
+            assertNotEquals("<1@sender.test>", mail.getMessageID());
+        }
+        finally
+        {
+            rawContent.release();
+        }
+    }
+
+    private RawMailBuffer createBuffer(int memoryThreshold) throws IOException
+    {
+        RawMailBuffer rawContent = new RawMailBuffer(memoryThreshold);
+        rawContent.write(MAIL.getBytes(StandardCharsets.US_ASCII));
+        rawContent.close();
+        return rawContent;
+    }
+
+    private String write(RawMimeMessage mail) throws IOException, MessagingException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mail.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,63 @@
+package etc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import models.User;
+
+public class SessionUserTest
+{
+    private static byte[] serialize(Object object) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static SessionUser copy(SessionUser user) throws Exception
+    {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(user))))
+        {
+            return (SessionUser) in.readObject();
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception
+    {
+        SessionUser user = copy(new SessionUser(42, "user@xcmailr.test", true, false, "de"));
+        assertEquals(42, user.getId());
+        assertEquals("user@xcmailr.test", user.getMail());
+        assertTrue(user.isAdmin());
+        assertFalse(user.isActive());
+        assertEquals("de", user.getLanguage());
+
+        user = copy(new SessionUser(7, "other@xcmailr.test", false, true, null));
+        assertFalse(user.isAdmin());
+        assertTrue(user.isActive());
+        assertEquals("", user.getLanguage());
+    }
+
+    @Test
+    public void testIsSmallerThanTheEntity() throws Exception
+    {
+        User entity = new User("test", "user", "user@xcmailr.test", "1234", "en");
+        entity.setActive(true);
+        SessionUser user = SessionUser.of(entity);
+        assertEquals("user@xcmailr.test", user.getMail());
+        assertTrue(user.isActive());
+
+        assertTrue(serialize(user).length < serialize(entity).length / 2);
+    }
+}
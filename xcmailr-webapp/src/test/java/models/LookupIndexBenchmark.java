@@ -0,0 +1,227 @@
+package models;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Measures the cost of the hot lookups (users by mail address and API token, mailboxes by address and domain, mails
+ * by download token and receive time, mail transactions by timestamp) on an in-memory H2 database, once without and
+ * once with the indexes of schema version 1 in upgrade_db.sql.<br/>
+ * This is not a unit test, run it with: <code>mvn test-compile exec:java
+ * -Dexec.mainClass=models.LookupIndexBenchmark -Dexec.classpathScope=test [-Dexec.args=rows]</code>
+ */
+public class LookupIndexBenchmark
+{
+    private static final int DEFAULT_ROWS = 1000000;
+
+    private static final int BATCH_SIZE = 10000;
+
+    private static final int LOOKUPS = 200;
+
+    private static final String[] CREATE_TABLES =
+        {
+            "create table users (id bigint primary key, mail varchar(255), apitoken varchar(255))",
+            "create table mailboxes (id bigint primary key, address varchar(255), domain varchar(255))",
+            "create table mail (id bigint primary key, uuid varchar(36), receive_time bigint not null)",
+            "create table mailtransactions (id bigint primary key, ts bigint)"
+        };
+
+    /**
+     * The same statements as in version 1 of upgrade_db.sql
+     */
+    private static final String[] CREATE_INDEXES =
+        {
+            "create unique index if not exists ux_users_mail on users (mail)",
+            "create unique index if not exists ux_users_apitoken on users (apitoken)",
+            "create unique index if not exists ux_mailboxes_address_domain on mailboxes (address, domain)",
+            "create index if not exists ix_mail_uuid on mail (uuid)",
+            "create index if not exists ix_mail_receive_time on mail (receive_time)",
+            "create index if not exists ix_mailtransactions_ts on mailtransactions (ts)"
+        };
+
+    private static final String[][] LOOKUPS_BY_NAME =
+        {
+            {
+                "users.mail", "select id from users where mail = ?"
+            },
+            {
+                "users.apitoken", "select id from users where apitoken = ?"
+            },
+            {
+                "mailboxes(address, domain)", "select id from mailboxes where address = ? and domain = ?"
+            },
+            {
+                "mail.uuid", "select id from mail where uuid = ?"
+            },
+            {
+                "mail.receive_time", "select count(*) from mail where receive_time < ?"
+            },
+            {
+                "mailtransactions.ts", "select count(*) from mailtransactions where ts < ?"
+            }
+        };
+
+    public static void main(String[] args) throws Exception
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+
+        Class.forName("org.h2.Driver");
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:lookupbenchmark;LOG=0;UNDO_LOG=0", "sa", "");
+        try
+        {
+            Statement statement = connection.createStatement();
+            for (String sql : CREATE_TABLES)
+            {
+                statement.execute(sql);
+            }
+            fill(connection, rows);
+
+            System.out.println(String.format("%d rows per table, %d lookups each", rows, LOOKUPS));
+            long[] before = measure(connection, rows);
+
+            long start = System.nanoTime();
+            for (String sql : CREATE_INDEXES)
+            {
+                statement.execute(sql);
+            }
+            System.out.println(String.format("creating the indexes took %d ms", (System.nanoTime() - start) / 1000000));
+            long[] after = measure(connection, rows);
+
+            System.out.println(String.format("%-28s %14s %14s", "lookup", "before (us)", "after (us)"));
+            for (int i = 0; i < LOOKUPS_BY_NAME.length; i++)
+            {
+                System.out.println(String.format("%-28s %14d %14d", LOOKUPS_BY_NAME[i][0], before[i], after[i]));
+            }
+            statement.close();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /**
+     * Inserts the given number of rows into each table
+     */
+    private static void fill(Connection connection, int rows) throws SQLException
+    {
+        connection.setAutoCommit(false);
+        PreparedStatement users = connection.prepareStatement("insert into users values (?, ?, ?)");
+        PreparedStatement boxes = connection.prepareStatement("insert into mailboxes values (?, ?, ?)");
+        PreparedStatement mails = connection.prepareStatement("insert into mail values (?, ?, ?)");
+        PreparedStatement transactions = connection.prepareStatement("insert into mailtransactions values (?, ?)");
+        for (int i = 0; i < rows; i++)
+        {
+            users.setLong(1, i);
+            users.setString(2, mailAddress(i));
+            users.setString(3, apiToken(i));
+            users.addBatch();
+
+            boxes.setLong(1, i);
+            boxes.setString(2, boxAddress(i));
+            boxes.setString(3, domain(i));
+            boxes.addBatch();
+
+            mails.setLong(1, i);
+            mails.setString(2, uuid(i));
+            mails.setLong(3, i);
+            mails.addBatch();
+
+            transactions.setLong(1, i);
+            transactions.setLong(2, i);
+            transactions.addBatch();
+
+            if ((i + 1) % BATCH_SIZE == 0 || i == rows - 1)
+            {
+                users.executeBatch();
+                boxes.executeBatch();
+                mails.executeBatch();
+                transactions.executeBatch();
+                connection.commit();
+            }
+        }
+        users.close();
+        boxes.close();
+        mails.close();
+        transactions.close();
+        connection.setAutoCommit(true);
+    }
+
+    /**
+     * Runs each lookup with random keys and returns the average duration per lookup in microseconds
+     */
+    private static long[] measure(Connection connection, int rows) throws SQLException
+    {
+        long[] averages = new long[LOOKUPS_BY_NAME.length];
+        for (int i = 0; i < LOOKUPS_BY_NAME.length; i++)
+        {
+            PreparedStatement statement = connection.prepareStatement(LOOKUPS_BY_NAME[i][1]);
+            Random random = new Random(42);
+            long start = System.nanoTime();
+            for (int n = 0; n < LOOKUPS; n++)
+            {
+                int key = random.nextInt(rows);
+                switch (i)
+                {
+                    case 0:
+                        statement.setString(1, mailAddress(key));
+                        break;
+                    case 1:
+                        statement.setString(1, apiToken(key));
+                        break;
+                    case 2:
+                        statement.setString(1, boxAddress(key));
+                        statement.setString(2, domain(key));
+                        break;
+                    case 3:
+                        statement.setString(1, uuid(key));
+                        break;
+                    default:
+                        // the retention and cleanup queries touch only the oldest rows
+                        statement.setLong(1, key % 100);
+                        break;
+                }
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next())
+                {
+                    resultSet.getLong(1);
+                }
+                resultSet.close();
+            }
+            averages[i] = (System.nanoTime() - start) / 1000 / LOOKUPS;
+            statement.close();
+        }
+        return averages;
+    }
+
+    private static String mailAddress(int i)
+    {
+        return "user" + i + "@xcmailr.test";
+    }
+
+    private static String apiToken(int i)
+    {
+        return new UUID(~i, i).toString().replace("-", "");
+    }
+
+    private static String boxAddress(int i)
+    {
+        return "box" + i;
+    }
+
+    private static String domain(int i)
+    {
+        return "xcmailr" + (i % 4) + ".test";
+    }
+
+    private static String uuid(int i)
+    {
+        return new UUID(i, ~i).toString();
+    }
+}
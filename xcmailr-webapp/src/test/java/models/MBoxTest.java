@@ -7,6 +7,8 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 
+import javax.persistence.PersistenceException;
+
 import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Before;
@@ -134,4 +136,10 @@ public class MBoxTest extends NinjaTest
         assertTrue(mailbox.isExpiredByTimestamp());
     }
 
+    @Test(expected = PersistenceException.class)
+    public void duplicateAddressTest()
+    {
+        // the address and domain of a box are unique
+        new MBox("test", "xcmailr.test", 0, false, user).save();
+    }
 }
@@ -0,0 +1,81 @@
+package models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.ExpressionList;
+
+import ninja.NinjaTest;
+
+public class MailSearchIndexTest extends NinjaTest
+{
+    User user;
+
+    MBox mailbox;
+
+    @Before
+    public void setUp()
+    {
+        user = new User("forename", "surname", "search@localhost.com", "1234", "en");
+        user.setActive(true);
+        user.save();
+        mailbox = new MBox("searchindex", "xcmailr.test", 0, false, user);
+        mailbox.save();
+    }
+
+    @Test
+    public void testSearch()
+    {
+        assertTrue(MailSearchIndex.isAvailable());
+
+        Mail mail = createMail("Your verification code", "Please confirm the registration");
+        createMail("Newsletter", "Nothing to see here");
+
+        assertEquals(1, search("verification").size());
+        assertEquals(mail.getId(), search("VERIFICATION").get(0).getId());
+        assertEquals(1, search("confirm registration").size());
+        assertEquals(0, search("confirm newsletter").size());
+        assertEquals(2, search("sender@localhost").size());
+
+        // the address of the mailbox is indexed as well
+        assertEquals(2, search("searchindex@xcmailr.test").size());
+        assertEquals(0, search("unknown").size());
+    }
+
+    @Test
+    public void testDelete()
+    {
+        Mail mail = createMail("Your verification code", "Please confirm the registration");
+        assertEquals(1, search("verification").size());
+
+        // like the retention cleanup
+        mail.delete();
+        assertEquals(0, search("verification").size());
+    }
+
+    private Mail createMail(String subject, String text)
+    {
+        Mail mail = new Mail();
+        mail.setMailbox(mailbox);
+        mail.setSender("sender@localhost");
+        mail.setSubject(subject);
+        mail.setReceiveTime(System.currentTimeMillis());
+        mail.setTextContent(text);
+        mail.setHtmlContent("");
+        mail.save();
+        return mail;
+    }
+
+    private List<Mail> search(String phrase)
+    {
+        ExpressionList<Mail> where = Ebean.find(Mail.class).where().eq("mailbox.usr.id", user.getId());
+        MailSearchIndex.restrict(where, phrase);
+        return where.findList();
+    }
+}
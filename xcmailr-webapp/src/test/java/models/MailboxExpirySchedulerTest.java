@@ -0,0 +1,73 @@
+package models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ninja.NinjaTest;
+
+public class MailboxExpirySchedulerTest extends NinjaTest
+{
+    User user;
+
+    @Before
+    public void setUp()
+    {
+        user = new User("forename", "surname", "expiry@localhost.com", "1234", "en");
+        user.setActive(true);
+        user.save();
+    }
+
+    @Test
+    public void testExpireAtDeadline() throws Exception
+    {
+        final long expiredBefore = MailboxExpiryScheduler.getExpiredCount();
+        MBox mailbox = new MBox("deadline", "xcmailr.test", System.currentTimeMillis() + 500, false, user);
+        mailbox.save();
+
+        waitUntilExpired(mailbox.getId(), 2000);
+        assertTrue(MBox.getById(mailbox.getId()).isExpired());
+        assertEquals(expiredBefore + 1, MailboxExpiryScheduler.getExpiredCount());
+        assertTrue(MailboxRoutingIndex.resolve("deadline", "xcmailr.test").isExpired());
+    }
+
+    @Test
+    public void testReschedule() throws Exception
+    {
+        MBox mailbox = new MBox("prolonged", "xcmailr.test", System.currentTimeMillis() + 500, false, user);
+        mailbox.save();
+        MBox listedBox = new MBox("listed", "xcmailr.test", System.currentTimeMillis() + 500, false, user);
+        listedBox.save();
+
+        // prolong the boxes before their deadline has been reached
+        mailbox.setTs_Active(System.currentTimeMillis() + 60000);
+        mailbox.update();
+        MBox.setNewDateForListOfBoxes(user.getId(), Arrays.asList(listedBox.getId()),
+                                      System.currentTimeMillis() + 60000);
+
+        Thread.sleep(1500);
+        assertFalse(MBox.getById(mailbox.getId()).isExpired());
+        assertFalse(MBox.getById(listedBox.getId()).isExpired());
+
+        // shorten the deadline again
+        MBox.setNewDateForListOfBoxes(user.getId(), Arrays.asList(listedBox.getId()),
+                                      System.currentTimeMillis() + 300);
+        waitUntilExpired(listedBox.getId(), 2000);
+        assertTrue(MBox.getById(listedBox.getId()).isExpired());
+        assertFalse(MBox.getById(mailbox.getId()).isExpired());
+    }
+
+    private void waitUntilExpired(long boxId, long timeout) throws InterruptedException
+    {
+        final long end = System.currentTimeMillis() + timeout;
+        while (!MBox.getById(boxId).isExpired() && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(50);
+        }
+    }
+}
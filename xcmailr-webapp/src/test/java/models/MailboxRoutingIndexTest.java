@@ -0,0 +1,119 @@
+package models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import ninja.NinjaTest;
+
+public class MailboxRoutingIndexTest extends NinjaTest
+{
+    User user;
+
+    MBox mailbox;
+
+    @Before
+    public void setUp()
+    {
+        user = new User("forename", "surname", "index@localhost.com", "1234", "en");
+        user.setActive(true);
+        user.save();
+        mailbox = new MBox("index", "xcmailr.test", 0, false, user);
+        mailbox.save();
+    }
+
+    @Test
+    public void testResolve()
+    {
+        assertTrue(MailboxRoutingIndex.isLoaded());
+
+        MBox resolved = MailboxRoutingIndex.resolve("INDEX", "xcmailr.test");
+        assertNotNull(resolved);
+        assertEquals(mailbox.getId(), resolved.getId());
+        assertEquals("index@xcmailr.test", resolved.getFullAddress());
+        assertEquals(user.getId(), resolved.getUsr().getId());
+        assertEquals("index@localhost.com", resolved.getUsr().getMail());
+        assertTrue(resolved.getUsr().isActive());
+        assertTrue(resolved.isActive());
+
+        assertNull(MailboxRoutingIndex.resolve("index", "ccmailr.test"));
+        assertNull(MailboxRoutingIndex.resolve("unknown", "xcmailr.test"));
+    }
+
+    @Test
+    public void testBoxUpdates()
+    {
+        // rename the box
+        mailbox.setAddress("index2");
+        mailbox.update();
+        assertNull(MailboxRoutingIndex.resolve("index", "xcmailr.test"));
+        assertNotNull(MailboxRoutingIndex.resolve("index2", "xcmailr.test"));
+
+        mailbox.disable();
+        assertTrue(MailboxRoutingIndex.resolve("index2", "xcmailr.test").isExpired());
+        mailbox.enable();
+        assertFalse(MailboxRoutingIndex.resolve("index2", "xcmailr.test").isExpired());
+
+        MBox.delete(mailbox.getId());
+        assertNull(MailboxRoutingIndex.resolve("index2", "xcmailr.test"));
+    }
+
+    @Test
+    public void testBulkUpdates()
+    {
+        MBox other = new MBox("other", "xcmailr.test", 0, false, user);
+        other.save();
+
+        // boxes of foreign users must not be touched
+        MBox.disableListOfBoxes(user.getId() + 1, Arrays.asList(mailbox.getId()));
+        assertFalse(MailboxRoutingIndex.resolve("index", "xcmailr.test").isExpired());
+
+        MBox.disableListOfBoxes(user.getId(), Arrays.asList(mailbox.getId(), other.getId()));
+        assertTrue(MailboxRoutingIndex.resolve("index", "xcmailr.test").isExpired());
+        assertTrue(MailboxRoutingIndex.resolve("other", "xcmailr.test").isExpired());
+
+        MBox.enableListOfBoxesIfPossible(user.getId(), Arrays.asList(mailbox.getId()));
+        assertFalse(MailboxRoutingIndex.resolve("index", "xcmailr.test").isExpired());
+
+        long ts = DateTime.now().plusHours(1).getMillis();
+        MBox.setNewDateForListOfBoxes(user.getId(), Arrays.asList(other.getId()), ts);
+        MBox resolved = MailboxRoutingIndex.resolve("other", "xcmailr.test");
+        assertFalse(resolved.isExpired());
+        assertEquals(ts, resolved.getTs_Active());
+        assertEquals(ts, MBox.getById(other.getId()).getTs_Active());
+
+        MBox.removeListOfBoxes(user.getId(), Arrays.asList(other.getId()));
+        assertNull(MailboxRoutingIndex.resolve("other", "xcmailr.test"));
+        assertNotNull(MailboxRoutingIndex.resolve("index", "xcmailr.test"));
+    }
+
+    @Test
+    public void testOwnerUpdates()
+    {
+        user.setActive(false);
+        user.update();
+        assertFalse(MailboxRoutingIndex.resolve("index", "xcmailr.test").getUsr().isActive());
+
+        User.activate(user.getId());
+        assertTrue(MailboxRoutingIndex.resolve("index", "xcmailr.test").getUsr().isActive());
+
+        User.delete(user.getId());
+        assertNull(MailboxRoutingIndex.resolve("index", "xcmailr.test"));
+    }
+
+    @Test
+    public void testLoad()
+    {
+        int size = MailboxRoutingIndex.size();
+        assertEquals(size, MailboxRoutingIndex.load());
+        assertNotNull(MailboxRoutingIndex.resolve("index", "xcmailr.test"));
+    }
+}